@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits Trefoil v1 programs into words, byte by byte, and classifies each word.
+ *
+ * A word is a number if it is an optional sign followed by ASCII digits and fits in an int, and
+ * otherwise it must be one of the single-character words ; . + - *. Anything else is reported as
+ * UNKNOWN, and it is up to the subclass to signal the error when it gets to it.
+ *
+ * This is the plain form of the integers that Trefoil.interpret accepts with a Scanner, but not
+ * all of them: Scanner.hasNextInt() follows the default locale, so it also accepts grouping
+ * separators ("1,000" is 1000 in an English locale) and the locale's own digits. Such words are
+ * UNKNOWN here.
+ */
+public abstract class ByteTokenizer {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    static final int NUMBER = 0;
+    static final int DOT = 1;
+    static final int PLUS = 2;
+    static final int MINUS = 3;
+    static final int TIMES = 4;
+    static final int UNKNOWN = 5;
+
+    // State for the word currently being read. A word can span two input chunks.
+    private int wordLength = 0;
+    private byte firstByte;
+    private boolean negative;
+    private boolean numeric;
+    private long value;
+
+    /**
+     * Called for every word except comments (;), in order. value is only meaningful for NUMBER.
+     */
+    protected abstract void word(int kind, int value);
+
+    /**
+     * Tokenize everything read from in. The stream is read in large chunks and not closed.
+     */
+    public void read(InputStream in) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    accept(buffer[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        endWord();
+    }
+
+    /**
+     * Tokenize the given file, which is memory-mapped instead of read.
+     */
+    public void read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            // A single mapping is limited to 2GB, so map very large files piece by piece.
+            for (long position = 0; position < length; position += Integer.MAX_VALUE) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(Integer.MAX_VALUE, length - position));
+                while (buffer.hasRemaining()) {
+                    accept(buffer.get());
+                }
+            }
+        }
+        endWord();
+    }
+
+    public void read(String input) {
+        for (byte b : input.getBytes(StandardCharsets.UTF_8)) {
+            accept(b);
+        }
+        endWord();
+    }
+
+    private void accept(byte b) {
+        if (b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B) {
+            endWord();
+            return;
+        }
+        if (wordLength == 0) {
+            firstByte = b;
+            negative = b == '-';
+            numeric = b == '-' || b == '+' || (b >= '0' && b <= '9');
+            value = (b >= '0' && b <= '9') ? b - '0' : 0;
+        } else if (numeric) {
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (value > (long) Integer.MAX_VALUE + 1) {
+                    // Too big for an int, like Scanner.hasNextInt(). Keep reading the word, but not as a number.
+                    numeric = false;
+                }
+            } else {
+                numeric = false;
+            }
+        }
+        wordLength++;
+    }
+
+    private void endWord() {
+        if (wordLength == 0) {
+            return;
+        }
+        int length = wordLength;
+        wordLength = 0;
+        boolean signOnly = length == 1 && (firstByte == '-' || firstByte == '+');
+        if (numeric && !signOnly) {
+            long v = negative ? -value : value;
+            if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                word(NUMBER, (int) v);
+                return;
+            }
+        }
+        if (length == 1) {
+            switch (firstByte) {
+                case ';':
+                    return;
+                case '.':
+                    word(DOT, 0);
+                    return;
+                case '+':
+                    word(PLUS, 0);
+                    return;
+                case '-':
+                    word(MINUS, 0);
+                    return;
+                case '*':
+                    word(TIMES, 0);
+                    return;
+                default:
+                    break;
+            }
+        }
+        word(UNKNOWN, 0);
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A faster interpreter for Trefoil v1 programs, for very long inputs.
+ *
+ * Programs that run without errors leave the same stack as with Trefoil, and invalid words and
+ * operators without enough operands signal the same TrefoilError. The differences are:
+ * - numbers must be written with ASCII digits only, without the locale's grouping separators that
+ *   Trefoil's Scanner allows (see ByteTokenizer): "1,000 2 +" pushes 1002 with Trefoil in an
+ *   English locale, and is an error here,
+ * - "." on an empty stack signals a TrefoilError ("The stack is empty", like pop()), where
+ *   Trefoil lets java.util.EmptyStackException escape,
+ * - toString() on an empty stack returns "", where Trefoil throws EmptyStackException.
+ *
+ * Otherwise, the difference is in how the work is done:
+ * - the stack is a growable int[] instead of a Stack of boxed Integers,
+ * - the input is tokenized byte by byte by ByteTokenizer, straight from a buffer or a
+ *   memory-mapped file, instead of with Scanner's regular expressions,
+ * - dump() prints the stack with a StringBuilder without emptying it.
+ *
+ * Programs that are run many times can be compiled once with TrefoilProgram.compile() and then
+ * run with run(), which skips tokenizing altogether.
+ */
+public class FastTrefoil extends ByteTokenizer {
+    private int[] stack = new int[64];
+    private int size = 0;
+
+    /**
+     * Interpret the program read from in. The stream is read in large chunks and not closed.
+     */
+    public void interpret(InputStream in) {
+        read(in);
+    }
+
+    /**
+     * Interpret the program in the given file, which is memory-mapped instead of read.
+     */
+    public void interpret(Path file) throws IOException {
+        read(file);
+    }
+
+    /**
+     * Convenience method to interpret the given string. Useful for unit tests.
+     */
+    public void interpret(String input) {
+        read(input);
+    }
+
+    @Override
+    protected void word(int kind, int value) {
+        switch (kind) {
+            case NUMBER:
+                push(value);
+                return;
+            case DOT:
+                pop();
+                return;
+            case PLUS:
+                requireTwo();
+                size--;
+                stack[size - 1] = stack[size - 1] + stack[size];
+                return;
+            case MINUS:
+                requireTwo();
+                size--;
+                stack[size - 1] = stack[size - 1] - stack[size];
+                return;
+            case TIMES:
+                requireTwo();
+                size--;
+                stack[size - 1] = stack[size - 1] * stack[size];
+                return;
+            default:
+                throw new Trefoil.TrefoilError("Error: invalid character is input");
+        }
+    }
+
+    /**
+     * Run a compiled program on this interpreter's stack. Same as interpreting its source.
+     */
+    public void run(TrefoilProgram program) {
+        int[] code = program.code;
+        int[] s = stack;
+        if (size + program.maxGrowth > s.length) {
+            s = stack = Arrays.copyOf(s, Math.max(s.length * 2, size + program.maxGrowth));
+        }
+        // Keep the stack pointer in a local for the loop, and write it back before anything can throw.
+        int sp = size;
+        int pc = 0;
+        try {
+            while (pc < code.length) {
+                switch (code[pc]) {
+                    case TrefoilProgram.PUSH:
+                        s[sp++] = code[pc + 1];
+                        pc += 2;
+                        break;
+                    case TrefoilProgram.POP:
+                        if (sp == 0) {
+                            throw new Trefoil.TrefoilError("Error: The stack is empty");
+                        }
+                        sp--;
+                        pc++;
+                        break;
+                    case TrefoilProgram.ADD:
+                        requireTwo(sp);
+                        sp--;
+                        s[sp - 1] = s[sp - 1] + s[sp];
+                        pc++;
+                        break;
+                    case TrefoilProgram.SUB:
+                        requireTwo(sp);
+                        sp--;
+                        s[sp - 1] = s[sp - 1] - s[sp];
+                        pc++;
+                        break;
+                    case TrefoilProgram.MUL:
+                        requireTwo(sp);
+                        sp--;
+                        s[sp - 1] = s[sp - 1] * s[sp];
+                        pc++;
+                        break;
+                    case TrefoilProgram.ADD_CONST:
+                        requireOne(sp);
+                        s[sp - 1] = s[sp - 1] + code[pc + 1];
+                        pc += 2;
+                        break;
+                    case TrefoilProgram.SUB_CONST:
+                        requireOne(sp);
+                        s[sp - 1] = s[sp - 1] - code[pc + 1];
+                        pc += 2;
+                        break;
+                    case TrefoilProgram.MUL_CONST:
+                        requireOne(sp);
+                        s[sp - 1] = s[sp - 1] * code[pc + 1];
+                        pc += 2;
+                        break;
+                    case TrefoilProgram.INVALID:
+                        throw new Trefoil.TrefoilError("Error: invalid character is input");
+                    default:
+                        throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } finally {
+            size = sp;
+        }
+    }
+
+    private void requireTwo() {
+        requireTwo(size);
+    }
+
+    private static void requireTwo(int size) {
+        if (size < 2) {
+            // Same message as Trefoil, which treats an operator without enough operands like an unknown word.
+            throw new Trefoil.TrefoilError("Error: invalid character is input");
+        }
+    }
+
+    private static void requireOne(int size) {
+        if (size < 1) {
+            // A fused "n +" has one operand already, so it only needs one more.
+            throw new Trefoil.TrefoilError("Error: invalid character is input");
+        }
+    }
+
+    private void push(int x) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size++] = x;
+    }
+
+    /**
+     * Pop a value off the stack and return it. Useful for unit tests.
+     *
+     * @throws Trefoil.TrefoilError if there are no elements on the stack.
+     */
+    public int pop() {
+        if (size == 0) {
+            throw new Trefoil.TrefoilError("Error: The stack is empty");
+        }
+        return stack[--size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the stack, bottom first, separated by spaces. The stack is left unchanged.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder(size * 4);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(stack[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same as dump(), but empties the stack afterwards, like Trefoil.toString().
+     */
+    @Override
+    public String toString() {
+        String s = dump();
+        size = 0;
+        return s;
+    }
+}
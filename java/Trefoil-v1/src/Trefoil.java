@@ -19,6 +19,15 @@ public class Trefoil {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--fast")) {
+            mainFast(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            mainBatch(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Trefoil trefoil = new Trefoil();
 
         try {
@@ -43,6 +52,60 @@ public class Trefoil {
         }
     }
 
+    /**
+     * Same as main, but with FastTrefoil, for very long programs.
+     */
+    private static void mainFast(String[] args) {
+        FastTrefoil trefoil = new FastTrefoil();
+
+        try {
+            if (args.length == 0) {
+                trefoil.interpret(System.in);
+            } else if (args.length == 1) {
+                try {
+                    trefoil.interpret(new File(args[0]).toPath());
+                } catch (IOException e) {
+                    System.out.println("Error: File " + args[0] + " can't be found here");
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Expected 0 or 1 arguments but got " + args.length);
+                System.exit(1);
+            }
+
+            System.out.println(trefoil.dump());
+        } catch (TrefoilError e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluate every program in a directory, or every line of a file, each on its own stack.
+     * Usage: --batch <directory or file> [threads]
+     */
+    private static void mainBatch(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Expected a directory or file, and optionally a number of threads");
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 2) {
+            try {
+                threads = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("Error: " + args[1] + " is not a number of threads");
+                System.exit(1);
+            }
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        try {
+            new TrefoilBatch(threads).run(new File(args[0]).toPath(), out);
+        } catch (IOException e) {
+            System.out.println("Error: File " + args[0] + " can't be read: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     /**
      * Interpret the program given by the scanner.
      */
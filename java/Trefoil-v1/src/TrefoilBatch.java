@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Evaluates many independent Trefoil v1 programs in parallel.
+ *
+ * Every program gets its own FastTrefoil, so programs can't see each other's stacks. Results are
+ * written to a single output stream in input order, one line per program: the program's name,
+ * followed by its final stack or by the message of the TrefoilError it signaled. A summary line
+ * with throughput numbers is written at the end.
+ *
+ * Only a bounded number of programs are in flight at once, so that very large batches don't
+ * pile up results in memory while an early, slow program is still running.
+ */
+public class TrefoilBatch {
+    private final int threads;
+
+    public TrefoilBatch(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Evaluate every file in the directory, in file name order, or every non-blank line of the
+     * given file, in order.
+     */
+    public Stats run(Path input, PrintStream out) throws IOException {
+        List<Program> programs = new ArrayList<>();
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> files = Files.list(input)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    programs.add(new Program(file.getFileName().toString(), () -> {
+                        FastTrefoil trefoil = new FastTrefoil();
+                        trefoil.interpret(file);
+                        return trefoil;
+                    }));
+                }
+            }
+        } else {
+            List<String> lines = Files.readAllLines(input);
+            for (int i = 0; i < lines.size(); i++) {
+                String source = lines.get(i);
+                if (!source.trim().isEmpty()) {
+                    programs.add(Program.ofSource(input.getFileName() + ":" + (i + 1), source));
+                }
+            }
+        }
+        return run(programs, out);
+    }
+
+    public Stats run(List<Program> programs, PrintStream out) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "trefoil-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        int errors = 0;
+        int window = threads * 64;
+        ArrayDeque<Future<Outcome>> pending = new ArrayDeque<>();
+        try {
+            for (Program program : programs) {
+                if (pending.size() >= window) {
+                    errors += report(pending.removeFirst().get(), out);
+                }
+                pending.addLast(pool.submit(() -> evaluate(program)));
+            }
+            while (!pending.isEmpty()) {
+                errors += report(pending.removeFirst().get(), out);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Stats stats = new Stats(programs.size(), errors, System.nanoTime() - start);
+        out.println(stats);
+        out.flush();
+        return stats;
+    }
+
+    private static Outcome evaluate(Program program) {
+        try {
+            return new Outcome(program.name + ": " + program.evaluate.call().toString(), false);
+        } catch (Trefoil.TrefoilError e) {
+            return new Outcome(program.name + ": " + e.getMessage(), true);
+        } catch (IOException | UncheckedIOException e) {
+            return new Outcome(program.name + ": Error: can't read program: " + e.getMessage(), true);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns 1 for errors, so that they can be counted in the output thread.
+    private static int report(Outcome outcome, PrintStream out) {
+        out.println(outcome.line);
+        return outcome.error ? 1 : 0;
+    }
+
+    private static class Outcome {
+        private final String line;
+        private final boolean error;
+
+        private Outcome(String line, boolean error) {
+            this.line = line;
+            this.error = error;
+        }
+    }
+
+    /**
+     * One program of a batch. evaluate runs it on a fresh interpreter and returns that interpreter.
+     */
+    public static class Program {
+        private final String name;
+        private final Callable<FastTrefoil> evaluate;
+
+        public Program(String name, Callable<FastTrefoil> evaluate) {
+            this.name = name;
+            this.evaluate = evaluate;
+        }
+
+        public static Program ofSource(String name, String source) {
+            return new Program(name, () -> {
+                FastTrefoil trefoil = new FastTrefoil();
+                trefoil.interpret(source);
+                return trefoil;
+            });
+        }
+    }
+
+    public static class Stats {
+        public final int programs;
+        public final int errors;
+        public final long nanos;
+
+        public Stats(int programs, int errors, long nanos) {
+            this.programs = programs;
+            this.errors = errors;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%d programs, %d errors in %.3f s (%.0f programs/s)",
+                    programs, errors, seconds, seconds == 0 ? 0 : programs / seconds);
+        }
+    }
+}
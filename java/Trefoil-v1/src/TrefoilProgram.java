@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A Trefoil v1 program compiled to an int[] of opcodes, for programs that are run many times.
+ *
+ * Each instruction is an opcode, followed by an inline operand for the opcodes that take one.
+ * While compiling, common word sequences are fused into superinstructions:
+ * - "n +", "n -" and "n *" become a single ADD_CONST, SUB_CONST or MUL_CONST n,
+ * - "a b +", "a b -" and "a b *" are folded into a single PUSH of the result,
+ * - "n ." is dropped.
+ *
+ * Running a compiled program with FastTrefoil.run() leaves the stack exactly as interpreting the
+ * source would, and signals the same errors. The only observable difference is where the stack is
+ * left when an error is signaled part way through a fused sequence.
+ *
+ * A compiled program is immutable and can be run any number of times, on any number of
+ * interpreters, from any thread.
+ */
+public class TrefoilProgram {
+    static final int PUSH = 0;
+    static final int POP = 1;
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int ADD_CONST = 5;
+    static final int SUB_CONST = 6;
+    static final int MUL_CONST = 7;
+    static final int INVALID = 8;
+
+    final int[] code;
+    // Upper bound on how much the stack can grow while running, so that PUSH needn't check for room.
+    final int maxGrowth;
+
+    private TrefoilProgram(int[] code, int maxGrowth) {
+        this.code = code;
+        this.maxGrowth = maxGrowth;
+    }
+
+    public static TrefoilProgram compile(String source) {
+        Compiler compiler = new Compiler();
+        compiler.read(source);
+        return compiler.finish();
+    }
+
+    public static TrefoilProgram compile(InputStream in) {
+        Compiler compiler = new Compiler();
+        compiler.read(in);
+        return compiler.finish();
+    }
+
+    public static TrefoilProgram compile(Path file) throws IOException {
+        Compiler compiler = new Compiler();
+        compiler.read(file);
+        return compiler.finish();
+    }
+
+    /**
+     * Number of ints in the compiled code.
+     */
+    public int length() {
+        return code.length;
+    }
+
+    /**
+     * Returns a readable listing of the code, one instruction per line. Useful for debugging.
+     */
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            sb.append(pc).append(": ");
+            switch (code[pc]) {
+                case PUSH:
+                    sb.append("PUSH ").append(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case ADD_CONST:
+                    sb.append("ADD_CONST ").append(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case SUB_CONST:
+                    sb.append("SUB_CONST ").append(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case MUL_CONST:
+                    sb.append("MUL_CONST ").append(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case POP:
+                    sb.append("POP");
+                    pc++;
+                    break;
+                case ADD:
+                    sb.append("ADD");
+                    pc++;
+                    break;
+                case SUB:
+                    sb.append("SUB");
+                    pc++;
+                    break;
+                case MUL:
+                    sb.append("MUL");
+                    pc++;
+                    break;
+                default:
+                    sb.append("INVALID");
+                    pc++;
+                    break;
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class Compiler extends ByteTokenizer {
+        private int[] code = new int[256];
+        private int length = 0;
+        // Start offsets of the instructions emitted so far, so that the last two can be fused.
+        private int[] starts = new int[128];
+        private int count = 0;
+        private int pushes = 0;
+
+        @Override
+        protected void word(int kind, int value) {
+            switch (kind) {
+                case NUMBER:
+                    emit(PUSH, value);
+                    pushes++;
+                    return;
+                case DOT:
+                    if (lastIs(PUSH, 1)) {
+                        drop(1);
+                    } else {
+                        emit(POP);
+                    }
+                    return;
+                case PLUS:
+                    arithmetic(ADD, ADD_CONST);
+                    return;
+                case MINUS:
+                    arithmetic(SUB, SUB_CONST);
+                    return;
+                case TIMES:
+                    arithmetic(MUL, MUL_CONST);
+                    return;
+                default:
+                    emit(INVALID);
+            }
+        }
+
+        private void arithmetic(int op, int constOp) {
+            if (!lastIs(PUSH, 1)) {
+                emit(op);
+                return;
+            }
+            int b = code[starts[count - 1] + 1];
+            if (lastIs(PUSH, 2)) {
+                int a = code[starts[count - 2] + 1];
+                drop(2);
+                emit(PUSH, op == ADD ? a + b : op == SUB ? a - b : a * b);
+            } else {
+                drop(1);
+                emit(constOp, b);
+            }
+        }
+
+        // Is the n-th last instruction a given opcode?
+        private boolean lastIs(int opcode, int n) {
+            return count >= n && code[starts[count - n]] == opcode;
+        }
+
+        private void drop(int n) {
+            count -= n;
+            length = starts[count];
+        }
+
+        private void emit(int opcode) {
+            ensureRoom(1);
+            starts[count++] = length;
+            code[length++] = opcode;
+        }
+
+        private void emit(int opcode, int operand) {
+            ensureRoom(2);
+            starts[count++] = length;
+            code[length++] = opcode;
+            code[length++] = operand;
+        }
+
+        private void ensureRoom(int n) {
+            if (length + n > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+        }
+
+        TrefoilProgram finish() {
+            return new TrefoilProgram(Arrays.copyOf(code, length), pushes);
+        }
+    }
+}
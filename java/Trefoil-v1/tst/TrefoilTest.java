@@ -1,5 +1,16 @@
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static junit.framework.TestCase.*;
 
 public class TrefoilTest {
@@ -113,4 +124,170 @@ public class TrefoilTest {
         trefoil.interpret(".");
         trefoil.interpret("+");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void fastMatchesTrefoil() {
+        String[] programs = {
+                "1", "1 2 +", "2 3 *", "8 4 -", "; 1 2 3", "1 2 3 . . ", "4 5 6 - 7 8 9 . . .",
+                "4 5 * 6 7 * 8 ; 9 . . .", "5 ; ; 4 -", "5 2 + 3 . 2 4 * ; . ; 4 8 *",
+                "-7 +3 -", "2147483647 1 +", "-2147483648", "1\t2\n3\r\n*",
+        };
+        for (String program : programs) {
+            Trefoil trefoil = new Trefoil();
+            FastTrefoil fast = new FastTrefoil();
+            trefoil.interpret(program);
+            fast.interpret(program);
+            assertEquals(program, trefoil.toString(), fast.toString());
+            assertEquals(0, fast.size());
+        }
+    }
+
+    @Test
+    public void fastTracksStackAcrossCalls() {
+        FastTrefoil fast = new FastTrefoil();
+        fast.interpret("1 2 3 4 .");
+        fast.interpret("*");
+        assertEquals("1 6", fast.dump());
+        // dump() does not empty the stack, toString() does
+        assertEquals("1 6", fast.dump());
+        assertEquals(6, fast.pop());
+        assertEquals("1", fast.toString());
+        assertEquals("", fast.dump());
+    }
+
+    @Test
+    public void fastReadsStreamsAndFiles() throws IOException {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            program.append(i).append(" 1 + .\n");
+        }
+        program.append("40 2 +");
+
+        FastTrefoil fast = new FastTrefoil();
+        fast.interpret(new ByteArrayInputStream(program.toString().getBytes(StandardCharsets.UTF_8)));
+        assertEquals("42", fast.toString());
+
+        Path file = Files.createTempFile("trefoil", ".trefoil");
+        try {
+            Files.write(file, program.toString().getBytes(StandardCharsets.UTF_8));
+            fast.interpret(file);
+            assertEquals("42", fast.toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void fastErrors() {
+        String[] programs = {"p", "1 2 p", "*", "-", "+", "1 +", ".", "12a", "2147483648", "--1", ";p"};
+        for (String program : programs) {
+            try {
+                new FastTrefoil().interpret(program);
+                fail("expected an error for " + program);
+            } catch (Trefoil.TrefoilError e) {
+                // expected
+            }
+            if (!program.equals(".")) {
+                // Trefoil signals the same errors, except "." which fails with an EmptyStackException there
+                try {
+                    new Trefoil().interpret(program);
+                    fail("expected an error for " + program);
+                } catch (Trefoil.TrefoilError e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compiledMatchesTrefoil() {
+        String[] programs = {
+                "1", "1 2 +", "2 3 *", "8 4 -", "; 1 2 3", "1 2 3 . . ", "4 5 6 - 7 8 9 . . .",
+                "4 5 * 6 7 * 8 ; 9 . . .", "5 ; ; 4 -", "5 2 + 3 . 2 4 * ; . ; 4 8 *",
+                "1 2 3 4 * * *", "2147483647 1 + 3 *", "7 1 2 3 + - *",
+        };
+        for (String program : programs) {
+            Trefoil trefoil = new Trefoil();
+            FastTrefoil fast = new FastTrefoil();
+            trefoil.interpret(program);
+            fast.run(TrefoilProgram.compile(program));
+            assertEquals(program, trefoil.toString(), fast.toString());
+        }
+    }
+
+    @Test
+    public void compiledProgramIsReusable() {
+        TrefoilProgram increment = TrefoilProgram.compile("1 +");
+        FastTrefoil fast = new FastTrefoil();
+        fast.interpret("40");
+        fast.run(increment);
+        fast.run(increment);
+        assertEquals("42", fast.dump());
+
+        // superinstructions: the whole program folds into one constant
+        TrefoilProgram folded = TrefoilProgram.compile("1 2 + 3 * 4 5 . -");
+        assertEquals(2, folded.length());
+        fast.run(folded);
+        assertEquals("42 5", fast.toString());
+    }
+
+    @Test
+    public void compiledErrors() {
+        String[] programs = {"p", "1 2 p", "*", "-", "+", "1 +", ".", "3 . .", "1 2 3 + + +"};
+        for (String program : programs) {
+            TrefoilProgram compiled = TrefoilProgram.compile(program);
+            try {
+                new FastTrefoil().run(compiled);
+                fail("expected an error for " + program);
+            } catch (Trefoil.TrefoilError e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void batchKeepsProgramsApartAndInOrder() throws IOException {
+        List<TrefoilBatch.Program> programs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            programs.add(TrefoilBatch.Program.ofSource("p" + i, i % 10 == 0 ? i + " p" : i + " 1 +"));
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true, "UTF-8");
+        TrefoilBatch.Stats stats = new TrefoilBatch(4).run(programs, out);
+        assertEquals(1000, stats.programs);
+        assertEquals(100, stats.errors);
+
+        String[] lines = buffer.toString("UTF-8").split("\n");
+        assertEquals(1001, lines.length);
+        assertEquals("p0: Error: invalid character is input", lines[0]);
+        assertEquals("p1: 2", lines[1]);
+        assertEquals("p999: 1000", lines[999]);
+        assertTrue(lines[1000].startsWith("1000 programs, 100 errors"));
+    }
+
+    @Test
+    public void batchReadsDirectoriesAndLists() throws IOException {
+        Path dir = Files.createTempDirectory("trefoil");
+        Path list = Files.createTempFile("trefoil", ".txt");
+        try {
+            Files.write(dir.resolve("a.trefoil"), "1 2 +".getBytes(StandardCharsets.UTF_8));
+            Files.write(dir.resolve("b.trefoil"), ".".getBytes(StandardCharsets.UTF_8));
+            Files.write(list, Arrays.asList("2 3 *", "", "4 5"));
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buffer, true, "UTF-8");
+            new TrefoilBatch(2).run(dir, out);
+            new TrefoilBatch(2).run(list, out);
+            String[] lines = buffer.toString("UTF-8").split("\n");
+            assertEquals("a.trefoil: 3", lines[0]);
+            assertEquals("b.trefoil: Error: The stack is empty", lines[1]);
+            assertEquals(list.getFileName() + ":1: 6", lines[3]);
+            assertEquals(list.getFileName() + ":3: 4 5", lines[4]);
+        } finally {
+            Files.delete(dir.resolve("a.trefoil"));
+            Files.delete(dir.resolve("b.trefoil"));
+            Files.delete(dir);
+            Files.delete(list);
+        }
+    }
+}
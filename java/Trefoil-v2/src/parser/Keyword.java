@@ -0,0 +1,45 @@
+package parser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The keywords of Trefoil v2, see LANGUAGE.md: the symbol keywords true, false and nil, and the
+ * node head keywords.
+ */
+public enum Keyword {
+    TRUE("true"), FALSE("false"), NIL("nil"),
+    TEST("test"), DEFINE("define"), STRUCT("struct"), IMPORT("import"),
+    PLUS("+"), MINUS("-"), TIMES("*"), EQUALS("="), REM("rem"), IF("if"), LET("let"),
+    CONS("cons"), IS_NIL("nil?"), IS_CONS("cons?"), CAR("car"), CDR("cdr"), MATCH("match"),
+    DELAY("delay"), FORCE("force"), LCONS("lcons"),
+    VECTOR("vector"), VECTOR_REF("vector-ref"), VECTOR_LENGTH("vector-length"), VECTOR_SET("vector-set"),
+    LIST_TO_VECTOR("list->vector"), VECTOR_TO_LIST("vector->list"),
+    MAP_EMPTY("map-empty"), MAP_PUT("map-put"), MAP_GET("map-get"), MAP_CONTAINS("map-contains?"),
+    MAP_REMOVE("map-remove"), MAP_SIZE("map-size"), ALIST_TO_MAP("alist->map");
+
+    private static final Map<String, Keyword> BY_SPELLING = new HashMap<>();
+
+    static {
+        for (Keyword k : values()) {
+            BY_SPELLING.put(k.spelling, k);
+        }
+    }
+
+    private final String spelling;
+
+    Keyword(String spelling) {
+        this.spelling = spelling;
+    }
+
+    public String getSpelling() {
+        return spelling;
+    }
+
+    /**
+     * Returns the keyword spelled s, or null if s is not a keyword.
+     */
+    public static Keyword of(String s) {
+        return BY_SPELLING.get(s);
+    }
+}
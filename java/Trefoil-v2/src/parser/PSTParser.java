@@ -27,6 +27,12 @@ public class PSTParser {
         return new PSTParser(Tokenizer.tokenizeString(s));
     }
 
+    // The span of a token of the given length. Tokens never contain a newline.
+    private static long span(Tokenizer.Token token, int length) {
+        return SourceSpan.of(token.getLineNumber(), token.getColumnNumber(),
+                token.getLineNumber(), token.getColumnNumber() + length);
+    }
+
     /**
      * Pulls tokens off the input stream until exactly one PST has been parsed, then returns it.
      */
@@ -46,7 +52,10 @@ public class PSTParser {
             if (token instanceof Tokenizer.Token.PunctuationToken) {
                 Tokenizer.Token.PunctuationToken punctuationToken = (Tokenizer.Token.PunctuationToken) token;
                 if (punctuationToken.getPunctuation().equals("(")) {
-                    stack.push(new ParenthesizedSymbolTree.Node(new ArrayList<>()));
+                    ParenthesizedSymbolTree.Node node = new ParenthesizedSymbolTree.Node(new ArrayList<>());
+                    // The end of the span is filled in at the matching close paren.
+                    node.setSpan(span(token, 1));
+                    stack.push(node);
                 } else if (punctuationToken.getPunctuation().equals(")")) {
                     // We want to pop the stack. There are three cases:
                     // (1) The stack has nothing on it. We saw a close paren before the first open paren.
@@ -57,6 +66,7 @@ public class PSTParser {
                         throw new Trefoil2.TrefoilError.ParenthesizedSyntaxError("Too many close parentheses: " + token);
                     }
                     ParenthesizedSymbolTree.Node node = stack.pop();
+                    node.setSpan(SourceSpan.join(node.getSpan(), span(token, 1)));
                     if (stack.size() == 0) {
                         return node;
                     } else {
@@ -69,7 +79,8 @@ public class PSTParser {
                 // If there is nothing on the stack, then this symbol is the whole PST. Return it.
                 // Otherwise, append it to the parent node on the top of the stack.
                 Tokenizer.Token.SymbolToken symbolToken = (Tokenizer.Token.SymbolToken) token;
-                ParenthesizedSymbolTree.Symbol symbol = new ParenthesizedSymbolTree.Symbol(symbolToken.getSymbol());
+                ParenthesizedSymbolTree.Symbol symbol = new ParenthesizedSymbolTree.Symbol(symbolToken);
+                symbol.setSpan(span(token, symbolToken.getSymbol().length()));
                 if (stack.size() == 0) {
                     return symbol;
                 } else {
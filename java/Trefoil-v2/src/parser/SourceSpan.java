@@ -0,0 +1,61 @@
+package parser;
+
+/**
+ * A region of source text, packed into a single long so that every PST, Expression and Binding
+ * node can carry one for the cost of a field.
+ *
+ * From the most significant bits down: start line (20 bits), start column (12 bits), end line
+ * (20 bits), end column (12 bits). Lines start at 1 and columns at 0, as in PeekCharReader; the
+ * end is exclusive. Lines and columns too large to fit are clamped. 0 (UNKNOWN) means that the
+ * node was not parsed from source, for example because it was created by the interpreter.
+ */
+public final class SourceSpan {
+    public static final long UNKNOWN = 0;
+
+    private static final int LINE_BITS = 20;
+    private static final int COLUMN_BITS = 12;
+    private static final int MAX_LINE = (1 << LINE_BITS) - 1;
+    private static final int MAX_COLUMN = (1 << COLUMN_BITS) - 1;
+    private static final int POSITION_BITS = LINE_BITS + COLUMN_BITS;
+
+    private SourceSpan() {
+    }
+
+    private static long position(int line, int column) {
+        return ((long) Math.min(Math.max(line, 0), MAX_LINE) << COLUMN_BITS) | Math.min(Math.max(column, 0), MAX_COLUMN);
+    }
+
+    public static long of(int startLine, int startColumn, int endLine, int endColumn) {
+        return (position(startLine, startColumn) << POSITION_BITS) | position(endLine, endColumn);
+    }
+
+    /**
+     * The span from the start of first to the end of last.
+     */
+    public static long join(long first, long last) {
+        return (first & ~((1L << POSITION_BITS) - 1)) | (last & ((1L << POSITION_BITS) - 1));
+    }
+
+    public static int startLine(long span) {
+        return (int) (span >>> (POSITION_BITS + COLUMN_BITS));
+    }
+
+    public static int startColumn(long span) {
+        return (int) (span >>> POSITION_BITS) & MAX_COLUMN;
+    }
+
+    public static int endLine(long span) {
+        return (int) (span >>> COLUMN_BITS) & MAX_LINE;
+    }
+
+    public static int endColumn(long span) {
+        return (int) span & MAX_COLUMN;
+    }
+
+    /**
+     * Formats the start of span as "line:column", with columns counted from 1 like editors do.
+     */
+    public static String toString(long span) {
+        return span == UNKNOWN ? "?" : startLine(span) + ":" + (startColumn(span) + 1);
+    }
+}
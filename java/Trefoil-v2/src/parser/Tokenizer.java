@@ -23,14 +23,19 @@ public class Tokenizer {
      * Represents one token of a parenthesized-symbol input.
      *
      * A token is one of the following
-     * - a SymbolToken (any word)
+     * - a SymbolToken (any word), which is more precisely
+     *   - an IntegerToken if the word is an integer literal, with its value already computed,
+     *   - a KeywordToken if the word is a Keyword,
+     *   - a plain SymbolToken (an identifier) otherwise,
      * - a PunctuationToken (open or close parenthesis)
      * - EOFToken (end of input)
      *
      */
     @ToString
     public static abstract class Token {
+        @Getter
         private final int lineNumber;
+        @Getter
         private final int columnNumber;
 
         private Token(int lineNumber, int columnNumber) {
@@ -54,6 +59,30 @@ public class Tokenizer {
             }
         }
 
+        @EqualsAndHashCode(callSuper = true)
+        @ToString(callSuper = true)
+        public static class IntegerToken extends SymbolToken {
+            @Getter
+            private final int value;
+
+            public IntegerToken(String symbol, int value, int lineNumber, int columnNumber) {
+                super(symbol, lineNumber, columnNumber);
+                this.value = value;
+            }
+        }
+
+        @EqualsAndHashCode(callSuper = true)
+        @ToString(callSuper = true)
+        public static class KeywordToken extends SymbolToken {
+            @Getter
+            private final Keyword keyword;
+
+            public KeywordToken(String symbol, Keyword keyword, int lineNumber, int columnNumber) {
+                super(symbol, lineNumber, columnNumber);
+                this.keyword = keyword;
+            }
+        }
+
         @EqualsAndHashCode(callSuper = false)
         @ToString(callSuper = true)
         public static class PunctuationToken extends Token {
@@ -83,6 +112,58 @@ public class Tokenizer {
         }
     }
 
+    // Classes of the ASCII characters, looked up with one array access per character while scanning.
+    private static final byte OTHER = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte DELIMITER = 2;  // ( ) ;
+    private static final byte DIGIT = 3;
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    static {
+        for (int c = 0; c < CHAR_CLASS.length; c++) {
+            CHAR_CLASS[c] = Character.isWhitespace(c) ? WHITESPACE : OTHER;
+        }
+        CHAR_CLASS['('] = DELIMITER;
+        CHAR_CLASS[')'] = DELIMITER;
+        CHAR_CLASS[';'] = DELIMITER;
+        for (int c = '0'; c <= '9'; c++) {
+            CHAR_CLASS[c] = DIGIT;
+        }
+    }
+
+    private static int charClass(int c) {
+        if (c < CHAR_CLASS.length) {
+            return CHAR_CLASS[c];
+        }
+        return Character.isWhitespace(c) ? WHITESPACE : OTHER;
+    }
+
+    /**
+     * Returns the token for the word symbol: an IntegerToken if it is an optional sign followed by
+     * decimal digits and fits in an int, a KeywordToken if it is a keyword, and a SymbolToken otherwise.
+     */
+    public static Token.SymbolToken symbolToken(String symbol, int lineNumber, int columnNumber) {
+        int n = symbol.length();
+        boolean negative = n > 0 && symbol.charAt(0) == '-';
+        int i = n > 0 && (negative || symbol.charAt(0) == '+') ? 1 : 0;
+        if (i < n) {
+            long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+            long magnitude = 0;
+            while (i < n && charClass(symbol.charAt(i)) == DIGIT && magnitude <= limit) {
+                magnitude = magnitude * 10 + (symbol.charAt(i) - '0');
+                i++;
+            }
+            if (i == n && magnitude <= limit) {
+                return new Token.IntegerToken(symbol, (int) (negative ? -magnitude : magnitude), lineNumber, columnNumber);
+            }
+        }
+        Keyword keyword = Keyword.of(symbol);
+        if (keyword != null) {
+            return new Token.KeywordToken(symbol, keyword, lineNumber, columnNumber);
+        }
+        return new Token.SymbolToken(symbol, lineNumber, columnNumber);
+    }
+
     @Getter
     private Token next;  // initially null, indicating not-yet-consumed-any-input
 
@@ -103,7 +184,7 @@ public class Tokenizer {
             if (c == -1) {
                 next = new Token.EOFToken(reader.getLineNumber(), reader.getColumnNumber());
                 break;
-            } else if (Character.isWhitespace(c)) {  // skip whitespace
+            } else if (charClass(c) == WHITESPACE) {  // skip whitespace
                 reader.advance();
                 // go around the loop
             } else if (c == '(') {
@@ -129,9 +210,9 @@ public class Tokenizer {
                     symbol.append((char) c);
                     c = reader.advance();
                 // WARNING: the following line should be kept in sync with the if-else chain above
-                } while (c != -1 && !Character.isWhitespace(c) && c != '(' && c != ')' && c != ';');
+                } while (c != -1 && charClass(c) != WHITESPACE && charClass(c) != DELIMITER);
 
-                next = new Token.SymbolToken(symbol.toString(), lineNumber, columnNumber);
+                next = symbolToken(symbol.toString(), lineNumber, columnNumber);
                 break;
             }
         }
@@ -1,12 +1,19 @@
 
 package trefoil2;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import org.junit.Test;
+import parser.Keyword;
+import parser.SourceSpan;
 import parser.Tokenizer;
 
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -16,6 +23,12 @@ import java.util.stream.Collectors;
  */
 @Data
 public abstract class Binding {
+    // Where the binding was in the source, see SourceSpan. Not part of the binding itself.
+    @Setter(AccessLevel.PACKAGE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long span = SourceSpan.UNKNOWN;
+
     @EqualsAndHashCode(callSuper = true)
     @Data
     public static class VariableBinding extends Binding {
@@ -35,6 +48,25 @@ public abstract class Binding {
         private final String funname;
         private final List<String> argnames;
         private final Expression body;
+
+        // See FreeVariables. Computed on first use; computing it twice in a race is harmless.
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private volatile Set<String> freeNames;
+
+        /**
+         * Returns the names the body refers to other than the parameters.
+         */
+        public Set<String> getFreeNames() {
+            Set<String> names = freeNames;
+            if (names == null) {
+                names = FreeVariables.of(this);
+                freeNames = names;
+            }
+            return names;
+        }
     }
 
     // TODO: define a new kind of binding called TestBinding that takes an expression
@@ -45,6 +77,21 @@ public abstract class Binding {
         private final Expression expression;
     }
 
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class StructBinding extends Binding {
+        private final String name;
+        private final List<String> fieldNames;
+    }
+
+    /**
+     * (import "path"): binds everything the module in file path defines, see ModuleCache.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class ImportBinding extends Binding {
+        private final String path;
+    }
 
     /**
      * Tries to convert a PST to a Binding.
@@ -54,6 +101,18 @@ public abstract class Binding {
      * If conversion fails, throws TrefoilError.AbstractSyntaxError with a nice message.
      */
     public static Binding parsePST(ParenthesizedSymbolTree pst) {
+        Binding b;
+        try {
+            b = parsePSTWithoutSpan(pst);
+        } catch (Trefoil2.TrefoilError.AbstractSyntaxError error) {
+            error.locate(pst.getSpan());
+            throw error;
+        }
+        b.setSpan(pst.getSpan());
+        return b;
+    }
+
+    private static Binding parsePSTWithoutSpan(ParenthesizedSymbolTree pst) {
         // The pst is either a symbol or a node.
         // The only way a symbol can be a binding is as a top-level expression.
         if (pst instanceof ParenthesizedSymbolTree.Symbol) {
@@ -65,8 +124,9 @@ public abstract class Binding {
         if (children.size() == 0) {
             throw new Trefoil2.TrefoilError.AbstractSyntaxError("Unexpected empty pair of parentheses.");
         }
-        String head = ((ParenthesizedSymbolTree.Symbol) children.get(0)).getSymbol();
-        if (head.equals("define")) {
+        // The tokenizer has already recognized the binding keywords.
+        Keyword head = ((ParenthesizedSymbolTree.Symbol) children.get(0)).getKeyword();
+        if (head == Keyword.DEFINE) {
             // If the head is define, it's either a variable binding or a function binding.
             if (children.size() - 1 != 2) {
                 throw new Trefoil2.TrefoilError.AbstractSyntaxError("Top-level define expects two arguments.");
@@ -89,7 +149,7 @@ public abstract class Binding {
                         Expression.parsePST(children.get(2)));
             }
         // TODO: uncomment when ready to implement test binding
-        } else if (head.equals("test")) {
+        } else if (head == Keyword.TEST) {
             // TODO: parse test binding here
             // Hint: Check that there is exactly one child, then use trefoil2.Expression.parsePST on the child.
             //       Remember that the children list includes the head, so the real children start at
@@ -99,6 +159,27 @@ public abstract class Binding {
                 return new TestBinding(e);
             }
             throw new Trefoil2.TrefoilError.AbstractSyntaxError("Children size should be 2");
+        } else if (head == Keyword.STRUCT) {
+            if (children.size() - 1 < 1 || !children.stream().allMatch(x -> x instanceof ParenthesizedSymbolTree.Symbol)) {
+                throw new Trefoil2.TrefoilError.AbstractSyntaxError("Malformed struct binding: expected a name and field names");
+            }
+            List<String> fieldNames = children.subList(2, children.size()).stream()
+                    .map(x -> ((ParenthesizedSymbolTree.Symbol) x).getSymbol())
+                    .collect(Collectors.toList());
+            if (fieldNames.stream().distinct().count() != fieldNames.size()) {
+                throw new Trefoil2.TrefoilError.AbstractSyntaxError("Field names of a struct must be distinct");
+            }
+            return new StructBinding(((ParenthesizedSymbolTree.Symbol) children.get(1)).getSymbol(), fieldNames);
+        } else if (head == Keyword.IMPORT) {
+            if (children.size() - 1 != 1 || !(children.get(1) instanceof ParenthesizedSymbolTree.Symbol)) {
+                throw new Trefoil2.TrefoilError.AbstractSyntaxError("Import expects one argument, the path of a module");
+            }
+            // There are no string literals: the path is a single symbol, which may be in double quotes.
+            String path = ((ParenthesizedSymbolTree.Symbol) children.get(1)).getSymbol();
+            if (path.length() >= 2 && path.startsWith("\"") && path.endsWith("\"")) {
+                path = path.substring(1, path.length() - 1);
+            }
+            return new ImportBinding(path);
         } else {
             // If the head is not recognized, the whole PST represents a top-level expression.
             return new TopLevelExpression(Expression.parsePST(pst));
@@ -0,0 +1,424 @@
+package trefoil2;
+
+import parser.SourceSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A function body compiled to bytecode for the VirtualMachine, the representation Tiering promotes
+ * hot functions to by default.
+ *
+ * The code is a dense int[]: each instruction is an opcode followed by its operands, all ints.
+ * Whatever an operand cannot hold (values, names, the functions called, messages) goes to the
+ * constant pool and the operand is its index there. The parameters of the function are its
+ * locals, numbered in order; the VM keeps them at the bottom of the function's part of the
+ * operand stack, where the caller pushed the arguments.
+ *
+ * The compiler follows CompiledFunction: variables and functions of the defining environment are
+ * resolved once, at compile time, nodes without a bytecode form are handed back to the
+ * interpreter (INTERPRET), and the code counts the same steps and allocations and prints the same
+ * lines as CompiledFunction does. Every node still counts a step, but the steps of the nodes whose
+ * code starts with the code of their first operand are added to the first instruction that
+ * pushes something (CONST, LOAD, NIL) instead of costing a dispatch of their own; nothing happens
+ * in between, so limits are exceeded at the same point as in the interpreter. A call in tail
+ * position (the body itself, or a branch of an if in tail position) is a TAILCALL.
+ *
+ * disassemble() lists the instructions, for debugging the compiler and the VM.
+ */
+public final class Bytecode {
+    // Opcodes, and their operands. "steps" is the number of steps counted before the instruction runs.
+    static final int CONST = 0;          // index, steps: push constants[index]
+    static final int LOAD = 1;           // local, steps: push a parameter
+    static final int NIL = 2;            // steps: push a new nil
+    static final int STEP = 3;           // steps
+    static final int ADD = 4;            // checked: pop 2 integers, push their sum (checked: operands proven integers)
+    static final int SUB = 5;            // checked
+    static final int MUL = 6;            // checked
+    static final int REM = 7;            // checked
+    static final int EQ = 8;             // checked
+    static final int CONS = 9;           // pop 2, push a cons of them
+    static final int CAR = 10;           // force, pop a cons, push its left
+    static final int CDR = 11;           // force, pop a cons, push its right, forced
+    static final int IS_NIL = 12;
+    static final int IS_CONS = 13;
+    static final int FORCE = 14;
+    static final int JUMP = 15;          // target
+    static final int JUMP_IF_FALSE = 16; // target: pop, and jump if it is false (anything else counts as true)
+    static final int CALL = 17;          // function, argc, site: call constants[function] on the top argc values
+    static final int TAILCALL = 18;      // function, argc, site: the same, returning what it returns
+    static final int STRUCT = 19;        // type, argc: pop argc values, push a struct of them
+    static final int NATIVE = 20;        // name, argc: call a built-in list function
+    static final int PRINT_LET = 21;     // name: print "name = v" for the value v on top, which stays
+    static final int INTERPRET = 22;     // expression: push the value of constants[expression], by the interpreter
+    static final int ERROR = 23;         // message: throw a RuntimeError
+    static final int RETURN = 24;        // pop the result and return it
+
+    private static final String[] NAMES = {
+            "CONST", "LOAD", "NIL", "STEP", "ADD", "SUB", "MUL", "REM", "EQ", "CONS", "CAR", "CDR",
+            "IS_NIL", "IS_CONS", "FORCE", "JUMP", "JUMP_IF_FALSE", "CALL", "TAILCALL", "STRUCT", "NATIVE",
+            "PRINT_LET", "INTERPRET", "ERROR", "RETURN"
+    };
+    private static final int[] OPERANDS = {2, 2, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 1, 1, 3, 3, 2, 2, 1, 1, 1, 0};
+
+    private final Interpreter.DynamicEnvironment.Entry.FunctionEntry function;
+    private final String[] parameters;
+    private final int[] code;
+    private final Object[] constants;
+    private final int maxStack;
+
+    private Bytecode(Interpreter.DynamicEnvironment.Entry.FunctionEntry function, String[] parameters,
+                     int[] code, Object[] constants, int maxStack) {
+        this.function = function;
+        this.parameters = parameters;
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Compiles the body of function.
+     */
+    public static Bytecode compile(Interpreter.DynamicEnvironment.Entry.FunctionEntry function) {
+        return new Compiler(function).compile();
+    }
+
+    /**
+     * Calls the function this is the code of on args, in the VirtualMachine, as a call from
+     * Trefoil would: the parameters are printed, and the call has a frame on the Trefoil stack.
+     */
+    public Expression invoke(List<Expression> args) {
+        ExecutionContext context = ExecutionContext.current();
+        if (args.size() != parameters.length) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Arguments and parameters are sequences of different lengths");
+        }
+        context.allocate(args.size());
+        context.pushFrame(getName(), SourceSpan.UNKNOWN);
+        try {
+            return VirtualMachine.run(this, args, context);
+        } finally {
+            context.popFrame();
+        }
+    }
+
+    public String getName() {
+        return function.getFunctionBinding().getFunname();
+    }
+
+    String[] getParameters() {
+        return parameters;
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    Object[] getConstants() {
+        return constants;
+    }
+
+    /**
+     * Returns how many values the function needs on the operand stack, its parameters included.
+     */
+    int getMaxStack() {
+        return maxStack;
+    }
+
+    // The environment the interpreter would evaluate the body in, for INTERPRET.
+    Interpreter.DynamicEnvironment environment(Expression[] stack, int base) {
+        Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment(function.getDefiningEnvironment());
+        for (int i = 0; i < parameters.length; i++) {
+            env.getMap().put(parameters[i], Interpreter.DynamicEnvironment.Entry.variable(stack[base + i]));
+        }
+        return env;
+    }
+
+    /**
+     * Returns the instructions, one per line, with their offsets and what their constants are.
+     */
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("function ").append(getName()).append(" (").append(String.join(" ", parameters)).append("): ")
+                .append(code.length).append(" ints, ").append(constants.length).append(" constants, stack ")
+                .append(maxStack).append('\n');
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            int[] operands = Arrays.copyOfRange(code, pc + 1, pc + 1 + OPERANDS[op]);
+            sb.append(String.format("%5d  %s", pc, NAMES[op]));
+            for (int i = 0; i < operands.length; i++) {
+                // Operands line up in a column.
+                sb.append(i == 0 ? " ".repeat(15 - NAMES[op].length()) : " ").append(operands[i]);
+            }
+            String comment = comment(op, operands);
+            if (comment != null) {
+                sb.append("  ; ").append(comment);
+            }
+            sb.append('\n');
+            pc += 1 + operands.length;
+        }
+        return sb.toString();
+    }
+
+    private String comment(int op, int[] operands) {
+        switch (op) {
+            case CONST:
+            case INTERPRET:
+                return String.valueOf(constants[operands[0]]);
+            case LOAD:
+                return parameters[operands[0]];
+            case CALL:
+            case TAILCALL:
+                return ((Interpreter.DynamicEnvironment.Entry.FunctionEntry) constants[operands[0]]).getFunctionBinding().getFunname()
+                        + " at " + SourceSpan.toString((Long) constants[operands[2]]);
+            case STRUCT:
+                return ((StructType) constants[operands[0]]).getName();
+            case NATIVE:
+            case PRINT_LET:
+                return (String) constants[operands[0]];
+            case ERROR:
+                return "\"" + constants[operands[0]] + "\"";
+            default:
+                return null;
+        }
+    }
+
+    private static class Compiler {
+        private final Interpreter.DynamicEnvironment.Entry.FunctionEntry function;
+        private final String[] parameters;
+        private int[] code = new int[64];
+        private int length;
+        private final List<Object> constants = new ArrayList<>();
+        // Steps of nodes whose code has not started yet, see the class comment.
+        private int pendingSteps;
+        private int depth;
+        private int maxStack;
+
+        Compiler(Interpreter.DynamicEnvironment.Entry.FunctionEntry function) {
+            this.function = function;
+            this.parameters = function.getFunctionBinding().getArgnames().toArray(new String[0]);
+            this.depth = parameters.length;
+            this.maxStack = depth;
+        }
+
+        Bytecode compile() {
+            compile(function.getFunctionBinding().getBody(), true);
+            emit(RETURN);
+            pop(1);
+            return new Bytecode(function, parameters, Arrays.copyOf(code, length), constants.toArray(), maxStack);
+        }
+
+        private void compile(Expression e, boolean tail) {
+            if (e instanceof Expression.IntegerLiteral || e instanceof Expression.BooleanLiteral
+                    || e instanceof Expression.Symbol || e instanceof Expression.StructValue
+                    || e instanceof Expression.Thunk || e instanceof Expression.VectorValue
+                    || e instanceof Expression.MapValue) {
+                pushConstant(e);
+            } else if (e instanceof Expression.VariableReference) {
+                String name = ((Expression.VariableReference) e).getVarname();
+                int slot = slot(name);
+                if (slot >= 0) {
+                    emit(LOAD, slot, takeSteps() + 1);
+                    push();
+                    return;
+                }
+                Interpreter.DynamicEnvironment.Entry entry = function.getDefiningEnvironment().getMap().get(name);
+                if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                    pushConstant(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue());
+                } else {
+                    error("The variable is not bound");
+                }
+            } else if (e instanceof Expression.Plus) {
+                binary(e, ((Expression.Plus) e).getLeft(), ((Expression.Plus) e).getRight(), ADD);
+            } else if (e instanceof Expression.Minus) {
+                binary(e, ((Expression.Minus) e).getLeft(), ((Expression.Minus) e).getRight(), SUB);
+            } else if (e instanceof Expression.Times) {
+                binary(e, ((Expression.Times) e).getLeft(), ((Expression.Times) e).getRight(), MUL);
+            } else if (e instanceof Expression.Remainder) {
+                binary(e, ((Expression.Remainder) e).getLeft(), ((Expression.Remainder) e).getRight(), REM);
+            } else if (e instanceof Expression.Equals) {
+                binary(e, ((Expression.Equals) e).getLeft(), ((Expression.Equals) e).getRight(), EQ);
+            } else if (e instanceof Expression.If) {
+                Expression.If i = (Expression.If) e;
+                pendingSteps++;
+                compile(i.getLeft(), false);
+                emit(JUMP_IF_FALSE, -1);
+                pop(1);
+                int jumpIfFalse = length - 1;
+                compile(i.getMiddle(), tail);
+                emit(JUMP, -1);
+                int jump = length - 1;
+                // Each branch leaves one value; only one of them runs.
+                pop(1);
+                code[jumpIfFalse] = length;
+                compile(i.getRight(), tail);
+                code[jump] = length;
+            } else if (e instanceof Expression.Cons) {
+                pendingSteps++;
+                compile(((Expression.Cons) e).getLeft(), false);
+                compile(((Expression.Cons) e).getRight(), false);
+                emit(CONS);
+                pop(1);
+            } else if (e instanceof Expression.Nil) {
+                emit(NIL, takeSteps() + 1);
+                push();
+            } else if (e instanceof Expression.isNil) {
+                unary(((Expression.isNil) e).getLeft(), IS_NIL);
+            } else if (e instanceof Expression.isCons) {
+                unary(((Expression.isCons) e).getLeft(), IS_CONS);
+            } else if (e instanceof Expression.Car) {
+                unary(((Expression.Car) e).getLeft(), CAR);
+            } else if (e instanceof Expression.Cdr) {
+                unary(((Expression.Cdr) e).getLeft(), CDR);
+            } else if (e instanceof Expression.Force) {
+                unary(((Expression.Force) e).getArgument(), FORCE);
+            } else if (e instanceof Expression.Let) {
+                // A let evaluates to the value it binds, see Interpreter.
+                Expression.Let l = (Expression.Let) e;
+                pendingSteps++;
+                compile(l.getLeft(), false);
+                emit(PRINT_LET, constant(l.getString()));
+            } else if (e instanceof Expression.Function) {
+                call((Expression.Function) e, tail);
+            } else {
+                interpreted(e);
+            }
+        }
+
+        private void binary(Expression e, Expression left, Expression right, int op) {
+            pendingSteps++;
+            compile(left, false);
+            compile(right, false);
+            emit(op, e.isTypeChecked() ? 1 : 0);
+            pop(1);
+        }
+
+        private void unary(Expression argument, int op) {
+            pendingSteps++;
+            compile(argument, false);
+            emit(op);
+        }
+
+        private void call(Expression.Function call, boolean tail) {
+            String name = call.getString();
+            int arity = call.getExpressions().size();
+            if (slot(name) >= 0) {
+                // A parameter hides the function of the same name.
+                error("The variable doesn't contain");
+                return;
+            }
+            Interpreter.DynamicEnvironment.Entry entry = function.getDefiningEnvironment().getMap().get(name);
+            if (entry instanceof Interpreter.DynamicEnvironment.Entry.StructEntry) {
+                StructType type = ((Interpreter.DynamicEnvironment.Entry.StructEntry) entry).getType();
+                if (arity != type.getArity()) {
+                    error("Struct " + type.getName() + " expects " + type.getArity() + " fields but got " + arity);
+                    return;
+                }
+                arguments(call);
+                emit(STRUCT, constant(type), arity);
+            } else if (entry == null && NativeLists.isNative(name)) {
+                if (name.equals("map") || name.equals("filter") || name.equals("fold") || name.equals("pfold")) {
+                    // These look their function argument up by name, so leave them to the interpreter.
+                    interpreted(call);
+                    return;
+                }
+                arguments(call);
+                emit(NATIVE, constant(name), arity);
+            } else if (entry == null) {
+                error("Function " + name + " is not defined");
+                return;
+            } else if (!(entry instanceof Interpreter.DynamicEnvironment.Entry.FunctionEntry)) {
+                error("The variable doesn't contain");
+                return;
+            } else if (((Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry).getFunctionBinding().getArgnames().size() != arity) {
+                error("Arguments and parameters are sequences of different lengths");
+                return;
+            } else {
+                arguments(call);
+                emit(tail ? TAILCALL : CALL, constant(entry), arity, constant(call.getSpan()));
+            }
+            pop(arity);
+            push();
+        }
+
+        // The call itself counts a step before its arguments are evaluated.
+        private void arguments(Expression.Function call) {
+            pendingSteps++;
+            for (Expression argument : call.getExpressions()) {
+                compile(argument, false);
+            }
+            flushSteps();
+        }
+
+        private void pushConstant(Expression value) {
+            emit(CONST, constant(value), takeSteps() + 1);
+            push();
+        }
+
+        // An error the interpreter raises when it reaches the node, before evaluating anything below it.
+        private void error(String message) {
+            pendingSteps++;
+            flushSteps();
+            emit(ERROR, constant(message));
+            push();
+        }
+
+        private void interpreted(Expression e) {
+            // The interpreter counts the step of e itself.
+            flushSteps();
+            emit(INTERPRET, constant(e));
+            push();
+        }
+
+        private void flushSteps() {
+            if (pendingSteps > 0) {
+                emit(STEP, takeSteps());
+            }
+        }
+
+        private int takeSteps() {
+            int steps = pendingSteps;
+            pendingSteps = 0;
+            return steps;
+        }
+
+        private int slot(String name) {
+            // The last parameter of a name wins, as in extendVariables. Names are distinct anyway.
+            for (int i = parameters.length - 1; i >= 0; i--) {
+                if (parameters[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int constant(Object value) {
+            // Pools are small, and values must not be merged by equals: two equal structs may be of different types.
+            for (int i = 0; i < constants.size(); i++) {
+                if (constants.get(i) == value) {
+                    return i;
+                }
+            }
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        private void emit(int... ints) {
+            if (length + ints.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + ints.length));
+            }
+            System.arraycopy(ints, 0, code, length, ints.length);
+            length += ints.length;
+        }
+
+        private void push() {
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        private void pop(int n) {
+            depth -= n;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A function body translated into a tree of closures, the representation Tiering promotes hot
+ * functions to when its target is CLOSURES (see Bytecode for the default).
+ *
+ * Interpreting a call copies the whole defining environment to bind the parameters, and every
+ * node then goes through the interpreter's chain of instanceof tests and looks its variables and
+ * functions up by name. A compiled body does that work once, when it is compiled:
+ * - parameters live in an array, in slots fixed at compile time,
+ * - other variables and the functions called come from the defining environment, which never
+ *   changes once the function exists, so they are looked up once and kept,
+ * - each node is a closure that directly runs the code for its kind of node.
+ *
+ * Compiled code behaves like the interpreter: the same values, the same errors and the same
+ * "x = v" lines when parameters and let-variables are bound. It still counts steps and
+ * allocations and pushes call frames, so EvaluationLimits and the Profiler keep working, but it
+ * skips the steps the interpreter spends evaluating values a second time, and the per-node counts
+ * of Metrics. Nodes without a compiled form (matches, delays, vectors, ...) are handed back to
+ * the interpreter, in an environment rebuilt from the parameters.
+ */
+final class CompiledFunction {
+    /**
+     * One compiled node. frame holds the values of the parameters.
+     */
+    interface Code {
+        Expression run(Expression[] frame, ExecutionContext context);
+    }
+
+    private final Interpreter.DynamicEnvironment.Entry.FunctionEntry function;
+    private final String[] parameters;
+    private final Code body;
+
+    private CompiledFunction(Interpreter.DynamicEnvironment.Entry.FunctionEntry function, String[] parameters) {
+        this.function = function;
+        this.parameters = parameters;
+        this.body = compile(function.getFunctionBinding().getBody());
+    }
+
+    static CompiledFunction compile(Interpreter.DynamicEnvironment.Entry.FunctionEntry function) {
+        return new CompiledFunction(function, function.getFunctionBinding().getArgnames().toArray(new String[0]));
+    }
+
+    /**
+     * Runs the body on already evaluated arguments. The caller has pushed the call frame.
+     */
+    Expression invoke(List<Expression> args, ExecutionContext context) {
+        Expression[] frame = args.toArray(new Expression[0]);
+        for (int i = 0; i < frame.length; i++) {
+            context.getOut().println(parameters[i] + " = " + frame[i]);
+        }
+        return body.run(frame, context);
+    }
+
+    // The environment the interpreter would evaluate the body in, without printing the bindings again.
+    private Interpreter.DynamicEnvironment environment(Expression[] frame) {
+        Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment(function.getDefiningEnvironment());
+        for (int i = 0; i < frame.length; i++) {
+            env.getMap().put(parameters[i], Interpreter.DynamicEnvironment.Entry.variable(frame[i]));
+        }
+        return env;
+    }
+
+    private int slot(String name) {
+        // The last parameter of a name wins, as in extendVariables. Names are distinct anyway.
+        for (int i = parameters.length - 1; i >= 0; i--) {
+            if (parameters[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Code compile(Expression e) {
+        if (e instanceof Expression.IntegerLiteral || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Symbol || e instanceof Expression.StructValue
+                || e instanceof Expression.Thunk || e instanceof Expression.VectorValue
+                || e instanceof Expression.MapValue) {
+            return (frame, context) -> {
+                context.step();
+                return e;
+            };
+        } else if (e instanceof Expression.VariableReference) {
+            String name = ((Expression.VariableReference) e).getVarname();
+            int slot = slot(name);
+            if (slot >= 0) {
+                return (frame, context) -> {
+                    context.step();
+                    return frame[slot];
+                };
+            }
+            Interpreter.DynamicEnvironment.Entry entry = function.getDefiningEnvironment().getMap().get(name);
+            if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                Expression value = ((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue();
+                return (frame, context) -> {
+                    context.step();
+                    return value;
+                };
+            }
+            return error("The variable is not bound");
+        } else if (e instanceof Expression.Plus) {
+            Expression.Plus p = (Expression.Plus) e;
+            return arithmetic(p, p.getLeft(), p.getRight(), (a, b) -> a + b);
+        } else if (e instanceof Expression.Minus) {
+            Expression.Minus m = (Expression.Minus) e;
+            return arithmetic(m, m.getLeft(), m.getRight(), (a, b) -> a - b);
+        } else if (e instanceof Expression.Times) {
+            Expression.Times t = (Expression.Times) e;
+            return arithmetic(t, t.getLeft(), t.getRight(), (a, b) -> a * b);
+        } else if (e instanceof Expression.Equals) {
+            Expression.Equals eq = (Expression.Equals) e;
+            Code left = compile(eq.getLeft());
+            Code right = compile(eq.getRight());
+            boolean checked = e.isTypeChecked();
+            return (frame, context) -> {
+                context.step();
+                Expression v1 = left.run(frame, context);
+                Expression v2 = right.run(frame, context);
+                checkIntegers(checked, v1, v2);
+                return Expression.ofBoolean(((Expression.IntegerLiteral) v1).getData()
+                        == ((Expression.IntegerLiteral) v2).getData());
+            };
+        } else if (e instanceof Expression.Remainder) {
+            Expression.Remainder d = (Expression.Remainder) e;
+            Code left = compile(d.getLeft());
+            Code right = compile(d.getRight());
+            boolean checked = e.isTypeChecked();
+            return (frame, context) -> {
+                context.step();
+                Expression v1 = left.run(frame, context);
+                Expression v2 = right.run(frame, context);
+                checkIntegers(checked, v1, v2);
+                if (((Expression.IntegerLiteral) v2).getData() == 0) {
+                    throw new Trefoil2.TrefoilError.RuntimeError(v1 + " can't be divided by 0");
+                }
+                context.allocate(1);
+                return Expression.ofInt(((Expression.IntegerLiteral) v1).getData()
+                        % ((Expression.IntegerLiteral) v2).getData());
+            };
+        } else if (e instanceof Expression.If) {
+            Expression.If i = (Expression.If) e;
+            Code condition = compile(i.getLeft());
+            Code then = compile(i.getMiddle());
+            Code otherwise = compile(i.getRight());
+            return (frame, context) -> {
+                context.step();
+                Expression v = condition.run(frame, context);
+                // Like the interpreter, anything but false counts as true.
+                boolean isFalse = v instanceof Expression.BooleanLiteral && !((Expression.BooleanLiteral) v).isData();
+                return (isFalse ? otherwise : then).run(frame, context);
+            };
+        } else if (e instanceof Expression.Cons) {
+            Code left = compile(((Expression.Cons) e).getLeft());
+            Code right = compile(((Expression.Cons) e).getRight());
+            return (frame, context) -> {
+                context.step();
+                Expression v1 = left.run(frame, context);
+                Expression v2 = right.run(frame, context);
+                context.allocate(1);
+                return Expression.cons(v1, v2);
+            };
+        } else if (e instanceof Expression.Nil) {
+            return (frame, context) -> {
+                context.step();
+                return new Expression.Nil();
+            };
+        } else if (e instanceof Expression.isNil) {
+            Code left = compile(((Expression.isNil) e).getLeft());
+            return (frame, context) -> {
+                context.step();
+                return Expression.ofBoolean(Interpreter.force(left.run(frame, context), context) instanceof Expression.Nil);
+            };
+        } else if (e instanceof Expression.isCons) {
+            Code left = compile(((Expression.isCons) e).getLeft());
+            return (frame, context) -> {
+                context.step();
+                return Expression.ofBoolean(Interpreter.force(left.run(frame, context), context) instanceof Expression.Cons);
+            };
+        } else if (e instanceof Expression.Car) {
+            Code left = compile(((Expression.Car) e).getLeft());
+            return (frame, context) -> {
+                context.step();
+                Expression.Cons c = (Expression.Cons) Interpreter.force(left.run(frame, context), context);
+                return c.getLeft();
+            };
+        } else if (e instanceof Expression.Cdr) {
+            Code left = compile(((Expression.Cdr) e).getLeft());
+            return (frame, context) -> {
+                context.step();
+                Expression.Cons c = (Expression.Cons) Interpreter.force(left.run(frame, context), context);
+                return Interpreter.force(c.getRight(), context);
+            };
+        } else if (e instanceof Expression.Let) {
+            // A let evaluates to the value it binds, see Interpreter.
+            Expression.Let l = (Expression.Let) e;
+            Code left = compile(l.getLeft());
+            String name = l.getString();
+            return (frame, context) -> {
+                context.step();
+                Expression v = left.run(frame, context);
+                context.getOut().println(name + " = " + v);
+                return v;
+            };
+        } else if (e instanceof Expression.Force) {
+            Code argument = compile(((Expression.Force) e).getArgument());
+            return (frame, context) -> {
+                context.step();
+                return Interpreter.force(argument.run(frame, context), context);
+            };
+        } else if (e instanceof Expression.Function) {
+            return call((Expression.Function) e);
+        }
+        return interpreted(e);
+    }
+
+    private interface IntOperator {
+        int apply(int a, int b);
+    }
+
+    private Code arithmetic(Expression e, Expression leftExpression, Expression rightExpression, IntOperator operator) {
+        Code left = compile(leftExpression);
+        Code right = compile(rightExpression);
+        boolean checked = e.isTypeChecked();
+        return (frame, context) -> {
+            context.step();
+            Expression v1 = left.run(frame, context);
+            Expression v2 = right.run(frame, context);
+            checkIntegers(checked, v1, v2);
+            context.allocate(1);
+            return Expression.ofInt(operator.apply(((Expression.IntegerLiteral) v1).getData(),
+                    ((Expression.IntegerLiteral) v2).getData()));
+        };
+    }
+
+    private static void checkIntegers(boolean checked, Expression v1, Expression v2) {
+        if (!checked && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral)) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
+        }
+    }
+
+    private Code call(Expression.Function call) {
+        String name = call.getString();
+        int arity = call.getExpressions().size();
+        if (slot(name) >= 0) {
+            // A parameter hides the function of the same name.
+            return error("The variable doesn't contain");
+        }
+        Interpreter.DynamicEnvironment.Entry entry = function.getDefiningEnvironment().getMap().get(name);
+        if (entry instanceof Interpreter.DynamicEnvironment.Entry.StructEntry) {
+            StructType type = ((Interpreter.DynamicEnvironment.Entry.StructEntry) entry).getType();
+            if (arity != type.getArity()) {
+                return error("Struct " + type.getName() + " expects " + type.getArity() + " fields but got " + arity);
+            }
+            Code[] args = compileAll(call.getExpressions());
+            return (frame, context) -> {
+                context.step();
+                Expression[] slots = new Expression[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    slots[i] = args[i].run(frame, context);
+                }
+                context.allocate(1);
+                return new Expression.StructValue(type, slots);
+            };
+        } else if (entry == null && NativeLists.isNative(name)) {
+            if (name.equals("map") || name.equals("filter") || name.equals("fold") || name.equals("pfold")) {
+                // These look their function argument up by name, so leave them to the interpreter.
+                return interpreted(call);
+            }
+            Code[] args = compileAll(call.getExpressions());
+            return (frame, context) -> {
+                context.step();
+                return NativeLists.apply(name, evaluateAll(args, frame, context), context);
+            };
+        } else if (entry == null) {
+            return error("Function " + name + " is not defined");
+        } else if (!(entry instanceof Interpreter.DynamicEnvironment.Entry.FunctionEntry)) {
+            return error("The variable doesn't contain");
+        }
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry target = (Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry;
+        if (target.getFunctionBinding().getArgnames().size() != arity) {
+            return error("Arguments and parameters are sequences of different lengths");
+        }
+        Code[] args = compileAll(call.getExpressions());
+        long callSite = call.getSpan();
+        // callFunction picks up the compiled code of target as soon as there is some.
+        return (frame, context) -> {
+            context.step();
+            return Interpreter.callFunction(target, evaluateAll(args, frame, context), callSite, context);
+        };
+    }
+
+    private Code[] compileAll(List<Expression> expressions) {
+        Code[] codes = new Code[expressions.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = compile(expressions.get(i));
+        }
+        return codes;
+    }
+
+    private static List<Expression> evaluateAll(Code[] codes, Expression[] frame, ExecutionContext context) {
+        List<Expression> values = new ArrayList<>(codes.length);
+        for (Code code : codes) {
+            values.add(code.run(frame, context));
+        }
+        return values;
+    }
+
+    // An error the interpreter raises when it reaches the node, before evaluating anything below it.
+    private static Code error(String message) {
+        return (frame, context) -> {
+            context.step();
+            throw new Trefoil2.TrefoilError.RuntimeError(message);
+        };
+    }
+
+    private Code interpreted(Expression e) {
+        return (frame, context) -> Interpreter.interpretExpression(e, environment(frame), context);
+    }
+}
@@ -0,0 +1,352 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The clauses of a match expression, compiled into a decision tree.
+ *
+ * Trefoil v3 tried each clause's pattern against the value in turn, so a value was inspected once
+ * per clause. Instead, the patterns of all clauses are compiled together, column by column, into a
+ * tree of Switch nodes. Each Switch looks at one position of the value (the value itself, the car
+ * of its cdr, the second field of a struct, ...) and jumps straight to the subtree for what it
+ * finds there, so along any path through the tree every position is inspected at most once.
+ * A Leaf names the clause that matched and where its variables' values are.
+ *
+ * Positions are numbered registers: register 0 holds the matched value, and taking apart a cons
+ * cell or a struct in a Switch loads its components into fresh registers.
+ *
+ * The first clause whose pattern matches still wins, exactly as in Trefoil v3.
+ */
+public class DecisionTree {
+    private final Node root;
+    private final int registerCount;
+
+    private DecisionTree(Node root, int registerCount) {
+        this.root = root;
+        this.registerCount = registerCount;
+    }
+
+    public static DecisionTree compile(List<Pattern> patterns) {
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            rows.add(new Row(new Pattern[]{patterns.get(i)}, new ArrayList<>(), new ArrayList<>(), i));
+        }
+        Compiler compiler = new Compiler();
+        Node root = compiler.compile(new int[]{0}, rows);
+        return new DecisionTree(root, compiler.registerCount);
+    }
+
+    public int getRegisterCount() {
+        return registerCount;
+    }
+
+    /**
+     * Matches value against the clauses. Returns the matching Leaf, or null if no clause matches.
+     *
+     * registers must have getRegisterCount() elements. On success, it holds the values that the
+     * Leaf's variables refer to.
+     */
+    public Leaf match(Expression value, Expression[] registers) {
+        registers[0] = value;
+        Node node = root;
+        while (node instanceof Switch) {
+            node = ((Switch) node).next(registers);
+        }
+        return (Leaf) node;
+    }
+
+    /**
+     * Number of Switch nodes in the tree.
+     */
+    public int getSwitchCount() {
+        return root == null ? 0 : root.size();
+    }
+
+    private abstract static class Node {
+        abstract int size();
+    }
+
+    /**
+     * A successful match of clause, binding names[i] to the value in registers[i].
+     */
+    public static class Leaf extends Node {
+        private final int clause;
+        private final String[] names;
+        private final int[] registers;
+
+        private Leaf(int clause, List<String> names, List<Integer> registers) {
+            this.clause = clause;
+            this.names = names.toArray(new String[0]);
+            this.registers = registers.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        public int getClause() {
+            return clause;
+        }
+
+        public List<String> getNames() {
+            return Arrays.asList(names);
+        }
+
+        public List<Expression> values(Expression[] registerValues) {
+            List<Expression> values = new ArrayList<>(registers.length);
+            for (int r : registers) {
+                values.add(registerValues[r]);
+            }
+            return values;
+        }
+
+        @Override
+        int size() {
+            return 0;
+        }
+    }
+
+    /**
+     * Looks at the value in one register and picks a subtree according to its kind and contents.
+     * A missing entry (null) means no clause matches.
+     */
+    private static class Switch extends Node {
+        private final int register;
+        private final Map<Integer, Node> ints = new HashMap<>();
+        private Node ifTrue, ifFalse, ifNil;
+        private final Map<String, Node> symbols = new HashMap<>();
+        private Node ifCons;
+        private int consRegister;
+        // Keyed by struct tag and arity, see structKey.
+        private final Map<Long, Node> structs = new HashMap<>();
+        private final Map<Long, Integer> structRegisters = new HashMap<>();
+        private Node otherwise;
+
+        Switch(int register) {
+            this.register = register;
+        }
+
+        Node next(Expression[] registers) {
+            Expression v = registers[register];
+            if (v instanceof Expression.Thunk) {
+                // Patterns see through lazy tails, like car and cdr do.
+                v = ((Expression.Thunk) v).force();
+                registers[register] = v;
+            }
+            Node next = null;
+            if (v instanceof Expression.IntegerLiteral) {
+                next = ints.get(((Expression.IntegerLiteral) v).getData());
+            } else if (v instanceof Expression.BooleanLiteral) {
+                next = ((Expression.BooleanLiteral) v).isData() ? ifTrue : ifFalse;
+            } else if (v instanceof Expression.Nil) {
+                next = ifNil;
+            } else if (v instanceof Expression.Symbol) {
+                next = symbols.get(((Expression.Symbol) v).getName());
+            } else if (v instanceof Expression.Cons) {
+                next = ifCons;
+                if (next != null) {
+                    registers[consRegister] = ((Expression.Cons) v).getLeft();
+                    registers[consRegister + 1] = ((Expression.Cons) v).getRight();
+                }
+            } else if (v instanceof Expression.StructValue) {
+                Expression.StructValue s = (Expression.StructValue) v;
+                long key = structKey(s.getType().getTag(), s.getSlots().length);
+                next = structs.get(key);
+                if (next != null) {
+                    System.arraycopy(s.getSlots(), 0, registers, structRegisters.get(key), s.getSlots().length);
+                }
+            }
+            return next != null ? next : otherwise;
+        }
+
+        @Override
+        int size() {
+            int n = 1;
+            List<Node> children = new ArrayList<>(ints.values());
+            children.addAll(symbols.values());
+            children.addAll(structs.values());
+            children.addAll(Arrays.asList(ifTrue, ifFalse, ifNil, ifCons, otherwise));
+            for (Node child : children) {
+                if (child != null) {
+                    n += child.size();
+                }
+            }
+            return n;
+        }
+    }
+
+    private static long structKey(int tag, int arity) {
+        return ((long) tag << 32) | arity;
+    }
+
+    /**
+     * One clause in the pattern matrix: the patterns still to be checked, one per column, and the
+     * variables bound so far.
+     */
+    private static class Row {
+        final Pattern[] columns;
+        final List<String> names;
+        final List<Integer> registers;
+        final int clause;
+
+        Row(Pattern[] columns, List<String> names, List<Integer> registers, int clause) {
+            this.columns = columns;
+            this.names = names;
+            this.registers = registers;
+            this.clause = clause;
+        }
+    }
+
+    private static class Compiler {
+        private static final Pattern WILDCARD = new Pattern.Wildcard();
+
+        int registerCount = 1;
+
+        /**
+         * Compiles the rows, whose columns correspond to the given registers.
+         */
+        Node compile(int[] columnRegisters, List<Row> rows) {
+            if (rows.isEmpty()) {
+                return null;
+            }
+            Row first = rows.get(0);
+            int column = -1;
+            for (int i = 0; i < first.columns.length; i++) {
+                if (!first.columns[i].isIrrefutable()) {
+                    column = i;
+                    break;
+                }
+            }
+            if (column == -1) {
+                // Everything left in the first row matches anything.
+                List<String> names = new ArrayList<>(first.names);
+                List<Integer> registers = new ArrayList<>(first.registers);
+                for (int i = 0; i < first.columns.length; i++) {
+                    bind(first.columns[i], columnRegisters[i], names, registers);
+                }
+                return new Leaf(first.clause, names, registers);
+            }
+
+            int register = columnRegisters[column];
+            Switch node = new Switch(register);
+            List<Object> keysDone = new ArrayList<>();
+            for (Row row : rows) {
+                Pattern p = row.columns[column];
+                if (p.isIrrefutable() || keysDone.contains(key(p))) {
+                    continue;
+                }
+                keysDone.add(key(p));
+
+                // Specialize the matrix for values of p's kind: its sub-patterns replace the column.
+                int arity = arity(p);
+                int firstRegister = registerCount;
+                registerCount += arity;
+                int[] specializedRegisters = replaceColumn(columnRegisters, column, firstRegister, arity);
+                List<Row> specialized = new ArrayList<>();
+                for (Row r : rows) {
+                    Pattern q = r.columns[column];
+                    if (q.isIrrefutable()) {
+                        Pattern[] wildcards = new Pattern[arity];
+                        Arrays.fill(wildcards, WILDCARD);
+                        specialized.add(replaceColumn(r, column, wildcards, register, q));
+                    } else if (key(q).equals(key(p))) {
+                        specialized.add(replaceColumn(r, column, subpatterns(q), register, q));
+                    }
+                }
+                Node subtree = compile(specializedRegisters, specialized);
+
+                if (p instanceof Pattern.IntegerLiteral) {
+                    node.ints.put(((Pattern.IntegerLiteral) p).getData(), subtree);
+                } else if (p instanceof Pattern.BooleanLiteral) {
+                    if (((Pattern.BooleanLiteral) p).isData()) {
+                        node.ifTrue = subtree;
+                    } else {
+                        node.ifFalse = subtree;
+                    }
+                } else if (p instanceof Pattern.Nil) {
+                    node.ifNil = subtree;
+                } else if (p instanceof Pattern.Symbol) {
+                    node.symbols.put(((Pattern.Symbol) p).getName(), subtree);
+                } else if (p instanceof Pattern.Cons) {
+                    node.ifCons = subtree;
+                    node.consRegister = firstRegister;
+                } else {
+                    long structKey = (Long) key(p);
+                    node.structs.put(structKey, subtree);
+                    node.structRegisters.put(structKey, firstRegister);
+                }
+            }
+
+            // Values of any other kind can only be matched by rows with a wildcard or variable here.
+            List<Row> rest = new ArrayList<>();
+            for (Row r : rows) {
+                Pattern q = r.columns[column];
+                if (q.isIrrefutable()) {
+                    rest.add(replaceColumn(r, column, new Pattern[0], register, q));
+                }
+            }
+            node.otherwise = compile(replaceColumn(columnRegisters, column, 0, 0), rest);
+            return node;
+        }
+
+        private static void bind(Pattern p, int register, List<String> names, List<Integer> registers) {
+            if (p instanceof Pattern.Variable) {
+                names.add(((Pattern.Variable) p).getVarname());
+                registers.add(register);
+            }
+        }
+
+        // Two patterns with equal keys test for the same thing at the top level.
+        private static Object key(Pattern p) {
+            if (p instanceof Pattern.IntegerLiteral) {
+                return "int " + ((Pattern.IntegerLiteral) p).getData();
+            } else if (p instanceof Pattern.BooleanLiteral) {
+                return "bool " + ((Pattern.BooleanLiteral) p).isData();
+            } else if (p instanceof Pattern.Nil) {
+                return "nil";
+            } else if (p instanceof Pattern.Symbol) {
+                return "symbol " + ((Pattern.Symbol) p).getName();
+            } else if (p instanceof Pattern.Cons) {
+                return "cons";
+            } else {
+                Pattern.Struct s = (Pattern.Struct) p;
+                return structKey(s.getTag(), s.getFields().size());
+            }
+        }
+
+        private static int arity(Pattern p) {
+            return subpatterns(p).length;
+        }
+
+        private static Pattern[] subpatterns(Pattern p) {
+            if (p instanceof Pattern.Cons) {
+                return new Pattern[]{((Pattern.Cons) p).getLeft(), ((Pattern.Cons) p).getRight()};
+            } else if (p instanceof Pattern.Struct) {
+                return ((Pattern.Struct) p).getFields().toArray(new Pattern[0]);
+            }
+            return new Pattern[0];
+        }
+
+        private static int[] replaceColumn(int[] registers, int column, int firstRegister, int count) {
+            int[] result = new int[registers.length - 1 + count];
+            System.arraycopy(registers, 0, result, 0, column);
+            System.arraycopy(registers, column + 1, result, column, registers.length - column - 1);
+            for (int i = 0; i < count; i++) {
+                result[registers.length - 1 + i] = firstRegister + i;
+            }
+            return result;
+        }
+
+        // replaced is the pattern being removed from the row, which binds register if it is a variable.
+        private static Row replaceColumn(Row row, int column, Pattern[] subpatterns, int register, Pattern replaced) {
+            Pattern[] columns = new Pattern[row.columns.length - 1 + subpatterns.length];
+            System.arraycopy(row.columns, 0, columns, 0, column);
+            System.arraycopy(row.columns, column + 1, columns, column, row.columns.length - column - 1);
+            System.arraycopy(subpatterns, 0, columns, row.columns.length - 1, subpatterns.length);
+            List<String> names = new ArrayList<>(row.names);
+            List<Integer> registers = new ArrayList<>(row.registers);
+            bind(replaced, register, names, registers);
+            return new Row(columns, names, registers, row.clause);
+        }
+    }
+}
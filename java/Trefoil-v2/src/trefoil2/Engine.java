@@ -0,0 +1,187 @@
+package trefoil2;
+
+import lombok.Data;
+import parser.PSTParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedding API for running many independent Trefoil scripts in one JVM.
+ *
+ * An Engine evaluates a prelude once, up front. Every script submitted afterwards starts from
+ * the resulting environment and runs in its own session: it has its own output sink, its own
+ * EvaluationLimits, and nothing it defines is visible to other scripts. The prelude environment
+ * itself is never modified after construction (extending a DynamicEnvironment copies it), so
+ * sessions share it without locking.
+ *
+ * Sessions run on virtual threads when the JVM has them (Java 21+), and on a fixed pool of
+ * platform threads otherwise.
+ */
+public class Engine implements AutoCloseable {
+    private final Interpreter.DynamicEnvironment prelude;
+    private final EvaluationLimits limits;
+    private final ExecutorService executor;
+
+    private Engine(Interpreter.DynamicEnvironment prelude, EvaluationLimits limits) {
+        this.prelude = prelude;
+        this.limits = limits;
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Creates an engine whose sessions start from the bindings of preludeSource.
+     *
+     * @throws Trefoil2.TrefoilError if any prelude binding fails
+     */
+    public static Engine create(String preludeSource) {
+        return create(new StringReader(preludeSource), EvaluationLimits.UNLIMITED);
+    }
+
+    /**
+     * Creates an engine whose sessions start from the bindings read from prelude, and run with the given limits.
+     * The prelude itself is evaluated without limits.
+     *
+     * @throws Trefoil2.TrefoilError if any prelude binding fails
+     */
+    public static Engine create(Reader prelude, EvaluationLimits limits) {
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            PSTParser parser = PSTParser.ofReader(prelude);
+            Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+            ParenthesizedSymbolTree pst;
+            while ((pst = parser.parse()) != null) {
+                env = Interpreter.interpretBinding(Binding.parsePST(pst), env);
+            }
+            return new Engine(env, limits);
+        } finally {
+            context.setOut(savedOut);
+        }
+    }
+
+    /**
+     * Creates an engine whose sessions start from an environment saved with EnvironmentImage.save().
+     */
+    public static Engine fromImage(Path image, EvaluationLimits limits) throws IOException {
+        return new Engine(EnvironmentImage.load(image), limits);
+    }
+
+    public Interpreter.DynamicEnvironment getPrelude() {
+        return prelude;
+    }
+
+    /**
+     * Runs script in a new session and captures its output.
+     */
+    public CompletableFuture<Result> submit(String script) {
+        return CompletableFuture.supplyAsync(() -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = newPrintStream(buffer);
+            Result result = run(new StringReader(script), out);
+            out.flush();
+            return new Result(buffer.toString(StandardCharsets.UTF_8), result.getEnvironment(), result.getErrors());
+        }, executor);
+    }
+
+    /**
+     * Runs script in a new session, sending its output to out as it is produced.
+     * The output field of the returned Result is empty.
+     */
+    public CompletableFuture<Result> submit(Reader script, PrintStream out) {
+        return CompletableFuture.supplyAsync(() -> run(script, out), executor);
+    }
+
+    /**
+     * Runs script in a new session on the calling thread.
+     *
+     * Like Trefoil2.main, an error in one binding is reported on out and evaluation continues
+     * with the next binding.
+     */
+    public Result run(Reader script, PrintStream out) {
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        EvaluationLimits savedLimits = context.getLimits();
+        context.setOut(out);
+        context.setLimits(limits);
+        try {
+            PSTParser parser = PSTParser.ofReader(script);
+            Interpreter.DynamicEnvironment env = prelude;
+            List<Trefoil2.TrefoilError> errors = new ArrayList<>();
+            while (true) {
+                try {
+                    ParenthesizedSymbolTree pst = parser.parse();
+                    if (pst == null) {
+                        break;
+                    }
+                    env = Interpreter.interpretBinding(Binding.parsePST(pst), env);
+                } catch (Trefoil2.TrefoilError e) {
+                    out.println(e.getMessage());
+                    errors.add(e);
+                }
+            }
+            return new Result("", env, Collections.unmodifiableList(errors));
+        } finally {
+            context.setOut(savedOut);
+            context.setLimits(savedLimits);
+        }
+    }
+
+    /**
+     * Stops accepting scripts. Sessions that are already running are allowed to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static PrintStream newPrintStream(ByteArrayOutputStream buffer) {
+        try {
+            return new PrintStream(buffer, false, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            // Looked up reflectively so that the interpreter still builds and runs on Java 11.
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "trefoil-engine");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * The outcome of one session.
+     */
+    @Data
+    public static class Result {
+        // Everything the script printed, including error messages. Empty when output went to a caller-supplied stream.
+        private final String output;
+        // The environment after the last binding, including the prelude.
+        private final Interpreter.DynamicEnvironment environment;
+        // The errors reported by failed bindings, in order.
+        private final List<Trefoil2.TrefoilError> errors;
+    }
+}
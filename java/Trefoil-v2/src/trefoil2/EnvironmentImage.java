@@ -0,0 +1,834 @@
+package trefoil2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves a fully evaluated DynamicEnvironment to a compact binary image, and loads it back.
+ *
+ * Loading an image is much faster than re-running the program that built the environment, which
+ * makes it useful for large preludes. The loaded environment behaves exactly like the saved one:
+ * variable values, function bindings and the defining environments of functions are all
+ * restored, including environments that refer to themselves (recursive functions).
+ *
+ * Every object is written once. Objects shared in memory (the same cons cell reachable from two
+ * variables, the same function captured by the environments of several others) are shared again
+ * after loading, and equal strings and literals are stored only once.
+ *
+ * Layout, after the magic number and version (all counts and references are varints):
+ * - strings
+ * - expressions, children before parents, each a tag byte followed by its fields (struct types and
+ *   match patterns are written inline, as part of the expression that uses them)
+ * - function bindings, each a name, parameter names and a body expression
+ * - environments, each a list of (name, variable value | function binding and defining environment)
+ * - the index of the root environment
+ *
+ * Thunks are saved as they are: a forced thunk with its value, an unforced one with its delayed
+ * expression and environment, so loading an image never evaluates anything.
+ */
+public class EnvironmentImage {
+    private static final int MAGIC = 0x54524649;  // "TRFI"
+    private static final int VERSION = 1;
+
+    // Expression tags.
+    private static final int INT = 0, TRUE = 1, FALSE = 2, NIL = 3, VAR = 4,
+            PLUS = 5, MINUS = 6, TIMES = 7, EQUALS = 8, CONS = 9, REMAINDER = 10,
+            IS_NIL = 11, IS_CONS = 12, CAR = 13, CDR = 14,
+            IF = 15, LET = 16, FUNCTION = 17,
+            SYMBOL = 18, STRUCT_VALUE = 19, STRUCT_PREDICATE = 20, STRUCT_ACCESS = 21, MATCH = 22,
+            DELAY = 23, FORCE = 24, LAZY_CONS = 25, THUNK = 26, FORCED_THUNK = 27,
+            MAKE_VECTOR = 28, VECTOR_REF = 29, VECTOR_LENGTH = 30, VECTOR_SET = 31,
+            LIST_TO_VECTOR = 32, VECTOR_TO_LIST = 33, VECTOR_VALUE = 34,
+            MAP_EMPTY = 35, MAP_PUT = 36, MAP_GET = 37, MAP_CONTAINS = 38, MAP_REMOVE = 39, MAP_SIZE = 40,
+            ALIST_TO_MAP = 41, MAP_VALUE = 42;
+
+    // Pattern tags.
+    private static final int P_WILDCARD = 0, P_VARIABLE = 1, P_INT = 2, P_TRUE = 3, P_FALSE = 4, P_NIL = 5,
+            P_SYMBOL = 6, P_CONS = 7, P_STRUCT = 8;
+
+    // Entry tags.
+    private static final int VARIABLE_ENTRY = 0, FUNCTION_ENTRY = 1, STRUCT_ENTRY = 2;
+
+    /**
+     * Writes env, and everything reachable from it, to file.
+     */
+    public static void save(Interpreter.DynamicEnvironment env, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            new Writer().write(env, new DataOutputStream(out));
+        }
+    }
+
+    /**
+     * Reads an environment written by save(). The file is memory-mapped and decoded in one pass.
+     *
+     * @throws Trefoil2.InternalInterpreterError if the file is not a valid image
+     */
+    public static Interpreter.DynamicEnvironment load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Reader(buffer).read();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+                | ClassCastException | NullPointerException e) {
+            // A truncated file, or references and counts that do not fit the rest of it.
+            throw new Trefoil2.InternalInterpreterError("Corrupt image " + file, e);
+        }
+    }
+
+    private static class Writer {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringList = new ArrayList<>();
+        // Literals are deduplicated by value, everything else by identity.
+        private final Map<Expression, Integer> literals = new HashMap<>();
+        private final Map<Expression, Integer> expressions = new IdentityHashMap<>();
+        private final List<Expression> expressionList = new ArrayList<>();
+        private final Map<Binding.FunctionBinding, Integer> bindings = new IdentityHashMap<>();
+        private final List<Binding.FunctionBinding> bindingList = new ArrayList<>();
+        private final Map<Interpreter.DynamicEnvironment, Integer> environments = new IdentityHashMap<>();
+        private final List<Interpreter.DynamicEnvironment> environmentList = new ArrayList<>();
+        // Environments numbered but not yet scanned for strings, expressions and further environments.
+        private final Deque<Interpreter.DynamicEnvironment> pending = new ArrayDeque<>();
+
+        void write(Interpreter.DynamicEnvironment root, DataOutputStream out) throws IOException {
+            // First number every reachable object, then write the tables in dependency order.
+            number(root);
+            while (!pending.isEmpty()) {
+                Interpreter.DynamicEnvironment env = pending.pop();
+                for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> e : env.getMap().entrySet()) {
+                    string(e.getKey());
+                    Interpreter.DynamicEnvironment.Entry entry = e.getValue();
+                    if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                        expression(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue());
+                    } else if (entry instanceof Interpreter.DynamicEnvironment.Entry.StructEntry) {
+                        structType(((Interpreter.DynamicEnvironment.Entry.StructEntry) entry).getType());
+                    } else {
+                        Interpreter.DynamicEnvironment.Entry.FunctionEntry fe =
+                                (Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry;
+                        binding(fe.getFunctionBinding());
+                        number(fe.getDefiningEnvironment());
+                    }
+                }
+            }
+
+            out.writeInt(MAGIC);
+            writeVarInt(out, VERSION);
+
+            writeVarInt(out, stringList.size());
+            for (String s : stringList) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+
+            writeVarInt(out, expressionList.size());
+            for (Expression e : expressionList) {
+                writeExpression(e, out);
+            }
+
+            writeVarInt(out, bindingList.size());
+            for (Binding.FunctionBinding fb : bindingList) {
+                writeVarInt(out, strings.get(fb.getFunname()));
+                writeVarInt(out, fb.getArgnames().size());
+                for (String arg : fb.getArgnames()) {
+                    writeVarInt(out, strings.get(arg));
+                }
+                writeVarInt(out, index(fb.getBody()));
+            }
+
+            writeVarInt(out, environmentList.size());
+            for (Interpreter.DynamicEnvironment env : environmentList) {
+                writeVarInt(out, env.getMap().size());
+                for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> e : env.getMap().entrySet()) {
+                    writeVarInt(out, strings.get(e.getKey()));
+                    Interpreter.DynamicEnvironment.Entry entry = e.getValue();
+                    if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                        out.writeByte(VARIABLE_ENTRY);
+                        writeVarInt(out, index(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue()));
+                    } else if (entry instanceof Interpreter.DynamicEnvironment.Entry.StructEntry) {
+                        out.writeByte(STRUCT_ENTRY);
+                        writeStructType(((Interpreter.DynamicEnvironment.Entry.StructEntry) entry).getType(), out);
+                    } else {
+                        Interpreter.DynamicEnvironment.Entry.FunctionEntry fe =
+                                (Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry;
+                        out.writeByte(FUNCTION_ENTRY);
+                        writeVarInt(out, bindings.get(fe.getFunctionBinding()));
+                        writeVarInt(out, environments.get(fe.getDefiningEnvironment()));
+                    }
+                }
+            }
+
+            writeVarInt(out, environments.get(root));
+            out.flush();
+        }
+
+        private void number(Interpreter.DynamicEnvironment env) {
+            if (!environments.containsKey(env)) {
+                environments.put(env, environmentList.size());
+                environmentList.add(env);
+                pending.push(env);
+            }
+        }
+
+        private void string(String s) {
+            if (!strings.containsKey(s)) {
+                strings.put(s, stringList.size());
+                stringList.add(s);
+            }
+        }
+
+        private void binding(Binding.FunctionBinding fb) {
+            if (!bindings.containsKey(fb)) {
+                string(fb.getFunname());
+                fb.getArgnames().forEach(this::string);
+                expression(fb.getBody());
+                bindings.put(fb, bindingList.size());
+                bindingList.add(fb);
+            }
+        }
+
+        private void structType(StructType type) {
+            string(type.getName());
+            type.getFieldNames().forEach(this::string);
+        }
+
+        private void pattern(Pattern p) {
+            if (p instanceof Pattern.Variable) {
+                string(((Pattern.Variable) p).getVarname());
+            } else if (p instanceof Pattern.Symbol) {
+                string(((Pattern.Symbol) p).getName());
+            } else if (p instanceof Pattern.Cons) {
+                pattern(((Pattern.Cons) p).getLeft());
+                pattern(((Pattern.Cons) p).getRight());
+            } else if (p instanceof Pattern.Struct) {
+                string(((Pattern.Struct) p).getName());
+                ((Pattern.Struct) p).getFields().forEach(this::pattern);
+            }
+        }
+
+        private boolean isLiteral(Expression e) {
+            return e instanceof Expression.IntegerLiteral || e instanceof Expression.BooleanLiteral
+                    || e instanceof Expression.Nil;
+        }
+
+        private Integer index(Expression e) {
+            return isLiteral(e) ? literals.get(e) : expressions.get(e);
+        }
+
+        /**
+         * Numbers e and all its descendants, children first. Iterative, because values can be very long lists.
+         */
+        private void expression(Expression root) {
+            Deque<Expression> stack = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            stack.push(root);
+            expanded.push(false);
+            while (!stack.isEmpty()) {
+                Expression e = stack.pop();
+                boolean childrenDone = expanded.pop();
+                if (index(e) != null) {
+                    continue;
+                }
+                if (!childrenDone) {
+                    stack.push(e);
+                    expanded.push(true);
+                    List<Expression> children = children(e);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(children.get(i));
+                        expanded.push(false);
+                    }
+                    continue;
+                }
+                if (e instanceof Expression.VariableReference) {
+                    string(((Expression.VariableReference) e).getVarname());
+                } else if (e instanceof Expression.Let) {
+                    string(((Expression.Let) e).getString());
+                } else if (e instanceof Expression.Function) {
+                    string(((Expression.Function) e).getString());
+                } else if (e instanceof Expression.Symbol) {
+                    string(((Expression.Symbol) e).getName());
+                } else if (e instanceof Expression.StructValue) {
+                    structType(((Expression.StructValue) e).getType());
+                } else if (e instanceof Expression.StructPredicate) {
+                    structType(((Expression.StructPredicate) e).getType());
+                } else if (e instanceof Expression.StructAccess) {
+                    structType(((Expression.StructAccess) e).getType());
+                } else if (e instanceof Expression.Match) {
+                    ((Expression.Match) e).getPatterns().forEach(this::pattern);
+                } else if (e instanceof Expression.Thunk && !((Expression.Thunk) e).isForced()) {
+                    number(((Expression.Thunk) e).getEnvironment());
+                }
+                if (isLiteral(e)) {
+                    literals.put(e, expressionList.size());
+                } else {
+                    expressions.put(e, expressionList.size());
+                }
+                expressionList.add(e);
+            }
+        }
+
+        private List<Expression> children(Expression e) {
+            List<Expression> children = new ArrayList<>();
+            if (e instanceof Expression.Plus) {
+                children.add(((Expression.Plus) e).getLeft());
+                children.add(((Expression.Plus) e).getRight());
+            } else if (e instanceof Expression.Minus) {
+                children.add(((Expression.Minus) e).getLeft());
+                children.add(((Expression.Minus) e).getRight());
+            } else if (e instanceof Expression.Times) {
+                children.add(((Expression.Times) e).getLeft());
+                children.add(((Expression.Times) e).getRight());
+            } else if (e instanceof Expression.Equals) {
+                children.add(((Expression.Equals) e).getLeft());
+                children.add(((Expression.Equals) e).getRight());
+            } else if (e instanceof Expression.Cons) {
+                children.add(((Expression.Cons) e).getLeft());
+                children.add(((Expression.Cons) e).getRight());
+            } else if (e instanceof Expression.Remainder) {
+                children.add(((Expression.Remainder) e).getLeft());
+                children.add(((Expression.Remainder) e).getRight());
+            } else if (e instanceof Expression.isNil) {
+                children.add(((Expression.isNil) e).getLeft());
+            } else if (e instanceof Expression.isCons) {
+                children.add(((Expression.isCons) e).getLeft());
+            } else if (e instanceof Expression.Car) {
+                children.add(((Expression.Car) e).getLeft());
+            } else if (e instanceof Expression.Cdr) {
+                children.add(((Expression.Cdr) e).getLeft());
+            } else if (e instanceof Expression.If) {
+                children.add(((Expression.If) e).getLeft());
+                children.add(((Expression.If) e).getMiddle());
+                children.add(((Expression.If) e).getRight());
+            } else if (e instanceof Expression.Let) {
+                children.add(((Expression.Let) e).getLeft());
+                children.add(((Expression.Let) e).getRight());
+            } else if (e instanceof Expression.Function) {
+                children.addAll(((Expression.Function) e).getExpressions());
+            } else if (e instanceof Expression.StructValue) {
+                children.addAll(Arrays.asList(((Expression.StructValue) e).getSlots()));
+            } else if (e instanceof Expression.StructPredicate) {
+                children.add(((Expression.StructPredicate) e).getArgument());
+            } else if (e instanceof Expression.StructAccess) {
+                children.add(((Expression.StructAccess) e).getArgument());
+            } else if (e instanceof Expression.Match) {
+                children.add(((Expression.Match) e).getScrutinee());
+                children.addAll(((Expression.Match) e).getBodies());
+            } else if (e instanceof Expression.Delay) {
+                children.add(((Expression.Delay) e).getBody());
+            } else if (e instanceof Expression.Force) {
+                children.add(((Expression.Force) e).getArgument());
+            } else if (e instanceof Expression.LazyCons) {
+                children.add(((Expression.LazyCons) e).getLeft());
+                children.add(((Expression.LazyCons) e).getRight());
+            } else if (e instanceof Expression.Thunk) {
+                Expression.Thunk t = (Expression.Thunk) e;
+                children.add(t.isForced() ? t.getValue() : t.getBody());
+            } else if (e instanceof Expression.MakeVector) {
+                children.addAll(((Expression.MakeVector) e).getElements());
+            } else if (e instanceof Expression.VectorRef) {
+                children.add(((Expression.VectorRef) e).getVector());
+                children.add(((Expression.VectorRef) e).getIndex());
+            } else if (e instanceof Expression.VectorLength) {
+                children.add(((Expression.VectorLength) e).getVector());
+            } else if (e instanceof Expression.VectorSet) {
+                children.add(((Expression.VectorSet) e).getVector());
+                children.add(((Expression.VectorSet) e).getIndex());
+                children.add(((Expression.VectorSet) e).getElement());
+            } else if (e instanceof Expression.ListToVector) {
+                children.add(((Expression.ListToVector) e).getList());
+            } else if (e instanceof Expression.VectorToList) {
+                children.add(((Expression.VectorToList) e).getVector());
+            } else if (e instanceof Expression.VectorValue) {
+                for (Expression element : ((Expression.VectorValue) e).getElements()) {
+                    children.add(element);
+                }
+            } else if (e instanceof Expression.MapPut) {
+                children.add(((Expression.MapPut) e).getMap());
+                children.add(((Expression.MapPut) e).getKey());
+                children.add(((Expression.MapPut) e).getValue());
+            } else if (e instanceof Expression.MapGet) {
+                children.add(((Expression.MapGet) e).getMap());
+                children.add(((Expression.MapGet) e).getKey());
+            } else if (e instanceof Expression.MapContains) {
+                children.add(((Expression.MapContains) e).getMap());
+                children.add(((Expression.MapContains) e).getKey());
+            } else if (e instanceof Expression.MapRemove) {
+                children.add(((Expression.MapRemove) e).getMap());
+                children.add(((Expression.MapRemove) e).getKey());
+            } else if (e instanceof Expression.MapSize) {
+                children.add(((Expression.MapSize) e).getMap());
+            } else if (e instanceof Expression.AlistToMap) {
+                children.add(((Expression.AlistToMap) e).getList());
+            } else if (e instanceof Expression.MapValue) {
+                // Keys and values alternate.
+                ((Expression.MapValue) e).getEntries().forEach((k, v) -> {
+                    children.add(k);
+                    children.add(v);
+                });
+            }
+            return children;
+        }
+
+        private void writeExpression(Expression e, DataOutputStream out) throws IOException {
+            if (e instanceof Expression.IntegerLiteral) {
+                out.writeByte(INT);
+                writeVarInt(out, zigzag(((Expression.IntegerLiteral) e).getData()));
+                return;
+            } else if (e instanceof Expression.BooleanLiteral) {
+                out.writeByte(((Expression.BooleanLiteral) e).isData() ? TRUE : FALSE);
+                return;
+            } else if (e instanceof Expression.Nil) {
+                out.writeByte(NIL);
+                return;
+            } else if (e instanceof Expression.VariableReference) {
+                out.writeByte(VAR);
+                writeVarInt(out, strings.get(((Expression.VariableReference) e).getVarname()));
+                return;
+            } else if (e instanceof Expression.Symbol) {
+                out.writeByte(SYMBOL);
+                writeVarInt(out, strings.get(((Expression.Symbol) e).getName()));
+                return;
+            } else if (e instanceof Expression.Plus) {
+                out.writeByte(PLUS);
+            } else if (e instanceof Expression.Minus) {
+                out.writeByte(MINUS);
+            } else if (e instanceof Expression.Times) {
+                out.writeByte(TIMES);
+            } else if (e instanceof Expression.Equals) {
+                out.writeByte(EQUALS);
+            } else if (e instanceof Expression.Cons) {
+                out.writeByte(CONS);
+            } else if (e instanceof Expression.Remainder) {
+                out.writeByte(REMAINDER);
+            } else if (e instanceof Expression.isNil) {
+                out.writeByte(IS_NIL);
+            } else if (e instanceof Expression.isCons) {
+                out.writeByte(IS_CONS);
+            } else if (e instanceof Expression.Car) {
+                out.writeByte(CAR);
+            } else if (e instanceof Expression.Cdr) {
+                out.writeByte(CDR);
+            } else if (e instanceof Expression.If) {
+                out.writeByte(IF);
+            } else if (e instanceof Expression.Let) {
+                out.writeByte(LET);
+                writeVarInt(out, strings.get(((Expression.Let) e).getString()));
+            } else if (e instanceof Expression.Function) {
+                out.writeByte(FUNCTION);
+                writeVarInt(out, strings.get(((Expression.Function) e).getString()));
+                writeVarInt(out, ((Expression.Function) e).getExpressions().size());
+            } else if (e instanceof Expression.StructValue) {
+                out.writeByte(STRUCT_VALUE);
+                writeStructType(((Expression.StructValue) e).getType(), out);
+            } else if (e instanceof Expression.StructPredicate) {
+                out.writeByte(STRUCT_PREDICATE);
+                writeStructType(((Expression.StructPredicate) e).getType(), out);
+            } else if (e instanceof Expression.StructAccess) {
+                out.writeByte(STRUCT_ACCESS);
+                writeStructType(((Expression.StructAccess) e).getType(), out);
+                writeVarInt(out, ((Expression.StructAccess) e).getIndex());
+            } else if (e instanceof Expression.Match) {
+                out.writeByte(MATCH);
+                writeVarInt(out, ((Expression.Match) e).getPatterns().size());
+                for (Pattern p : ((Expression.Match) e).getPatterns()) {
+                    writePattern(p, out);
+                }
+            } else if (e instanceof Expression.Delay) {
+                out.writeByte(DELAY);
+            } else if (e instanceof Expression.Force) {
+                out.writeByte(FORCE);
+            } else if (e instanceof Expression.LazyCons) {
+                out.writeByte(LAZY_CONS);
+            } else if (e instanceof Expression.Thunk && ((Expression.Thunk) e).isForced()) {
+                out.writeByte(FORCED_THUNK);
+            } else if (e instanceof Expression.Thunk) {
+                out.writeByte(THUNK);
+                writeVarInt(out, environments.get(((Expression.Thunk) e).getEnvironment()));
+            } else if (e instanceof Expression.MakeVector) {
+                out.writeByte(MAKE_VECTOR);
+                writeVarInt(out, ((Expression.MakeVector) e).getElements().size());
+            } else if (e instanceof Expression.VectorRef) {
+                out.writeByte(VECTOR_REF);
+            } else if (e instanceof Expression.VectorLength) {
+                out.writeByte(VECTOR_LENGTH);
+            } else if (e instanceof Expression.VectorSet) {
+                out.writeByte(VECTOR_SET);
+            } else if (e instanceof Expression.ListToVector) {
+                out.writeByte(LIST_TO_VECTOR);
+            } else if (e instanceof Expression.VectorToList) {
+                out.writeByte(VECTOR_TO_LIST);
+            } else if (e instanceof Expression.VectorValue) {
+                out.writeByte(VECTOR_VALUE);
+                writeVarInt(out, ((Expression.VectorValue) e).getElements().size());
+            } else if (e instanceof Expression.MapEmpty) {
+                out.writeByte(MAP_EMPTY);
+            } else if (e instanceof Expression.MapPut) {
+                out.writeByte(MAP_PUT);
+            } else if (e instanceof Expression.MapGet) {
+                out.writeByte(MAP_GET);
+            } else if (e instanceof Expression.MapContains) {
+                out.writeByte(MAP_CONTAINS);
+            } else if (e instanceof Expression.MapRemove) {
+                out.writeByte(MAP_REMOVE);
+            } else if (e instanceof Expression.MapSize) {
+                out.writeByte(MAP_SIZE);
+            } else if (e instanceof Expression.AlistToMap) {
+                out.writeByte(ALIST_TO_MAP);
+            } else if (e instanceof Expression.MapValue) {
+                out.writeByte(MAP_VALUE);
+                writeVarInt(out, ((Expression.MapValue) e).getEntries().size());
+            } else {
+                throw new Trefoil2.InternalInterpreterError("Cannot save expression AST node " + e.getClass() + " in an image");
+            }
+            for (Expression child : children(e)) {
+                writeVarInt(out, index(child));
+            }
+        }
+
+        private void writeStructType(StructType type, DataOutputStream out) throws IOException {
+            writeVarInt(out, strings.get(type.getName()));
+            writeVarInt(out, type.getArity());
+            for (String field : type.getFieldNames()) {
+                writeVarInt(out, strings.get(field));
+            }
+        }
+
+        private void writePattern(Pattern p, DataOutputStream out) throws IOException {
+            if (p instanceof Pattern.Wildcard) {
+                out.writeByte(P_WILDCARD);
+            } else if (p instanceof Pattern.Variable) {
+                out.writeByte(P_VARIABLE);
+                writeVarInt(out, strings.get(((Pattern.Variable) p).getVarname()));
+            } else if (p instanceof Pattern.IntegerLiteral) {
+                out.writeByte(P_INT);
+                writeVarInt(out, zigzag(((Pattern.IntegerLiteral) p).getData()));
+            } else if (p instanceof Pattern.BooleanLiteral) {
+                out.writeByte(((Pattern.BooleanLiteral) p).isData() ? P_TRUE : P_FALSE);
+            } else if (p instanceof Pattern.Nil) {
+                out.writeByte(P_NIL);
+            } else if (p instanceof Pattern.Symbol) {
+                out.writeByte(P_SYMBOL);
+                writeVarInt(out, strings.get(((Pattern.Symbol) p).getName()));
+            } else if (p instanceof Pattern.Cons) {
+                out.writeByte(P_CONS);
+                writePattern(((Pattern.Cons) p).getLeft(), out);
+                writePattern(((Pattern.Cons) p).getRight(), out);
+            } else {
+                Pattern.Struct sp = (Pattern.Struct) p;
+                out.writeByte(P_STRUCT);
+                writeVarInt(out, strings.get(sp.getName()));
+                writeVarInt(out, sp.getFields().size());
+                for (Pattern field : sp.getFields()) {
+                    writePattern(field, out);
+                }
+            }
+        }
+
+        private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private static int zigzag(int n) {
+            return (n << 1) ^ (n >> 31);
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private String[] strings;
+        private Expression[] expressions;
+        // Unforced thunks and the index of their environment, which is only known once environments are read.
+        private final List<Expression.Thunk> thunks = new ArrayList<>();
+        private final List<Integer> thunkEnvironments = new ArrayList<>();
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        Interpreter.DynamicEnvironment read() {
+            if (in.remaining() < 4 || in.getInt() != MAGIC) {
+                throw new Trefoil2.InternalInterpreterError("Not a Trefoil environment image");
+            }
+            int version = readVarInt();
+            if (version != VERSION) {
+                throw new Trefoil2.InternalInterpreterError("Unsupported image version " + version);
+            }
+
+            strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount()];
+                in.get(bytes);
+                strings[i] = bytes.length == 0 ? "" : new String(bytes, StandardCharsets.UTF_8).intern();
+            }
+
+            expressions = new Expression[readCount()];
+            for (int i = 0; i < expressions.length; i++) {
+                expressions[i] = readExpression();
+            }
+
+            Binding.FunctionBinding[] bindings = new Binding.FunctionBinding[readCount()];
+            for (int i = 0; i < bindings.length; i++) {
+                String name = strings[readVarInt()];
+                int argc = readCount();
+                List<String> args = new ArrayList<>(argc);
+                for (int j = 0; j < argc; j++) {
+                    args.add(strings[readVarInt()]);
+                }
+                bindings[i] = new Binding.FunctionBinding(name, args, expressions[readVarInt()]);
+            }
+
+            // Create every environment before filling any, since defining environments can form cycles.
+            Interpreter.DynamicEnvironment[] environments = new Interpreter.DynamicEnvironment[readCount()];
+            for (int i = 0; i < environments.length; i++) {
+                environments[i] = new Interpreter.DynamicEnvironment();
+            }
+            for (Interpreter.DynamicEnvironment env : environments) {
+                int size = readCount();
+                for (int j = 0; j < size; j++) {
+                    String name = strings[readVarInt()];
+                    int tag = in.get();
+                    if (tag == VARIABLE_ENTRY) {
+                        env.getMap().put(name, Interpreter.DynamicEnvironment.Entry.variable(expressions[readVarInt()]));
+                    } else if (tag == FUNCTION_ENTRY) {
+                        Binding.FunctionBinding fb = bindings[readVarInt()];
+                        env.getMap().put(name, Interpreter.DynamicEnvironment.Entry.function(fb, environments[readVarInt()]));
+                    } else if (tag == STRUCT_ENTRY) {
+                        env.getMap().put(name, Interpreter.DynamicEnvironment.Entry.struct(readStructType()));
+                    } else {
+                        throw new Trefoil2.InternalInterpreterError("Corrupt image: unknown entry tag " + tag);
+                    }
+                }
+            }
+            for (int i = 0; i < thunks.size(); i++) {
+                thunks.get(i).setEnvironment(environments[thunkEnvironments.get(i)]);
+            }
+            return environments[readVarInt()];
+        }
+
+        private Expression readExpression() {
+            int tag = in.get();
+            switch (tag) {
+                case INT:
+                    int z = readVarInt();
+                    return Expression.ofInt((z >>> 1) ^ -(z & 1));
+                case TRUE:
+                    return Expression.ofBoolean(true);
+                case FALSE:
+                    return Expression.ofBoolean(false);
+                case NIL:
+                    return Expression.nil();
+                case VAR:
+                    return new Expression.VariableReference(strings[readVarInt()]);
+                case PLUS:
+                    return new Expression.Plus(next(), next());
+                case MINUS:
+                    return new Expression.Minus(next(), next());
+                case TIMES:
+                    return new Expression.Times(next(), next());
+                case EQUALS:
+                    return new Expression.Equals(next(), next());
+                case CONS:
+                    return Expression.cons(next(), next());
+                case REMAINDER:
+                    return new Expression.Remainder(next(), next());
+                case IS_NIL:
+                    return new Expression.isNil(next());
+                case IS_CONS:
+                    return new Expression.isCons(next());
+                case CAR:
+                    return new Expression.Car(next());
+                case CDR:
+                    return new Expression.Cdr(next());
+                case IF:
+                    return new Expression.If(next(), next(), next());
+                case LET:
+                    return new Expression.Let(strings[readVarInt()], next(), next());
+                case FUNCTION:
+                    String name = strings[readVarInt()];
+                    int argc = readCount();
+                    List<Expression> args = new ArrayList<>(argc);
+                    for (int i = 0; i < argc; i++) {
+                        args.add(next());
+                    }
+                    return new Expression.Function(name, args);
+                case SYMBOL:
+                    return new Expression.Symbol(strings[readVarInt()]);
+                case STRUCT_VALUE:
+                    StructType type = readStructType();
+                    Expression[] slots = new Expression[type.getArity()];
+                    for (int i = 0; i < slots.length; i++) {
+                        slots[i] = next();
+                    }
+                    return new Expression.StructValue(type, slots);
+                case STRUCT_PREDICATE:
+                    return new Expression.StructPredicate(readStructType(), next());
+                case STRUCT_ACCESS:
+                    return new Expression.StructAccess(readStructType(), readVarInt(), next());
+                case MATCH:
+                    int clauses = readCount();
+                    List<Pattern> patterns = new ArrayList<>(clauses);
+                    for (int i = 0; i < clauses; i++) {
+                        patterns.add(readPattern());
+                    }
+                    Expression scrutinee = next();
+                    List<Expression> bodies = new ArrayList<>(clauses);
+                    for (int i = 0; i < clauses; i++) {
+                        bodies.add(next());
+                    }
+                    return new Expression.Match(scrutinee, patterns, bodies);
+                case DELAY:
+                    return new Expression.Delay(next());
+                case FORCE:
+                    return new Expression.Force(next());
+                case LAZY_CONS:
+                    return new Expression.LazyCons(next(), next());
+                case FORCED_THUNK:
+                    return Expression.Thunk.ofValue(next());
+                case THUNK:
+                    int environment = readVarInt();
+                    Expression.Thunk thunk = new Expression.Thunk(next(), null);
+                    thunks.add(thunk);
+                    thunkEnvironments.add(environment);
+                    return thunk;
+                case MAKE_VECTOR:
+                    int count = readCount();
+                    List<Expression> elements = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        elements.add(next());
+                    }
+                    return new Expression.MakeVector(elements);
+                case VECTOR_REF:
+                    return new Expression.VectorRef(next(), next());
+                case VECTOR_LENGTH:
+                    return new Expression.VectorLength(next());
+                case VECTOR_SET:
+                    return new Expression.VectorSet(next(), next(), next());
+                case LIST_TO_VECTOR:
+                    return new Expression.ListToVector(next());
+                case VECTOR_TO_LIST:
+                    return new Expression.VectorToList(next());
+                case VECTOR_VALUE:
+                    int length = readCount();
+                    PersistentVector<Expression> vector = PersistentVector.empty();
+                    for (int i = 0; i < length; i++) {
+                        vector = vector.append(next());
+                    }
+                    return new Expression.VectorValue(vector);
+                case MAP_EMPTY:
+                    return new Expression.MapEmpty();
+                case MAP_PUT:
+                    return new Expression.MapPut(next(), next(), next());
+                case MAP_GET:
+                    return new Expression.MapGet(next(), next());
+                case MAP_CONTAINS:
+                    return new Expression.MapContains(next(), next());
+                case MAP_REMOVE:
+                    return new Expression.MapRemove(next(), next());
+                case MAP_SIZE:
+                    return new Expression.MapSize(next());
+                case ALIST_TO_MAP:
+                    return new Expression.AlistToMap(next());
+                case MAP_VALUE:
+                    int entries = readCount();
+                    PersistentHashMap.Builder<Expression, Expression> builder = PersistentHashMap.builder();
+                    for (int i = 0; i < entries; i++) {
+                        builder.put(next(), next());
+                    }
+                    return new Expression.MapValue(builder.build());
+                default:
+                    throw new Trefoil2.InternalInterpreterError("Corrupt image: unknown expression tag " + tag);
+            }
+        }
+
+        private StructType readStructType() {
+            String name = strings[readVarInt()];
+            int arity = readCount();
+            List<String> fields = new ArrayList<>(arity);
+            for (int i = 0; i < arity; i++) {
+                fields.add(strings[readVarInt()]);
+            }
+            return new StructType(name, fields);
+        }
+
+        private Pattern readPattern() {
+            int tag = in.get();
+            switch (tag) {
+                case P_WILDCARD:
+                    return new Pattern.Wildcard();
+                case P_VARIABLE:
+                    return new Pattern.Variable(strings[readVarInt()]);
+                case P_INT:
+                    int z = readVarInt();
+                    return new Pattern.IntegerLiteral((z >>> 1) ^ -(z & 1));
+                case P_TRUE:
+                    return new Pattern.BooleanLiteral(true);
+                case P_FALSE:
+                    return new Pattern.BooleanLiteral(false);
+                case P_NIL:
+                    return new Pattern.Nil();
+                case P_SYMBOL:
+                    return new Pattern.Symbol(strings[readVarInt()]);
+                case P_CONS:
+                    return new Pattern.Cons(readPattern(), readPattern());
+                case P_STRUCT:
+                    String name = strings[readVarInt()];
+                    int arity = readCount();
+                    List<Pattern> fields = new ArrayList<>(arity);
+                    for (int i = 0; i < arity; i++) {
+                        fields.add(readPattern());
+                    }
+                    return new Pattern.Struct(name, fields);
+                default:
+                    throw new Trefoil2.InternalInterpreterError("Corrupt image: unknown pattern tag " + tag);
+            }
+        }
+
+        // Java evaluates constructor arguments left to right, so consecutive next() calls read the children in order.
+        private Expression next() {
+            return expressions[readVarInt()];
+        }
+
+        // A count of things that follow, each at least one byte long, so that a corrupt count fails
+        // before allocating an array for it.
+        private int readCount() {
+            int count = readVarInt();
+            if (count < 0 || count > in.remaining()) {
+                throw new Trefoil2.InternalInterpreterError("Corrupt image: count " + count + " with "
+                        + in.remaining() + " bytes left");
+            }
+            return count;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package trefoil2;
+
+import lombok.Data;
+
+/**
+ * Bounds on how much work a single top-level binding may do.
+ *
+ * Install limits on the evaluating thread with ExecutionContext.setLimits(). Each limit is
+ * counted from the start of every top-level binding; a binding that exceeds one is aborted with
+ * TrefoilError.LimitExceededError, and the interpreter carries on with the next binding.
+ *
+ * Use Long.MAX_VALUE (or Integer.MAX_VALUE for maxDepth) for "no limit", as UNLIMITED does.
+ */
+@Data
+public class EvaluationLimits {
+    public static final EvaluationLimits UNLIMITED =
+            new EvaluationLimits(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    /**
+     * Maximum number of expression nodes evaluated.
+     */
+    private final long maxSteps;
+
+    /**
+     * Maximum wall-clock time, in milliseconds.
+     */
+    private final long timeoutMillis;
+
+    /**
+     * Maximum depth of the Trefoil call stack. The binding being run counts as one frame.
+     */
+    private final int maxDepth;
+
+    /**
+     * Maximum number of values (integers, cons cells, bound arguments) created. This is an
+     * approximation of the memory a binding allocates, not an exact byte count.
+     */
+    private final long maxAllocations;
+}
@@ -0,0 +1,383 @@
+package trefoil2;
+
+import parser.SourceSpan;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread state of a running Trefoil evaluation.
+ *
+ * The interpreter's entry points are static, so anything that has to follow an evaluation
+ * around (as opposed to being part of the Trefoil semantics, which lives in DynamicEnvironment)
+ * is kept here, one instance per thread.
+ *
+ * This holds the Trefoil-level call stack: the name of every Trefoil function currently
+ * being executed, outermost first. The stack is cheap to maintain and can be read from other
+ * threads (for example by the Profiler) without locking. Such readers may see a slightly stale
+ * stack, which is fine for sampling.
+ *
+ * It also carries the stream that Trefoil output (the "x = v" lines and the values of top-level
+ * expressions) is printed to, which is System.out unless an embedder such as Engine redirects it,
+ * and the Printer.Options those values are printed with, and the directory of the program being
+ * run, which (import "path") resolves paths against.
+ *
+ * It also enforces the EvaluationLimits of the thread. The interpreter reports every evaluated
+ * node (step) and every created value (allocate), but the step, time and allocation limits are
+ * only compared at checkpoints every CHECK_INTERVAL steps, so generous limits cost next to nothing.
+ * The depth limit is checked on every pushFrame.
+ *
+ * The work of one binding can be split across threads (see NativeLists.parallelFold). The
+ * contexts of the helper threads then join the binding's SharedBudget: at every checkpoint, each
+ * context adds what it counted since the last one to the shared totals, and checks the limits and
+ * the binding's deadline against those totals. The limits can then be overrun by up to
+ * CHECK_INTERVAL steps per thread.
+ */
+public class ExecutionContext {
+    private static final ThreadLocal<ExecutionContext> current = ThreadLocal.withInitial(ExecutionContext::new);
+
+    /**
+     * Returns the context of the calling thread, creating it on first use.
+     */
+    public static ExecutionContext current() {
+        return current.get();
+    }
+
+    private static final int CHECK_INTERVAL = 1024;
+
+    /**
+     * The step and allocation counts of a binding whose work is split across threads, with its
+     * limits and deadline.
+     */
+    static final class SharedBudget {
+        private final ExecutionContext owner;
+        private final EvaluationLimits limits;
+        private final long deadline;
+        private final AtomicLong steps;
+        private final AtomicLong allocations;
+
+        private SharedBudget(ExecutionContext owner) {
+            this.owner = owner;
+            this.limits = owner.limits;
+            this.deadline = owner.deadline;
+            this.steps = new AtomicLong(owner.steps);
+            this.allocations = new AtomicLong(owner.allocations);
+        }
+    }
+
+    private volatile String[] frames = new String[32];
+    // The SourceSpan of the call site (or binding) of each frame. Only read by the owning thread.
+    private long[] callSites = new long[32];
+    private volatile int depth = 0;
+
+    private PrintStream out = System.out;
+    private Printer.Options printOptions = Printer.Options.DEFAULT;
+    private Path sourceDirectory = null;
+
+    private EvaluationLimits limits = EvaluationLimits.UNLIMITED;
+    private int maxDepth = Integer.MAX_VALUE;
+    // Steps left until the next checkpoint, and how many were handed out at the last one.
+    private int fuel = CHECK_INTERVAL;
+    private int granted = CHECK_INTERVAL;
+    private long steps = 0;
+    private long allocations = 0;
+    private long deadline = 0;
+    // The budget this context shares with other threads, if any, and how much of steps and
+    // allocations has been added to it already.
+    private SharedBudget shared = null;
+    private long sharedSteps = 0;
+    private long sharedAllocations = 0;
+
+    public ExecutionContext() {
+        Profiler.register(this);
+    }
+
+    /**
+     * A context for a helper thread working for budget's binding, printing to out. It joins budget,
+     * see joinBudget(), and prints values and resolves imports the way the binding's context does.
+     */
+    ExecutionContext(SharedBudget budget, PrintStream out) {
+        this();
+        this.out = out;
+        this.printOptions = budget.owner.printOptions;
+        this.sourceDirectory = budget.owner.sourceDirectory;
+        joinBudget(budget);
+    }
+
+    /**
+     * Makes context the calling thread's context, until it is replaced again. Returns the previous one.
+     */
+    static ExecutionContext install(ExecutionContext context) {
+        ExecutionContext previous = current.get();
+        current.set(context);
+        return previous;
+    }
+
+    /**
+     * Pushes a frame on the Trefoil call stack. Must be paired with popFrame() in a finally block.
+     */
+    public void pushFrame(String name) {
+        pushFrame(name, SourceSpan.UNKNOWN);
+    }
+
+    /**
+     * Same as pushFrame(name), recording the SourceSpan of the call site for error backtraces.
+     */
+    public void pushFrame(String name, long callSite) {
+        String[] f = frames;
+        int d = depth;
+        if (d >= maxDepth) {
+            throw new Trefoil2.TrefoilError.LimitExceededError(
+                    "Maximum call depth of " + maxDepth + " exceeded when calling " + name);
+        }
+        if (d == f.length) {
+            f = Arrays.copyOf(f, d * 2);
+            callSites = Arrays.copyOf(callSites, d * 2);
+            frames = f;
+        }
+        f[d] = name;
+        callSites[d] = callSite;
+        depth = d + 1;
+    }
+
+    public void popFrame() {
+        int d = depth - 1;
+        frames[d] = null;
+        depth = d;
+    }
+
+    /**
+     * Returns the name of the innermost frame, or null if the stack is empty.
+     */
+    String currentFrame() {
+        int d = depth;
+        return d == 0 ? null : frames[d - 1];
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public Path getSourceDirectory() {
+        return sourceDirectory;
+    }
+
+    /**
+     * Sets the directory that imports are resolved against; null means the working directory.
+     */
+    public void setSourceDirectory(Path sourceDirectory) {
+        this.sourceDirectory = sourceDirectory;
+    }
+
+    public Printer.Options getPrintOptions() {
+        return printOptions;
+    }
+
+    /**
+     * Sets how the values of top-level bindings and expressions are printed to out.
+     */
+    public void setPrintOptions(Printer.Options printOptions) {
+        this.printOptions = printOptions;
+    }
+
+    public EvaluationLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Installs limits for the bindings evaluated on this thread from now on, and restarts the counters.
+     */
+    public void setLimits(EvaluationLimits limits) {
+        this.limits = limits;
+        this.maxDepth = limits.getMaxDepth();
+        beginBinding();
+    }
+
+    /**
+     * Restarts the step, time and allocation counters. Called at the start of every top-level binding.
+     */
+    void beginBinding() {
+        steps = 0;
+        allocations = 0;
+        long timeout = limits.getTimeoutMillis();
+        deadline = timeout == Long.MAX_VALUE ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        refuel();
+    }
+
+    /**
+     * Records that one expression node is about to be evaluated.
+     */
+    void step() {
+        if (--fuel <= 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Records that n expression nodes are about to be evaluated, with nothing else happening in
+     * between. Used by the VirtualMachine, which counts the steps of nested nodes at once.
+     */
+    void step(int n) {
+        fuel -= n;
+        if (fuel <= 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Records that n values were created.
+     */
+    void allocate(int n) {
+        allocations += n;
+    }
+
+    public long getSteps() {
+        return steps + (granted - fuel);
+    }
+
+    public long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * Starts sharing the budget of the current binding with other threads, which join it with
+     * joinBudget(). Must be paired with stopSharing() in a finally block. A context that counts
+     * against a shared budget already returns that one, so nested helpers join it too.
+     */
+    SharedBudget shareBudget() {
+        if (shared != null) {
+            return shared;
+        }
+        steps += granted - fuel;
+        granted = fuel;
+        SharedBudget budget = new SharedBudget(this);
+        shared = budget;
+        sharedSteps = steps;
+        sharedAllocations = allocations;
+        return budget;
+    }
+
+    /**
+     * Makes this context, of a helper thread, count against budget, with its limits and deadline.
+     * Must be paired with leaveBudget() in a finally block.
+     */
+    void joinBudget(SharedBudget budget) {
+        limits = budget.limits;
+        maxDepth = limits.getMaxDepth();
+        deadline = budget.deadline;
+        steps = 0;
+        allocations = 0;
+        shared = budget;
+        sharedSteps = 0;
+        sharedAllocations = 0;
+        refuel(budget.steps.get());
+    }
+
+    /**
+     * Ends shareBudget(): from now on this context counts on its own again, starting from the totals
+     * of every thread that joined the budget. Does nothing for a budget this context did not create.
+     */
+    void stopSharing(SharedBudget budget) {
+        if (budget.owner != this) {
+            return;
+        }
+        flush();
+        shared = null;
+        steps = budget.steps.get();
+        allocations = budget.allocations.get();
+        refuel();
+    }
+
+    /**
+     * Ends joinBudget(), adding what this context counted to the shared totals.
+     */
+    void leaveBudget() {
+        flush();
+        shared = null;
+    }
+
+    private void flush() {
+        steps += granted - fuel;
+        granted = fuel;
+        shared.steps.addAndGet(steps - sharedSteps);
+        shared.allocations.addAndGet(allocations - sharedAllocations);
+        sharedSteps = steps;
+        sharedAllocations = allocations;
+    }
+
+    private void checkpoint() {
+        long totalSteps;
+        long totalAllocations;
+        if (shared != null) {
+            flush();
+            totalSteps = shared.steps.get();
+            totalAllocations = shared.allocations.get();
+        } else {
+            steps += granted - fuel;
+            granted = fuel;
+            totalSteps = steps;
+            totalAllocations = allocations;
+        }
+        if (totalSteps > limits.getMaxSteps()) {
+            throw new Trefoil2.TrefoilError.LimitExceededError(
+                    "Step budget of " + limits.getMaxSteps() + " evaluation steps exceeded");
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new Trefoil2.TrefoilError.LimitExceededError(
+                    "Time limit of " + limits.getTimeoutMillis() + "ms exceeded");
+        }
+        if (totalAllocations > limits.getMaxAllocations()) {
+            throw new Trefoil2.TrefoilError.LimitExceededError(
+                    "Allocation budget of " + limits.getMaxAllocations() + " values exceeded");
+        }
+        refuel(totalSteps);
+    }
+
+    private void refuel() {
+        refuel(steps);
+    }
+
+    private void refuel(long used) {
+        // Stop exactly one step past the step budget, so that the budget is enforced precisely.
+        long remaining = limits.getMaxSteps() - used;
+        granted = remaining >= CHECK_INTERVAL ? CHECK_INTERVAL : (int) remaining + 1;
+        fuel = granted;
+    }
+
+    /**
+     * Returns the call sites of the n outermost frames. Only for the owning thread, which sees
+     * the same stack as snapshotStack() returned.
+     */
+    long[] snapshotCallSites(int n) {
+        return Arrays.copyOf(callSites, n);
+    }
+
+    /**
+     * Returns a copy of the current call stack, outermost frame first.
+     *
+     * Safe to call from any thread.
+     */
+    public String[] snapshotStack() {
+        int d = depth;
+        String[] f = frames;
+        String[] copy = Arrays.copyOf(f, Math.min(d, f.length));
+        for (int i = 0; i < copy.length; i++) {
+            if (copy[i] == null) {
+                // The owning thread popped this frame while we were copying.
+                return Arrays.copyOf(copy, i);
+            }
+        }
+        return copy;
+    }
+}
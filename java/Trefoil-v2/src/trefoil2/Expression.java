@@ -1,8 +1,15 @@
 
 package trefoil2;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import parser.Keyword;
+import parser.SourceSpan;
+import parser.Tokenizer;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +19,29 @@ import java.util.List;
  */
 @Data
 public abstract class Expression {
+    // Set by TypeInference on nodes whose operands are proven to have the types the node needs, so
+    // that the interpreter can skip its run-time type checks. Not part of the expression itself.
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private boolean typeChecked;
+
+    public boolean isTypeChecked() {
+        return typeChecked;
+    }
+
+    void setTypeChecked(boolean typeChecked) {
+        this.typeChecked = typeChecked;
+    }
+
+    // Where the expression was in the source, see SourceSpan. UNKNOWN for values created while
+    // running, and for integer literals, which may be shared. Not part of the expression itself.
+    @Setter(AccessLevel.PACKAGE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long span = SourceSpan.UNKNOWN;
+
     @EqualsAndHashCode(callSuper = true)
     @Data
     public static class IntegerLiteral extends Expression {
@@ -71,10 +101,82 @@ public abstract class Expression {
         private  final  Expression left;
     }
 
-    @EqualsAndHashCode(callSuper = true)
+    /**
+     * Cons cells write their own equals and hashCode instead of using Lombok's, so that
+     * cells interned by HashConsing can be compared by pointer and long lists do not
+     * recompute their hash on every lookup. toString goes through Printer, which does not
+     * recurse down the list.
+     */
     @Data
     public static class Cons extends Expression {
         private final Expression left, right;
+
+        // Set once by HashConsing when this cell becomes the canonical instance of its structure.
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private boolean interned;
+
+        // Lazily computed; 0 means "not computed yet".
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private int hash;
+
+        void markInterned() {
+            interned = true;
+        }
+
+        // Both methods walk down the spine of a list with a loop, so that long lists do not overflow the stack.
+        @Override
+        public boolean equals(Object o) {
+            Cons c = this;
+            while (c != o) {
+                if (!(o instanceof Cons)) {
+                    return false;
+                }
+                Cons other = (Cons) o;
+                if (c.interned && other.interned) {
+                    // Two distinct canonical cells can never be structurally equal.
+                    return false;
+                }
+                if (!c.left.equals(other.left)) {
+                    return false;
+                }
+                if (!(c.right instanceof Cons)) {
+                    return c.right.equals(other.right);
+                }
+                c = (Cons) c.right;
+                o = other.right;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            if (hash != 0) {
+                return hash;
+            }
+            // Hash the cells whose hash is not known yet from the last one back.
+            List<Cons> spine = new ArrayList<>();
+            Expression e = this;
+            while (e instanceof Cons && ((Cons) e).hash == 0) {
+                spine.add((Cons) e);
+                e = ((Cons) e).right;
+            }
+            int h = e.hashCode();
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                Cons c = spine.get(i);
+                h = 59 * (59 + c.left.hashCode()) + h;
+                c.hash = h;
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return Printer.toString(this);
+        }
     }
 
     @EqualsAndHashCode(callSuper = true)
@@ -114,11 +216,25 @@ public abstract class Expression {
         private final Expression left;
     }
 
-    @EqualsAndHashCode(callSuper = true)
+    @EqualsAndHashCode(callSuper = true, exclude = "cachedTarget")
     @Data
     public static class Function extends Expression {
         private final String string;
         private final List<Expression> expressions;
+
+        // Inline cache: the function this call site called last time, whose arity matches. See Interpreter.
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private volatile Interpreter.DynamicEnvironment.Entry.FunctionEntry cachedTarget;
+
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry getCachedTarget() {
+            return cachedTarget;
+        }
+
+        void setCachedTarget(Interpreter.DynamicEnvironment.Entry.FunctionEntry target) {
+            cachedTarget = target;
+        }
     }
 
     // My own feature.
@@ -128,12 +244,370 @@ public abstract class Expression {
         private final Expression left, right;
     }
 
+    /**
+     * A symbol literal such as 'red. Symbols evaluate to themselves and are mostly useful in patterns.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Symbol extends Expression {
+        private final String name;
+
+        @Override
+        public String toString() {
+            return "'" + name;
+        }
+    }
+
+    /**
+     * A struct value, as returned by calling a struct's constructor. Internal AST node; not written by the
+     * Trefoil programmer. The fields are kept in a fixed-size array, in the order of the struct definition.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class StructValue extends Expression {
+        private final StructType type;
+        private final Expression[] slots;
+
+        @Override
+        public String toString() {
+            return Printer.toString(this);
+        }
+    }
+
+    /**
+     * The body of a struct's generated predicate function. Internal AST node.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class StructPredicate extends Expression {
+        private final StructType type;
+        private final Expression argument;
+    }
+
+    /**
+     * The body of a struct's generated field accessor function. Internal AST node.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class StructAccess extends Expression {
+        private final StructType type;
+        private final int index;
+        private final Expression argument;
+    }
+
+    /**
+     * (match scrutinee (pattern body)...). The clauses are compiled into a DecisionTree on first use.
+     */
+    @EqualsAndHashCode(callSuper = true, exclude = "decisionTree")
+    @Data
+    public static class Match extends Expression {
+        private final Expression scrutinee;
+        private final List<Pattern> patterns;
+        private final List<Expression> bodies;
+
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private volatile DecisionTree decisionTree;
+
+        public DecisionTree getDecisionTree() {
+            DecisionTree tree = decisionTree;
+            if (tree == null) {
+                // Compiling twice in a race is harmless: both trees are equivalent.
+                tree = DecisionTree.compile(patterns);
+                decisionTree = tree;
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * (delay e): evaluates to a Thunk for e, without evaluating e.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Delay extends Expression {
+        private final Expression body;
+    }
+
+    /**
+     * (force e): evaluates e, and if the result is a Thunk, forces it.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Force extends Expression {
+        private final Expression argument;
+    }
+
+    /**
+     * (lcons e1 e2): a cons cell whose car is the value of e1 and whose cdr is a Thunk for e2.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class LazyCons extends Expression {
+        private final Expression left, right;
+    }
+
+    /**
+     * A delayed computation: an expression and the environment to evaluate it in. Internal AST node;
+     * not written by the Trefoil programmer, but a value.
+     *
+     * The expression is evaluated at most once, the first time the thunk is forced, and the result is
+     * remembered. After that, the expression and its environment are dropped so that they can be
+     * garbage collected. Forcing is synchronized, so a thunk shared between threads is still only
+     * evaluated once; threads that force it while another thread is evaluating it wait for the result.
+     *
+     * Thunks are equal only to themselves.
+     */
+    public static class Thunk extends Expression {
+        private Expression body;
+        private Interpreter.DynamicEnvironment environment;
+        private volatile Expression value;
+        // Set while this thunk's expression is being evaluated, to detect a thunk that forces itself.
+        private boolean forcing;
+
+        public Thunk(Expression body, Interpreter.DynamicEnvironment environment) {
+            this.body = body;
+            this.environment = environment;
+        }
+
+        /**
+         * Returns a thunk that has already been forced to value.
+         */
+        public static Thunk ofValue(Expression value) {
+            Thunk t = new Thunk(null, null);
+            t.value = value;
+            return t;
+        }
+
+        public boolean isForced() {
+            return value != null;
+        }
+
+        // Only meaningful before the thunk has been forced.
+        Expression getBody() {
+            return body;
+        }
+
+        Interpreter.DynamicEnvironment getEnvironment() {
+            return environment;
+        }
+
+        void setEnvironment(Interpreter.DynamicEnvironment environment) {
+            this.environment = environment;
+        }
+
+        // Only meaningful once the thunk has been forced.
+        Expression getValue() {
+            return value;
+        }
+
+        public Expression force() {
+            return force(ExecutionContext.current());
+        }
+
+        /**
+         * Returns the value of the delayed expression, evaluating it if this is the first time.
+         * If the expression evaluates to another thunk, that thunk is forced too.
+         */
+        Expression force(ExecutionContext context) {
+            Expression v = value;
+            if (v != null) {
+                return v;
+            }
+            synchronized (this) {
+                if (value == null) {
+                    if (forcing) {
+                        throw new Trefoil2.TrefoilError.RuntimeError("A delayed expression needs its own value");
+                    }
+                    forcing = true;
+                    try {
+                        Expression result = Interpreter.interpretExpression(body, environment, context);
+                        while (result instanceof Thunk) {
+                            result = ((Thunk) result).force(context);
+                        }
+                        value = result;
+                        body = null;
+                        environment = null;
+                    } finally {
+                        forcing = false;
+                    }
+                }
+                return value;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+
+        @Override
+        public String toString() {
+            Expression v = value;
+            return v != null ? v.toString() : "<thunk>";
+        }
+    }
+
+    /**
+     * (vector e...): evaluates to a VectorValue holding the values of the e's, in order.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MakeVector extends Expression {
+        private final List<Expression> elements;
+    }
+
+    /**
+     * (vector-ref v i)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class VectorRef extends Expression {
+        private final Expression vector, index;
+    }
+
+    /**
+     * (vector-length v)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class VectorLength extends Expression {
+        private final Expression vector;
+    }
+
+    /**
+     * (vector-set v i e): a new vector like v but with e at index i. v itself is unchanged.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class VectorSet extends Expression {
+        private final Expression vector, index, element;
+    }
+
+    /**
+     * (list->vector l)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class ListToVector extends Expression {
+        private final Expression list;
+    }
+
+    /**
+     * (vector->list v)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class VectorToList extends Expression {
+        private final Expression vector;
+    }
+
+    /**
+     * An immutable vector of values. Internal AST node; not written by the Trefoil programmer, but a value.
+     * Vectors are equal when they have equal elements in the same order.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class VectorValue extends Expression {
+        private final PersistentVector<Expression> elements;
+
+        @Override
+        public String toString() {
+            return Printer.toString(this);
+        }
+    }
+
+    /**
+     * (map-empty)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapEmpty extends Expression {}
+
+    /**
+     * (map-put m k v): a new map like m but with k mapped to v. m itself is unchanged.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapPut extends Expression {
+        private final Expression map, key, value;
+    }
+
+    /**
+     * (map-get m k)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapGet extends Expression {
+        private final Expression map, key;
+    }
+
+    /**
+     * (map-contains? m k)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapContains extends Expression {
+        private final Expression map, key;
+    }
+
+    /**
+     * (map-remove m k): a new map like m but without k. m itself is unchanged.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapRemove extends Expression {
+        private final Expression map, key;
+    }
+
+    /**
+     * (map-size m)
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapSize extends Expression {
+        private final Expression map;
+    }
+
+    /**
+     * (alist->map l): a map with the entries of the association list l, a list of (cons key value).
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class AlistToMap extends Expression {
+        private final Expression list;
+    }
+
+    /**
+     * An immutable map from values to values. Internal AST node; not written by the Trefoil programmer,
+     * but a value. Maps are equal when they have the same keys mapped to equal values.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class MapValue extends Expression {
+        private final PersistentHashMap<Expression, Expression> entries;
+
+        @Override
+        public String toString() {
+            return Printer.toString(this);
+        }
+    }
+
     // Convenience factory methods
+    // The value factories go through HashConsing so that, when it is enabled, equal values share one instance.
     public static IntegerLiteral ofInt(int x) {
-        return new IntegerLiteral(x);
+        IntegerLiteral i = new IntegerLiteral(x);
+        return HashConsing.isEnabled() ? HashConsing.intern(i) : i;
     }
     public static BooleanLiteral ofBoolean(boolean b) {
-        return new BooleanLiteral(b);
+        BooleanLiteral bool = new BooleanLiteral(b);
+        return HashConsing.isEnabled() ? HashConsing.intern(bool) : bool;
     }
     public static Expression nil() {
         // TODO: implement this by calling "new Nil()" or whatever you call your Nil AST class
@@ -143,7 +617,8 @@ public abstract class Expression {
     public static Expression cons(Expression e1, Expression e2) {
         // TODO: implement this by calling "new Cons(e1, e2)" or whatever you call your Cons AST class
         // throw new Trefoil2.InternalInterpreterError("Cons not implemented");
-        return new Cons(e1, e2);
+        Cons c = new Cons(e1, e2);
+        return HashConsing.isEnabled() ? HashConsing.intern(c) : c;
     }
 
     /**
@@ -151,30 +626,50 @@ public abstract class Expression {
      *
      * See LANGUAGE.md for a description of how this should work at a high level.
      *
-     * If conversion fails, throws TrefoilError.AbstractSyntaxError with a nice message.
+     * If conversion fails, throws TrefoilError.AbstractSyntaxError with a nice message, located
+     * at the innermost PST that could not be converted.
      */
     public static Expression parsePST(ParenthesizedSymbolTree pst) {
+        Expression e;
+        try {
+            e = parsePSTWithoutSpan(pst);
+        } catch (Trefoil2.TrefoilError.AbstractSyntaxError error) {
+            error.locate(pst.getSpan());
+            throw error;
+        }
+        if (!(e instanceof IntegerLiteral)) {
+            e.setSpan(pst.getSpan());
+        }
+        return e;
+    }
+
+    private static Expression parsePSTWithoutSpan(ParenthesizedSymbolTree pst) {
         // Either the PST is a Symbol or a Node
         if (pst instanceof ParenthesizedSymbolTree.Symbol) {
             // If it is a symbol, it is either a number, a symbol keyword, or a variable reference.
+            // The tokenizer has already told them apart.
             ParenthesizedSymbolTree.Symbol symbol = (ParenthesizedSymbolTree.Symbol) pst;
-            String s = symbol.getSymbol();
-            try {
-                return Expression.ofInt(Integer.parseInt(s));
-            } catch (NumberFormatException e) {
-                switch (s) {
-                    case "true":
-                         return new BooleanLiteral(true);
-                    // TODO: add symbol keywords here, following the example above
-                    case "false":
+            Tokenizer.Token.SymbolToken token = symbol.getToken();
+            if (token instanceof Tokenizer.Token.IntegerToken) {
+                return Expression.ofInt(((Tokenizer.Token.IntegerToken) token).getValue());
+            } else if (token instanceof Tokenizer.Token.KeywordToken) {
+                switch (((Tokenizer.Token.KeywordToken) token).getKeyword()) {
+                    case TRUE:
+                        return new BooleanLiteral(true);
+                    case FALSE:
                         return new BooleanLiteral(false);
-                    // if the symbol is not a symbol keyword, then it represents a variable reference
-                    case "nil":
+                    case NIL:
                         return new Nil();
                     default:
-                        return new VariableReference(s);
+                        // a node keyword on its own is a variable reference
+                        break;
                 }
             }
+            String s = symbol.getSymbol();
+            if (s.length() > 1 && s.startsWith("'")) {
+                return new Symbol(s.substring(1));
+            }
+            return new VariableReference(s);
         } else {
             // Otherwise it is a Node, in which case it might be a built-in form with a node keyword,
             // or if not, then it is a function call.
@@ -183,86 +678,193 @@ public abstract class Expression {
             if (children.size() == 0) {
                 throw new Trefoil2.TrefoilError.AbstractSyntaxError("Unexpected empty pair of parentheses.");
             }
-            String head = ((ParenthesizedSymbolTree.Symbol) children.get(0)).getSymbol();
-            switch (head) {
-                case "+":
+            ParenthesizedSymbolTree.Symbol headSymbol = (ParenthesizedSymbolTree.Symbol) children.get(0);
+            String head = headSymbol.getSymbol();
+            // The tokenizer has already recognized the node keywords.
+            Keyword keyword = headSymbol.getKeyword();
+            if (keyword == null) {
+                return call(head, children);
+            }
+            switch (keyword) {
+                case PLUS:
                     if (children.size() - 1 /* -1 for head */ != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
                     }
                     return new Plus(parsePST(children.get(1)), parsePST(children.get(2)));
                 // TODO: add more node keywords here, following the example above
-                case "-":
+                case MINUS:
                     if (children.size() - 1 != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
                     }
                     return new Minus(parsePST(children.get(1)), parsePST(children.get(2)));
-                case "*":
+                case TIMES:
                     if (children.size() - 1 != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
                     }
                     return new Times(parsePST(children.get(1)), parsePST(children.get(2)));
-                case "=":
+                case EQUALS:
                     if (children.size() - 1 != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
                     }
                     return new Equals(parsePST(children.get(1)), parsePST(children.get(2)));
-                case "if":
+                case IF:
                     if (children.size() - 1 != 3) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 3 arguments");
                     }
                     return new If(parsePST(children.get(1)), parsePST(children.get(2)), parsePST(children.get(3)));
-                case "let":
+                case LET:
                     if (children.size() - 1 != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 3 arguments");
                     }
                     return new Let((parsePST(children.get(1))).toString(), parsePST(children.get(2)), parsePST(children.get(3)));
                 // if the symbol is not a node keyword, then it represents a function call
-                case "cons":
+                case CONS:
                     if (children.size() - 1 != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
                     }
                     return new Cons(parsePST(children.get(1)), parsePST(children.get(2)));
-                case "cons?":
+                case IS_CONS:
                     if (children.size() - 1 != 1) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
                     }
                     return new isCons(parsePST(children.get(1)));
-                case "car":
+                case CAR:
                     if (children.size() - 1 != 1) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
                     }
                     return new Car(parsePST(children.get(1)));
-                case "cdr":
+                case CDR:
                     if (children.size() - 1 != 1) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
                     }
                     return new Cdr(parsePST(children.get(1)));
-                case "nil?":
+                case IS_NIL:
                     if (children.size() - 1 != 1) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
                     }
                     return new isNil(parsePST(children.get(1)));
                 // My own feature.
-                case "rem":
+                case REM:
                     if (children.size() - 1 != 2) {
                         throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
                     }
                     return new Remainder(parsePST(children.get(1)), parsePST(children.get(2)));
-                default:
-                    // eventually we will add function calls here
-                    if (!(parsePST(children.get(0)) instanceof VariableReference)) {
-                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Unrecognized operator " + head);
+                case DELAY:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
+                    }
+                    return new Delay(parsePST(children.get(1)));
+                case FORCE:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
                     }
-                    String name = ((VariableReference) parsePST(children.get(0))).getVarname();
-                    List<Expression> list = new ArrayList<>();
+                    return new Force(parsePST(children.get(1)));
+                case LCONS:
+                    if (children.size() - 1 != 2) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
+                    }
+                    return new LazyCons(parsePST(children.get(1)), parsePST(children.get(2)));
+                case VECTOR:
+                    List<Expression> elements = new ArrayList<>();
                     for (int i = 1; i < children.size(); i++) {
-                        list.add(parsePST(children.get(i)));
+                        elements.add(parsePST(children.get(i)));
+                    }
+                    return new MakeVector(elements);
+                case VECTOR_REF:
+                    if (children.size() - 1 != 2) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
+                    }
+                    return new VectorRef(parsePST(children.get(1)), parsePST(children.get(2)));
+                case VECTOR_LENGTH:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
+                    }
+                    return new VectorLength(parsePST(children.get(1)));
+                case VECTOR_SET:
+                    if (children.size() - 1 != 3) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 3 arguments");
+                    }
+                    return new VectorSet(parsePST(children.get(1)), parsePST(children.get(2)), parsePST(children.get(3)));
+                case LIST_TO_VECTOR:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
+                    }
+                    return new ListToVector(parsePST(children.get(1)));
+                case VECTOR_TO_LIST:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
+                    }
+                    return new VectorToList(parsePST(children.get(1)));
+                case MAP_EMPTY:
+                    if (children.size() - 1 != 0) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 0 arguments");
+                    }
+                    return new MapEmpty();
+                case MAP_PUT:
+                    if (children.size() - 1 != 3) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 3 arguments");
+                    }
+                    return new MapPut(parsePST(children.get(1)), parsePST(children.get(2)), parsePST(children.get(3)));
+                case MAP_GET:
+                    if (children.size() - 1 != 2) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
+                    }
+                    return new MapGet(parsePST(children.get(1)), parsePST(children.get(2)));
+                case MAP_CONTAINS:
+                    if (children.size() - 1 != 2) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
+                    }
+                    return new MapContains(parsePST(children.get(1)), parsePST(children.get(2)));
+                case MAP_REMOVE:
+                    if (children.size() - 1 != 2) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 2 arguments");
+                    }
+                    return new MapRemove(parsePST(children.get(1)), parsePST(children.get(2)));
+                case MAP_SIZE:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
+                    }
+                    return new MapSize(parsePST(children.get(1)));
+                case ALIST_TO_MAP:
+                    if (children.size() - 1 != 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects 1 arguments");
+                    }
+                    return new AlistToMap(parsePST(children.get(1)));
+                case MATCH:
+                    if (children.size() - 1 < 1) {
+                        throw new Trefoil2.TrefoilError.AbstractSyntaxError("Operator " + head + " expects at least 1 argument");
                     }
-                    return new Function(name, list);
+                    List<Pattern> patterns = new ArrayList<>();
+                    List<Expression> bodies = new ArrayList<>();
+                    for (int i = 2; i < children.size(); i++) {
+                        ParenthesizedSymbolTree clause = children.get(i);
+                        if (!(clause instanceof ParenthesizedSymbolTree.Node)
+                                || ((ParenthesizedSymbolTree.Node) clause).getChildren().size() != 2) {
+                            throw new Trefoil2.TrefoilError.AbstractSyntaxError("Malformed 'match' clause: expected (pattern expression)");
+                        }
+                        patterns.add(Pattern.parsePST(((ParenthesizedSymbolTree.Node) clause).getChildren().get(0)));
+                        bodies.add(parsePST(((ParenthesizedSymbolTree.Node) clause).getChildren().get(1)));
+                    }
+                    return new Match(parsePST(children.get(1)), patterns, bodies);
+                default:
+                    // true, false, nil and the binding keywords do not start an expression form
+                    return call(head, children);
             }
         }
     }
 
+    private static Expression call(String head, List<ParenthesizedSymbolTree> children) {
+        if (!(parsePST(children.get(0)) instanceof VariableReference)) {
+            throw new Trefoil2.TrefoilError.AbstractSyntaxError("Unrecognized operator " + head);
+        }
+        String name = ((VariableReference) parsePST(children.get(0))).getVarname();
+        List<Expression> list = new ArrayList<>();
+        for (int i = 1; i < children.size(); i++) {
+            list.add(parsePST(children.get(i)));
+        }
+        return new Function(name, list);
+    }
+
     // Convenience factory method for unit tests.
     public static Expression parseString(String s) {
         return parsePST(ParenthesizedSymbolTree.parseString(s));
@@ -0,0 +1,168 @@
+package trefoil2;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the names a function body refers to without binding them itself: variables, called
+ * functions and struct constructors, and the function names passed to map, filter, fold and pfold.
+ *
+ * These are the only entries of its defining environment a function can ever look up, so
+ * DynamicEnvironment.putFunction gives each function an environment with just those (and the
+ * function itself, for recursion) instead of the whole environment it was defined in. A function
+ * defined after many large top-level values then no longer keeps all of them alive.
+ *
+ * A name that is shadowed by a parameter, a match variable or a let is not free where it is
+ * shadowed, but may still be free elsewhere in the body.
+ */
+public class FreeVariables {
+    /**
+     * Returns the free names of e.
+     */
+    public static Set<String> of(Expression e) {
+        Set<String> free = new HashSet<>();
+        collect(e, new HashSet<>(), free);
+        return Collections.unmodifiableSet(free);
+    }
+
+    /**
+     * Returns the free names of the body of fb, other than its parameters.
+     */
+    public static Set<String> of(Binding.FunctionBinding fb) {
+        Set<String> free = new HashSet<>();
+        collect(fb.getBody(), new HashSet<>(fb.getArgnames()), free);
+        return Collections.unmodifiableSet(free);
+    }
+
+    private static void collect(Expression e, Set<String> bound, Set<String> free) {
+        if (e instanceof Expression.VariableReference) {
+            String name = ((Expression.VariableReference) e).getVarname();
+            if (!bound.contains(name)) {
+                free.add(name);
+            }
+        } else if (e instanceof Expression.Function) {
+            Expression.Function call = (Expression.Function) e;
+            if (!bound.contains(call.getString())) {
+                free.add(call.getString());
+            }
+            collectAll(call.getExpressions(), bound, free);
+        } else if (e instanceof Expression.Let) {
+            Expression.Let l = (Expression.Let) e;
+            collect(l.getLeft(), bound, free);
+            Set<String> inner = new HashSet<>(bound);
+            inner.add(l.getString());
+            collect(l.getRight(), inner, free);
+        } else if (e instanceof Expression.Match) {
+            Expression.Match m = (Expression.Match) e;
+            collect(m.getScrutinee(), bound, free);
+            for (int i = 0; i < m.getBodies().size(); i++) {
+                Set<String> inner = new HashSet<>(bound);
+                patternVariables(m.getPatterns().get(i), inner);
+                collect(m.getBodies().get(i), inner, free);
+            }
+        } else if (e instanceof Expression.Plus) {
+            collect(((Expression.Plus) e).getLeft(), bound, free);
+            collect(((Expression.Plus) e).getRight(), bound, free);
+        } else if (e instanceof Expression.Minus) {
+            collect(((Expression.Minus) e).getLeft(), bound, free);
+            collect(((Expression.Minus) e).getRight(), bound, free);
+        } else if (e instanceof Expression.Times) {
+            collect(((Expression.Times) e).getLeft(), bound, free);
+            collect(((Expression.Times) e).getRight(), bound, free);
+        } else if (e instanceof Expression.Remainder) {
+            collect(((Expression.Remainder) e).getLeft(), bound, free);
+            collect(((Expression.Remainder) e).getRight(), bound, free);
+        } else if (e instanceof Expression.Equals) {
+            collect(((Expression.Equals) e).getLeft(), bound, free);
+            collect(((Expression.Equals) e).getRight(), bound, free);
+        } else if (e instanceof Expression.Cons) {
+            collect(((Expression.Cons) e).getLeft(), bound, free);
+            collect(((Expression.Cons) e).getRight(), bound, free);
+        } else if (e instanceof Expression.LazyCons) {
+            collect(((Expression.LazyCons) e).getLeft(), bound, free);
+            collect(((Expression.LazyCons) e).getRight(), bound, free);
+        } else if (e instanceof Expression.If) {
+            Expression.If i = (Expression.If) e;
+            collect(i.getLeft(), bound, free);
+            collect(i.getMiddle(), bound, free);
+            collect(i.getRight(), bound, free);
+        } else if (e instanceof Expression.isNil) {
+            collect(((Expression.isNil) e).getLeft(), bound, free);
+        } else if (e instanceof Expression.isCons) {
+            collect(((Expression.isCons) e).getLeft(), bound, free);
+        } else if (e instanceof Expression.Car) {
+            collect(((Expression.Car) e).getLeft(), bound, free);
+        } else if (e instanceof Expression.Cdr) {
+            collect(((Expression.Cdr) e).getLeft(), bound, free);
+        } else if (e instanceof Expression.Delay) {
+            collect(((Expression.Delay) e).getBody(), bound, free);
+        } else if (e instanceof Expression.Force) {
+            collect(((Expression.Force) e).getArgument(), bound, free);
+        } else if (e instanceof Expression.StructPredicate) {
+            collect(((Expression.StructPredicate) e).getArgument(), bound, free);
+        } else if (e instanceof Expression.StructAccess) {
+            collect(((Expression.StructAccess) e).getArgument(), bound, free);
+        } else if (e instanceof Expression.MakeVector) {
+            collectAll(((Expression.MakeVector) e).getElements(), bound, free);
+        } else if (e instanceof Expression.VectorRef) {
+            collect(((Expression.VectorRef) e).getVector(), bound, free);
+            collect(((Expression.VectorRef) e).getIndex(), bound, free);
+        } else if (e instanceof Expression.VectorLength) {
+            collect(((Expression.VectorLength) e).getVector(), bound, free);
+        } else if (e instanceof Expression.VectorSet) {
+            Expression.VectorSet vs = (Expression.VectorSet) e;
+            collect(vs.getVector(), bound, free);
+            collect(vs.getIndex(), bound, free);
+            collect(vs.getElement(), bound, free);
+        } else if (e instanceof Expression.ListToVector) {
+            collect(((Expression.ListToVector) e).getList(), bound, free);
+        } else if (e instanceof Expression.VectorToList) {
+            collect(((Expression.VectorToList) e).getVector(), bound, free);
+        } else if (e instanceof Expression.MapPut) {
+            Expression.MapPut mp = (Expression.MapPut) e;
+            collect(mp.getMap(), bound, free);
+            collect(mp.getKey(), bound, free);
+            collect(mp.getValue(), bound, free);
+        } else if (e instanceof Expression.MapGet) {
+            collect(((Expression.MapGet) e).getMap(), bound, free);
+            collect(((Expression.MapGet) e).getKey(), bound, free);
+        } else if (e instanceof Expression.MapContains) {
+            collect(((Expression.MapContains) e).getMap(), bound, free);
+            collect(((Expression.MapContains) e).getKey(), bound, free);
+        } else if (e instanceof Expression.MapRemove) {
+            collect(((Expression.MapRemove) e).getMap(), bound, free);
+            collect(((Expression.MapRemove) e).getKey(), bound, free);
+        } else if (e instanceof Expression.MapSize) {
+            collect(((Expression.MapSize) e).getMap(), bound, free);
+        } else if (e instanceof Expression.AlistToMap) {
+            collect(((Expression.AlistToMap) e).getList(), bound, free);
+        } else if (!(e instanceof Expression.IntegerLiteral || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil || e instanceof Expression.Symbol || e instanceof Expression.MapEmpty
+                || e instanceof Expression.StructValue || e instanceof Expression.Thunk
+                || e instanceof Expression.VectorValue || e instanceof Expression.MapValue)) {
+            // Values refer to no names (a thunk carries its own environment); anything else is new.
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+        }
+    }
+
+    private static void collectAll(List<Expression> es, Set<String> bound, Set<String> free) {
+        for (Expression e : es) {
+            collect(e, bound, free);
+        }
+    }
+
+    private static void patternVariables(Pattern p, Set<String> names) {
+        if (p instanceof Pattern.Variable) {
+            names.add(((Pattern.Variable) p).getVarname());
+        } else if (p instanceof Pattern.Cons) {
+            patternVariables(((Pattern.Cons) p).getLeft(), names);
+            patternVariables(((Pattern.Cons) p).getRight(), names);
+        } else if (p instanceof Pattern.Struct) {
+            for (Pattern field : ((Pattern.Struct) p).getFields()) {
+                patternVariables(field, names);
+            }
+        }
+    }
+}
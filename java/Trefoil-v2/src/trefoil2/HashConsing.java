@@ -0,0 +1,111 @@
+package trefoil2;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional hash-consing of immutable runtime values.
+ *
+ * When enabled, the value factories in Expression (ofInt, ofBoolean, cons) look up every
+ * freshly built value in a weak, concurrent intern table and return the canonical instance
+ * if an equal one is already alive. Structurally identical lists then share one set of
+ * cons cells, and comparing two interned cons cells is a pointer compare.
+ *
+ * The table only holds weak references, so values that the program no longer uses are
+ * collected as usual. It is off by default; turn it on with setEnabled(true) or by running
+ * with -Dtrefoil2.hashConsing=true.
+ */
+public class HashConsing {
+    private static volatile boolean enabled = Boolean.getBoolean("trefoil2.hashConsing");
+
+    private static final ConcurrentHashMap<WeakEntry, WeakEntry> table = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Expression> queue = new ReferenceQueue<>();
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        HashConsing.enabled = enabled;
+    }
+
+    /**
+     * Returns the number of live entries in the intern table. Useful for tests and tuning.
+     */
+    public static int size() {
+        expungeStaleEntries();
+        return table.size();
+    }
+
+    /**
+     * Returns the canonical instance equal to value, making value canonical if there is none yet.
+     *
+     * For cons cells, the children should already be canonical (which they are whenever they
+     * were built through the Expression factories), so that the equality check done by the
+     * table is constant time.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Expression> T intern(T value) {
+        expungeStaleEntries();
+        WeakEntry entry = new WeakEntry(value, queue);
+        while (true) {
+            WeakEntry existing = table.putIfAbsent(entry, entry);
+            if (existing == null) {
+                if (value instanceof Expression.Cons) {
+                    ((Expression.Cons) value).markInterned();
+                }
+                return value;
+            }
+            Expression canonical = existing.get();
+            if (canonical != null) {
+                // Our entry never made it into the table; make sure it is not enqueued later.
+                entry.clear();
+                return (T) canonical;
+            }
+            // The canonical instance was collected but its entry is still around. Drop it and retry.
+            table.remove(existing, existing);
+        }
+    }
+
+    private static void expungeStaleEntries() {
+        Reference<? extends Expression> ref;
+        while ((ref = queue.poll()) != null) {
+            table.remove(ref, ref);
+        }
+    }
+
+    /**
+     * A weak reference that is equal to another entry when their referents are equal.
+     *
+     * The hash code is captured up front so that the entry can still be found (and removed)
+     * after its referent has been collected. A cleared entry is only equal to itself.
+     */
+    private static class WeakEntry extends WeakReference<Expression> {
+        private final int hash;
+
+        WeakEntry(Expression value, ReferenceQueue<Expression> queue) {
+            super(value, queue);
+            this.hash = value.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WeakEntry) || ((WeakEntry) o).hash != hash) {
+                return false;
+            }
+            Expression mine = get();
+            Expression theirs = ((WeakEntry) o).get();
+            return mine != null && theirs != null && mine.getClass() == theirs.getClass() && mine.equals(theirs);
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package trefoil2;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.ToString;
+import parser.SourceSpan;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Interprets expressions and bindings in the context of a dynamic environment
@@ -20,6 +27,18 @@ public class Interpreter {
      * Throws TrefoilError.RuntimeError when the Trefoil programmer makes a mistake.
      */
     public static Expression interpretExpression(Expression e, DynamicEnvironment environment) {
+        return interpretExpression(e, environment, ExecutionContext.current());
+    }
+
+    /**
+     * Same as interpretExpression(e, environment), with the calling thread's ExecutionContext
+     * passed along explicitly so that it is not looked up again at every node.
+     */
+    static Expression interpretExpression(Expression e, DynamicEnvironment environment, ExecutionContext context) {
+        context.step();
+        if (Metrics.isEnabled()) {
+            Metrics.expressionEvaluated(e);
+        }
         if (e instanceof Expression.IntegerLiteral || e instanceof Expression.BooleanLiteral) {
             return e;
         } else if (e instanceof Expression.VariableReference) {
@@ -27,16 +46,18 @@ public class Interpreter {
             return environment.getVariable(var.getVarname());
         } else if (e instanceof Expression.Plus) {
             Expression.Plus p = (Expression.Plus) e;
-            Expression v1 = interpretExpression(p.getLeft(), environment);
-            Expression v2 = interpretExpression(p.getRight(), environment);
+            Expression v1 = interpretExpression(p.getLeft(), environment, context);
+            Expression v2 = interpretExpression(p.getRight(), environment, context);
             // TODO: the following return statement is wrong because it does not correctly check
             //       for run-time type errors. fix it by checking that both children evaluated to
             //       IntegerLiterals and if not throwing TrefoilError.RuntimeError.
 
-            if (!(v1 instanceof Expression.IntegerLiteral && v2 instanceof  Expression.IntegerLiteral)) {
+            // Nodes marked by TypeInference have proven integer operands.
+            if (!p.isTypeChecked() && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof  Expression.IntegerLiteral)) {
                 throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
             }
-            return new Expression.IntegerLiteral(
+            context.allocate(1);
+            return Expression.ofInt(
                     ((Expression.IntegerLiteral) v1).getData() +
                             ((Expression.IntegerLiteral) v2).getData()
             );
@@ -45,132 +66,483 @@ public class Interpreter {
         // TODO: be sure to check for run-time type errors and throw TrefoilError.RuntimeError.
         } else if (e instanceof Expression.Minus) {
             Expression.Minus m = (Expression.Minus) e;
-            Expression v1 = interpretExpression(m.getLeft(), environment);
-            Expression v2 = interpretExpression(m.getRight(), environment);
+            Expression v1 = interpretExpression(m.getLeft(), environment, context);
+            Expression v2 = interpretExpression(m.getRight(), environment, context);
 
-            if (!(v1 instanceof Expression.IntegerLiteral && v2 instanceof  Expression.IntegerLiteral)) {
+            if (!m.isTypeChecked() && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof  Expression.IntegerLiteral)) {
                 throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
             }
-            return new Expression.IntegerLiteral(
+            context.allocate(1);
+            return Expression.ofInt(
                     ((Expression.IntegerLiteral) v1).getData() -
                             ((Expression.IntegerLiteral) v2).getData()
             );
         } else if (e instanceof Expression.Times) {
             Expression.Times t = (Expression.Times) e;
-            Expression v1 = interpretExpression(t.getLeft(), environment);
-            Expression v2 = interpretExpression(t.getRight(), environment);
+            Expression v1 = interpretExpression(t.getLeft(), environment, context);
+            Expression v2 = interpretExpression(t.getRight(), environment, context);
 
-            if (!(v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral)) {
+            if (!t.isTypeChecked() && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral)) {
                 throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
             }
-            return new Expression.IntegerLiteral(
+            context.allocate(1);
+            return Expression.ofInt(
                     ((Expression.IntegerLiteral) v1).getData() *
                             ((Expression.IntegerLiteral) v2).getData()
             );
         } else if (e instanceof Expression.Equals) {
             Expression.Equals e1 = (Expression.Equals) e;
-            Expression v1 = interpretExpression(e1.getLeft(), environment);
-            Expression v2 = interpretExpression(e1.getRight(), environment);
+            Expression v1 = interpretExpression(e1.getLeft(), environment, context);
+            Expression v2 = interpretExpression(e1.getRight(), environment, context);
 
-            if (!(v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral)) {
+            if (!e1.isTypeChecked() && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral)) {
                 throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
             }
-            return new Expression.BooleanLiteral(
+            return Expression.ofBoolean(
                     ((Expression.IntegerLiteral) v1).getData() ==
                             ((Expression.IntegerLiteral) v2).getData()
             );
         } else if (e instanceof Expression.If) {
             Expression.If e1 = (Expression.If) e;
-            Expression v1 = interpretExpression(e1.getLeft(), environment);
+            Expression v1 = interpretExpression(e1.getLeft(), environment, context);
+
+            if (e1.isTypeChecked()) {
+                // TypeInference proved that the condition is a boolean.
+                return interpretExpression(((Expression.BooleanLiteral) v1).isData() ? e1.getMiddle() : e1.getRight(),
+                        environment, context);
+            }
 
             if (v1 instanceof Expression.BooleanLiteral &&
                     !((Expression.BooleanLiteral) interpretExpression(v1)).isData()) {
-                return interpretExpression(interpretExpression(e1.getRight(), environment));
+                return interpretExpression(interpretExpression(e1.getRight(), environment, context));
             } else {
-                return interpretExpression(interpretExpression(e1.getMiddle(), environment));
+                return interpretExpression(interpretExpression(e1.getMiddle(), environment, context));
             }
         } else if (e instanceof Expression.Cons) {
             Expression.Cons c = (Expression.Cons) e;
-            Expression v1 = interpretExpression(c.getLeft(), environment);
-            Expression v2 = interpretExpression(c.getRight(), environment);
+            Expression v1 = interpretExpression(c.getLeft(), environment, context);
+            Expression v2 = interpretExpression(c.getRight(), environment, context);
+
+            context.allocate(1);
 
-            return new Expression.Cons(v1, v2);
+            return Expression.cons(v1, v2);
         } else if (e instanceof Expression.Nil) {
             return new Expression.Nil();
         } else if (e instanceof Expression.isNil) {
             Expression.isNil i = (Expression.isNil) e;
-            Expression v1 = interpretExpression(i.getLeft(), environment);
+            Expression v1 = force(interpretExpression(i.getLeft(), environment, context), context);
 
             if (v1 instanceof Expression.Nil) {
-                return new Expression.BooleanLiteral(true);
+                return Expression.ofBoolean(true);
             } else {
-                return new Expression.BooleanLiteral(false);
+                return Expression.ofBoolean(false);
             }
         } else if (e instanceof Expression.isCons) {
             Expression.isCons c1 = (Expression.isCons) e;
-            Expression v = interpretExpression(c1.getLeft(), environment);
+            Expression v = force(interpretExpression(c1.getLeft(), environment, context), context);
 
             if (v instanceof Expression.Cons) {
-                return new Expression.BooleanLiteral(true);
+                return Expression.ofBoolean(true);
             } else {
-                return new Expression.BooleanLiteral(false);
+                return Expression.ofBoolean(false);
             }
         } else if (e instanceof  Expression.Car) {
             Expression.Car ca = (Expression.Car) e;
-            Expression v = interpretExpression(ca.getLeft(), environment);
+            Expression v = force(interpretExpression(ca.getLeft(), environment, context), context);
 
             Expression.Cons c = (Expression.Cons) v;
-            return interpretExpression(c.getLeft(), environment);
+            return interpretExpression(c.getLeft(), environment, context);
         } else if (e instanceof  Expression.Cdr) {
             Expression.Cdr cd = (Expression.Cdr) e;
-            Expression v = interpretExpression(cd.getLeft(), environment);
+            Expression v = force(interpretExpression(cd.getLeft(), environment, context), context);
 
             Expression.Cons c = (Expression.Cons) v;
-            return interpretExpression(c.getRight(), environment);
+            // The tail of a lazy cons is forced here, so that code written for lists also works on streams.
+            return force(interpretExpression(c.getRight(), environment, context), context);
         } else if (e instanceof Expression.Let) {
             Expression.Let l = (Expression.Let) e;
-            Expression v1 = interpretExpression(l.getLeft(), environment);
+            Expression v1 = interpretExpression(l.getLeft(), environment, context);
             String string = l.getString();
 
             DynamicEnvironment env = environment.extendVariable(string, v1);
-            return interpretExpression(v1, env);
+            return interpretExpression(v1, env, context);
         } else if (e instanceof Expression.Function) {
-            DynamicEnvironment callenv = environment;
-            DynamicEnvironment defenv = environment.getFunction(((Expression.Function) e).getString()).definingEnvironment;
-            Binding.FunctionBinding bind = environment.getFunction(((Expression.Function) e).getString()).functionBinding;
-            List<Expression> list;
-
-            if (bind.getArgnames().size() != ((Expression.Function) e).getExpressions().size()) {
-                throw new Trefoil2.TrefoilError.RuntimeError("Arguments and parameters are sequences of different lengths");
+            Expression.Function call = (Expression.Function) e;
+            // One lookup, which resolves struct constructors, built-ins and functions alike.
+            DynamicEnvironment.Entry entry = environment.getMap().get(call.getString());
+            if (!(entry instanceof DynamicEnvironment.Entry.FunctionEntry)) {
+                return callOther(call, entry, environment, context);
             }
-            list = new ArrayList<>();
-            for (int i = 0; i < ((Expression.Function) e).getExpressions().size(); i++) {
-                list.add(interpretExpression(((Expression.Function) e).getExpressions().get(i), callenv));
+            DynamicEnvironment.Entry.FunctionEntry function = (DynamicEnvironment.Entry.FunctionEntry) entry;
+            // The inline cache: if the name still maps to the function entry called last time, the arity
+            // has been checked already.
+            if (call.getCachedTarget() != function) {
+                cacheTarget(call, function);
+            } else if (Metrics.isEnabled()) {
+                Metrics.inlineCacheHit();
             }
-            return interpretExpression(bind.getBody(), defenv.extendVariables(bind.getArgnames(), list));
+            List<Expression> list = new ArrayList<>(call.getExpressions().size());
+            for (int i = 0; i < call.getExpressions().size(); i++) {
+                list.add(interpretExpression(call.getExpressions().get(i), environment, context));
+            }
+            return callFunction(function, list, call.getSpan(), context);
 
             // Interpret my own feature.
         } else if (e instanceof Expression.Remainder) {
             Expression.Remainder d = (Expression.Remainder) e;
-            Expression v1 = interpretExpression(d.getLeft(), environment);
-            Expression v2 = interpretExpression(d.getRight(), environment);
+            Expression v1 = interpretExpression(d.getLeft(), environment, context);
+            Expression v2 = interpretExpression(d.getRight(), environment, context);
 
-            if (!(v1 instanceof Expression.IntegerLiteral && v2 instanceof  Expression.IntegerLiteral)) {
+            if (!d.isTypeChecked() && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof  Expression.IntegerLiteral)) {
                 throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
             }
             if (((Expression.IntegerLiteral) v2).getData() == 0) {
                 throw new Trefoil2.TrefoilError.RuntimeError(v1 + " can't be divided by 0");
             }
-            return new Expression.IntegerLiteral(
+            context.allocate(1);
+            return Expression.ofInt(
                     ((Expression.IntegerLiteral) v1).getData() %
                             ((Expression.IntegerLiteral) v2).getData()
             );
+        } else if (e instanceof Expression.Symbol || e instanceof Expression.StructValue
+                || e instanceof Expression.Thunk || e instanceof Expression.VectorValue || e instanceof Expression.MapValue) {
+            return e;
+        }
+        // The node kinds added since are each evaluated by a helper of their own, to keep the frame
+        // of this method, which is on the Java stack once per nested node, small.
+        return interpretExtension(e, environment, context);
+    }
+
+    private static Expression interpretExtension(Expression e, DynamicEnvironment environment, ExecutionContext context) {
+        if (e instanceof Expression.Delay) {
+            context.allocate(1);
+            return new Expression.Thunk(((Expression.Delay) e).getBody(), environment);
+        } else if (e instanceof Expression.Force) {
+            return force(interpretExpression(((Expression.Force) e).getArgument(), environment, context), context);
+        } else if (e instanceof Expression.LazyCons) {
+            return lazyCons((Expression.LazyCons) e, environment, context);
+        } else if (e instanceof Expression.StructPredicate) {
+            return structPredicate((Expression.StructPredicate) e, environment, context);
+        } else if (e instanceof Expression.StructAccess) {
+            return structAccess((Expression.StructAccess) e, environment, context);
+        } else if (e instanceof Expression.Match) {
+            return match((Expression.Match) e, environment, context);
+        } else if (e instanceof Expression.MakeVector) {
+            return makeVector((Expression.MakeVector) e, environment, context);
+        } else if (e instanceof Expression.VectorRef) {
+            return vectorRef((Expression.VectorRef) e, environment, context);
+        } else if (e instanceof Expression.VectorLength) {
+            Expression.VectorLength vl = (Expression.VectorLength) e;
+            return Expression.ofInt(vectorElements("vector-length", interpretExpression(vl.getVector(), environment, context)).size());
+        } else if (e instanceof Expression.VectorSet) {
+            return vectorSet((Expression.VectorSet) e, environment, context);
+        } else if (e instanceof Expression.ListToVector) {
+            return listToVector((Expression.ListToVector) e, environment, context);
+        } else if (e instanceof Expression.VectorToList) {
+            return vectorToList((Expression.VectorToList) e, environment, context);
+        } else if (e instanceof Expression.MapEmpty) {
+            return new Expression.MapValue(PersistentHashMap.empty());
+        } else if (e instanceof Expression.MapPut) {
+            return mapPut((Expression.MapPut) e, environment, context);
+        } else if (e instanceof Expression.MapGet) {
+            return mapGet((Expression.MapGet) e, environment, context);
+        } else if (e instanceof Expression.MapContains) {
+            Expression.MapContains mc = (Expression.MapContains) e;
+            PersistentHashMap<Expression, Expression> entries = mapEntries("map-contains?", interpretExpression(mc.getMap(), environment, context));
+            return Expression.ofBoolean(entries.containsKey(mapKey("map-contains?", interpretExpression(mc.getKey(), environment, context))));
+        } else if (e instanceof Expression.MapRemove) {
+            return mapRemove((Expression.MapRemove) e, environment, context);
+        } else if (e instanceof Expression.MapSize) {
+            Expression.MapSize ms = (Expression.MapSize) e;
+            return Expression.ofInt(mapEntries("map-size", interpretExpression(ms.getMap(), environment, context)).size());
+        } else if (e instanceof Expression.AlistToMap) {
+            return alistToMap((Expression.AlistToMap) e, environment, context);
         } else {
             // Otherwise, it's an expression AST node we don't recognize. Tell the interpreter implementor.
             throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
         }
     }
 
+    // Calls of names that are not bound to functions: struct constructors, built-ins, and errors.
+    // Those calls are not cached, and not counted as inline cache misses either.
+    private static Expression callOther(Expression.Function call, DynamicEnvironment.Entry entry,
+                                        DynamicEnvironment environment, ExecutionContext context) {
+        if (entry instanceof DynamicEnvironment.Entry.StructEntry) {
+            // Calling a struct's name constructs a value of that struct.
+            return construct(((DynamicEnvironment.Entry.StructEntry) entry).getType(), call, environment, context);
+        } else if (entry == null && NativeLists.isNative(call.getString())) {
+            // A built-in list function, which the program has not redefined.
+            return NativeLists.call(call, environment, context);
+        } else if (entry == null) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Function " + call.getString() + " is not defined");
+        }
+        throw new Trefoil2.TrefoilError.RuntimeError("The variable doesn't contain");
+    }
+
+    private static void cacheTarget(Expression.Function call, DynamicEnvironment.Entry.FunctionEntry function) {
+        if (Metrics.isEnabled()) {
+            Metrics.inlineCacheMissed();
+        }
+        if (function.functionBinding.getArgnames().size() != call.getExpressions().size()) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Arguments and parameters are sequences of different lengths");
+        }
+        call.setCachedTarget(function);
+    }
+
+    private static Expression lazyCons(Expression.LazyCons lc, DynamicEnvironment environment, ExecutionContext context) {
+        Expression v1 = interpretExpression(lc.getLeft(), environment, context);
+        context.allocate(2);
+        return Expression.cons(v1, new Expression.Thunk(lc.getRight(), environment));
+    }
+
+    private static Expression structPredicate(Expression.StructPredicate sp, DynamicEnvironment environment,
+                                              ExecutionContext context) {
+        Expression v = interpretExpression(sp.getArgument(), environment, context);
+        return Expression.ofBoolean(v instanceof Expression.StructValue
+                && isInstance((Expression.StructValue) v, sp.getType()));
+    }
+
+    private static Expression structAccess(Expression.StructAccess sa, DynamicEnvironment environment,
+                                           ExecutionContext context) {
+        Expression v = interpretExpression(sa.getArgument(), environment, context);
+        if (!(v instanceof Expression.StructValue && isInstance((Expression.StructValue) v, sa.getType()))) {
+            throw new Trefoil2.TrefoilError.RuntimeError(sa.getType().getName() + "-"
+                    + sa.getType().getFieldNames().get(sa.getIndex()) + " applied to " + v
+                    + ", which is not a " + sa.getType().getName());
+        }
+        return ((Expression.StructValue) v).getSlots()[sa.getIndex()];
+    }
+
+    private static Expression match(Expression.Match m, DynamicEnvironment environment, ExecutionContext context) {
+        Expression v = interpretExpression(m.getScrutinee(), environment, context);
+        DecisionTree tree = m.getDecisionTree();
+        Expression[] registers = new Expression[tree.getRegisterCount()];
+        DecisionTree.Leaf leaf = tree.match(v, registers);
+        if (leaf == null) {
+            throw new Trefoil2.TrefoilError.RuntimeError("No match clause matches " + v);
+        }
+        DynamicEnvironment env = leaf.getNames().isEmpty()
+                ? environment
+                : environment.extendVariables(leaf.getNames(), leaf.values(registers));
+        return interpretExpression(m.getBodies().get(leaf.getClause()), env, context);
+    }
+
+    private static Expression makeVector(Expression.MakeVector mv, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentVector<Expression> elements = PersistentVector.empty();
+        for (Expression element : mv.getElements()) {
+            elements = elements.append(interpretExpression(element, environment, context));
+        }
+        context.allocate(1 + elements.size() / 32);
+        return new Expression.VectorValue(elements);
+    }
+
+    private static Expression vectorRef(Expression.VectorRef vr, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentVector<Expression> elements = vectorElements("vector-ref", interpretExpression(vr.getVector(), environment, context));
+        int i = vectorIndex("vector-ref", elements, interpretExpression(vr.getIndex(), environment, context));
+        return elements.get(i);
+    }
+
+    private static Expression vectorSet(Expression.VectorSet vs, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentVector<Expression> elements = vectorElements("vector-set", interpretExpression(vs.getVector(), environment, context));
+        int i = vectorIndex("vector-set", elements, interpretExpression(vs.getIndex(), environment, context));
+        Expression v = interpretExpression(vs.getElement(), environment, context);
+        // Only the path to element i is copied: one array per level of the trie.
+        context.allocate(2);
+        return new Expression.VectorValue(elements.set(i, v));
+    }
+
+    private static Expression listToVector(Expression.ListToVector lv, DynamicEnvironment environment, ExecutionContext context) {
+        Expression v = force(interpretExpression(lv.getList(), environment, context), context);
+        PersistentVector<Expression> elements = PersistentVector.empty();
+        while (v instanceof Expression.Cons) {
+            Expression.Cons c = (Expression.Cons) v;
+            elements = elements.append(c.getLeft());
+            v = force(c.getRight(), context);
+        }
+        if (!(v instanceof Expression.Nil)) {
+            throw new Trefoil2.TrefoilError.RuntimeError("list->vector applied to an improper list ending in " + v);
+        }
+        context.allocate(1 + elements.size() / 32);
+        return new Expression.VectorValue(elements);
+    }
+
+    private static Expression vectorToList(Expression.VectorToList vl, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentVector<Expression> elements = vectorElements("vector->list",
+                interpretExpression(vl.getVector(), environment, context));
+        Expression list = Expression.nil();
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            list = Expression.cons(elements.get(i), list);
+        }
+        context.allocate(elements.size());
+        return list;
+    }
+
+    private static Expression mapPut(Expression.MapPut mp, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentHashMap<Expression, Expression> entries = mapEntries("map-put", interpretExpression(mp.getMap(), environment, context));
+        Expression k = mapKey("map-put", interpretExpression(mp.getKey(), environment, context));
+        Expression v = interpretExpression(mp.getValue(), environment, context);
+        // Only the path to the key is copied: one small array per level of the trie.
+        context.allocate(2);
+        return new Expression.MapValue(entries.put(k, v));
+    }
+
+    private static Expression mapGet(Expression.MapGet mg, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentHashMap<Expression, Expression> entries = mapEntries("map-get", interpretExpression(mg.getMap(), environment, context));
+        Expression k = mapKey("map-get", interpretExpression(mg.getKey(), environment, context));
+        Expression v = entries.get(k);
+        if (v == null) {
+            throw new Trefoil2.TrefoilError.RuntimeError("map-get: key " + k + " is not in the map");
+        }
+        return v;
+    }
+
+    private static Expression mapRemove(Expression.MapRemove mr, DynamicEnvironment environment, ExecutionContext context) {
+        PersistentHashMap<Expression, Expression> entries = mapEntries("map-remove", interpretExpression(mr.getMap(), environment, context));
+        Expression k = mapKey("map-remove", interpretExpression(mr.getKey(), environment, context));
+        context.allocate(2);
+        return new Expression.MapValue(entries.remove(k));
+    }
+
+    private static Expression alistToMap(Expression.AlistToMap am, DynamicEnvironment environment, ExecutionContext context) {
+        Expression[] pairs = NativeLists.toArray("alist->map", interpretExpression(am.getList(), environment, context), context);
+        PersistentHashMap.Builder<Expression, Expression> builder = PersistentHashMap.builder();
+        // Backwards, so that the first entry for a key wins, as with a lookup in the list.
+        for (int i = pairs.length - 1; i >= 0; i--) {
+            Expression pair = force(pairs[i], context);
+            if (!(pair instanceof Expression.Cons)) {
+                throw new Trefoil2.TrefoilError.RuntimeError("alist->map: " + pair + " is not a (cons key value) pair");
+            }
+            Expression.Cons c = (Expression.Cons) pair;
+            builder.put(mapKey("alist->map", c.getLeft()), c.getRight());
+        }
+        context.allocate(1 + pairs.length);
+        return new Expression.MapValue(builder.build());
+    }
+
+    private static Expression construct(StructType type, Expression.Function call, DynamicEnvironment environment,
+                                        ExecutionContext context) {
+        if (call.getExpressions().size() != type.getArity()) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Struct " + type.getName() + " expects " + type.getArity()
+                    + " fields but got " + call.getExpressions().size());
+        }
+        Expression[] slots = new Expression[type.getArity()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = interpretExpression(call.getExpressions().get(i), environment, context);
+        }
+        context.allocate(1);
+        return new Expression.StructValue(type, slots);
+    }
+
+    // Binds the parameters of function to the already evaluated args and evaluates its body, with
+    // the code Tiering has compiled if there is some, and in the interpreter otherwise. callSite is
+    // the SourceSpan of the call, for backtraces.
+    static Expression callFunction(DynamicEnvironment.Entry.FunctionEntry function, List<Expression> args,
+                                   long callSite, ExecutionContext context) {
+        Binding.FunctionBinding bind = function.functionBinding;
+        CompiledFunction code = function.profile.getCode();
+        Bytecode bytecode = function.profile.getBytecode();
+        if (code == null && bytecode == null) {
+            Tiering.called(function, context.currentFrame());
+        }
+        context.allocate(args.size());
+        context.pushFrame(bind.getFunname(), callSite);
+        if (Metrics.isEnabled()) {
+            Metrics.functionCalled(context.getDepth());
+        }
+        try {
+            if (bytecode != null) {
+                return VirtualMachine.run(bytecode, args, context);
+            } else if (code != null) {
+                return code.invoke(args, context);
+            }
+            return interpretExpression(bind.getBody(), function.definingEnvironment.extendVariables(bind.getArgnames(), args), context);
+        } finally {
+            context.popFrame();
+        }
+    }
+
+    /**
+     * Calls the function, struct constructor or built-in list function bound to name on already
+     * evaluated arguments. Used by the higher-order built-in functions.
+     */
+    static Expression apply(String name, List<Expression> args, DynamicEnvironment environment, ExecutionContext context) {
+        DynamicEnvironment.Entry entry = environment.getMap().get(name);
+        if (entry instanceof DynamicEnvironment.Entry.FunctionEntry) {
+            DynamicEnvironment.Entry.FunctionEntry function = (DynamicEnvironment.Entry.FunctionEntry) entry;
+            if (function.functionBinding.getArgnames().size() != args.size()) {
+                throw new Trefoil2.TrefoilError.RuntimeError("Arguments and parameters are sequences of different lengths");
+            }
+            return callFunction(function, args, SourceSpan.UNKNOWN, context);
+        } else if (entry instanceof DynamicEnvironment.Entry.StructEntry) {
+            StructType type = ((DynamicEnvironment.Entry.StructEntry) entry).getType();
+            if (args.size() != type.getArity()) {
+                throw new Trefoil2.TrefoilError.RuntimeError("Struct " + type.getName() + " expects " + type.getArity()
+                        + " fields but got " + args.size());
+            }
+            context.allocate(1);
+            return new Expression.StructValue(type, args.toArray(new Expression[0]));
+        } else if (entry == null && NativeLists.isNative(name)) {
+            return NativeLists.apply(name, args, context);
+        }
+        throw new Trefoil2.TrefoilError.RuntimeError(name + " is not a function");
+    }
+
+    /**
+     * Returns the value of v if it is a Thunk, and v itself otherwise.
+     */
+    static Expression force(Expression v, ExecutionContext context) {
+        return v instanceof Expression.Thunk ? ((Expression.Thunk) v).force(context) : v;
+    }
+
+    private static PersistentVector<Expression> vectorElements(String operator, Expression v) {
+        if (!(v instanceof Expression.VectorValue)) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + " applied to " + v + ", which is not a vector");
+        }
+        return ((Expression.VectorValue) v).getElements();
+    }
+
+    private static int vectorIndex(String operator, PersistentVector<Expression> elements, Expression index) {
+        if (!(index instanceof Expression.IntegerLiteral)) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + " expects an integer index but got " + index);
+        }
+        int i = ((Expression.IntegerLiteral) index).getData();
+        if (i < 0 || i >= elements.size()) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + ": index " + i + " is out of bounds for a vector of length " + elements.size());
+        }
+        return i;
+    }
+
+    private static PersistentHashMap<Expression, Expression> mapEntries(String operator, Expression v) {
+        if (!(v instanceof Expression.MapValue)) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + " applied to " + v + ", which is not a map");
+        }
+        return ((Expression.MapValue) v).getEntries();
+    }
+
+    // Map keys are integers, booleans, nil, symbols, and cons cells made of keys: values whose equals and hashCode are structural.
+    private static Expression mapKey(String operator, Expression key) {
+        if (!isStructural(key)) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + ": " + key + " cannot be used as a map key");
+        }
+        return key;
+    }
+
+    private static boolean isStructural(Expression v) {
+        while (v instanceof Expression.Cons) {
+            if (!isStructural(((Expression.Cons) v).getLeft())) {
+                return false;
+            }
+            v = ((Expression.Cons) v).getRight();
+        }
+        return v instanceof Expression.IntegerLiteral || v instanceof Expression.BooleanLiteral
+                || v instanceof Expression.Nil || v instanceof Expression.Symbol;
+    }
+
+    // Same tag and arity: see StructType.
+    private static boolean isInstance(Expression.StructValue v, StructType type) {
+        return v.getType().getTag() == type.getTag() && v.getSlots().length == type.getArity();
+    }
+
     /**
      * Executes the binding in the given environment, returning the new environment.
      *
@@ -180,37 +552,100 @@ public class Interpreter {
      * Throws TrefoilError.RuntimeError when the Trefoil programmer makes a mistake.
      */
     public static DynamicEnvironment interpretBinding(Binding b, DynamicEnvironment environment) {
+        // The binding itself is the outermost frame of the Trefoil call stack while it runs.
+        ExecutionContext context = ExecutionContext.current();
+        if (context.getDepth() == 0) {
+            // Evaluation limits apply to each top-level binding separately.
+            context.beginBinding();
+        }
+        context.pushFrame(frameName(b), b.getSpan());
+        long start = System.nanoTime();
+        try {
+            return interpretBindingInFrame(b, environment, context);
+        } finally {
+            context.popFrame();
+            if (Metrics.isEnabled()) {
+                Metrics.bindingProcessed(b, System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Frame names must not contain spaces or semicolons, which separate frames in collapsed-stack output.
+    private static String frameName(Binding b) {
+        if (b instanceof Binding.VariableBinding) {
+            return "define:" + ((Binding.VariableBinding) b).getVarname();
+        } else if (b instanceof Binding.FunctionBinding) {
+            return "define:" + ((Binding.FunctionBinding) b).getFunname();
+        } else if (b instanceof Binding.TestBinding) {
+            return "test";
+        } else if (b instanceof Binding.StructBinding) {
+            return "struct:" + ((Binding.StructBinding) b).getName();
+        } else if (b instanceof Binding.ImportBinding) {
+            return "import:" + ((Binding.ImportBinding) b).getPath().replaceAll("[ ;]", "_");
+        } else {
+            return "top-level";
+        }
+    }
+
+    private static DynamicEnvironment interpretBindingInFrame(Binding b, DynamicEnvironment environment,
+                                                              ExecutionContext context) {
         if (b instanceof Binding.VariableBinding) {
             Binding.VariableBinding vb = (Binding.VariableBinding) b;
-            Expression value = interpretExpression(vb.getVardef(), environment);
-            System.out.println(vb.getVarname() + " = " + value);
+            Expression value = interpretExpression(vb.getVardef(), environment, context);
+            printValue(vb.getVarname() + " = ", value, context);
             return environment.extendVariable(vb.getVarname(), value);
         } else if (b instanceof Binding.TopLevelExpression) {
             Binding.TopLevelExpression tle = (Binding.TopLevelExpression) b;
-            System.out.println(interpretExpression(tle.getExpression(), environment));
+            printValue("", interpretExpression(tle.getExpression(), environment, context), context);
             return environment;
         } else if (b instanceof Binding.FunctionBinding) {
             Binding.FunctionBinding fb = (Binding.FunctionBinding) b;
             DynamicEnvironment newEnvironment = environment.extendFunction(fb.getFunname(), fb);
-            System.out.println(fb.getFunname() + " is defined");
+            context.getOut().println(fb.getFunname() + " is defined");
             return newEnvironment;
         // TODO: implement the TestBinding here
         } else if (b instanceof Binding.TestBinding) {
             Binding.TestBinding tb = (Binding.TestBinding) b;
-            Expression value = interpretExpression(tb.getExpression(), environment);
+            Expression value = interpretExpression(tb.getExpression(), environment, context);
 
             if(value instanceof Expression.BooleanLiteral) {
                 if (((Expression.BooleanLiteral) value).isData()) {
                     return environment;
                 }
             }
-            throw new Trefoil2.TrefoilError.RuntimeError("Two expressions are not equal");
+            throw new Trefoil2.TrefoilError.RuntimeError("Test failed: expression evaluated to " + value + " instead of true");
+        } else if (b instanceof Binding.StructBinding) {
+            Binding.StructBinding sb = (Binding.StructBinding) b;
+            DynamicEnvironment newEnvironment = environment.extendStruct(new StructType(sb.getName(), sb.getFieldNames()));
+            context.getOut().println(sb.getName() + " is defined");
+            return newEnvironment;
+        } else if (b instanceof Binding.ImportBinding) {
+            Binding.ImportBinding ib = (Binding.ImportBinding) b;
+            DynamicEnvironment newEnvironment = environment.extendModule(ModuleCache.load(ib.getPath(), context));
+            context.getOut().println(ib.getPath() + " is imported");
+            return newEnvironment;
         }
 
         // Otherwise it's a binding AST node we don't recognize. Tell the interpreter implementor.
         throw new Trefoil2.InternalInterpreterError("\"impossible\" binding AST node " + b.getClass());
     }
 
+    /**
+     * Prints prefix and value on a line of the context's output, streaming the value with the
+     * context's Printer.Options rather than building its string first.
+     */
+    private static void printValue(String prefix, Expression value, ExecutionContext context) {
+        PrintWriter out = new PrintWriter(context.getOut());
+        out.print(prefix);
+        try {
+            Printer.print(value, out, context.getPrintOptions());
+        } catch (IOException e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+        out.println();
+        out.flush();
+    }
+
 
     // Convenience methods for interpreting in the empty environment.
     // Used for testing.
@@ -243,6 +678,18 @@ public class Interpreter {
 
                 @ToString.Exclude
                 private final DynamicEnvironment definingEnvironment;
+
+                // Call counts and compiled code, see Tiering.
+                @Getter(AccessLevel.PACKAGE)
+                @EqualsAndHashCode.Exclude
+                @ToString.Exclude
+                private final Tiering.Profile profile = new Tiering.Profile();
+            }
+
+            @EqualsAndHashCode(callSuper = false)
+            @Data
+            public static class StructEntry extends Entry {
+                private final StructType type;
             }
 
             // Convenience factory methods
@@ -253,6 +700,9 @@ public class Interpreter {
             public static Entry function(Binding.FunctionBinding functionBinding, DynamicEnvironment definingEnvironment) {
                 return new FunctionEntry(functionBinding, definingEnvironment);
             }
+            public static Entry struct(StructType type) {
+                return new StructEntry(type);
+            }
         }
 
         // The backing map of this dynamic environment.
@@ -266,6 +716,10 @@ public class Interpreter {
             this.map = new HashMap<>(other.getMap());
         }
 
+        private DynamicEnvironment(Map<String, Entry> map) {
+            this.map = map;
+        }
+
         private boolean containsVariable(String varname) {
             return map.containsKey(varname) && map.get(varname) instanceof Entry.VariableEntry;
         }
@@ -286,8 +740,9 @@ public class Interpreter {
             // TODO: bind the variable in the backing map
             // Hint: map.put
             // Hint: either call new Entry.VariableEntry or the factory Entry.variable
-            Expression e = Interpreter.interpretExpression(value, this);
-            System.out.println(varname + " = " + e.toString());
+            ExecutionContext context = ExecutionContext.current();
+            Expression e = Interpreter.interpretExpression(value, this, context);
+            context.getOut().println(varname + " = " + e.toString());
             map.put(varname, Entry.variable(value));
         }
 
@@ -299,6 +754,7 @@ public class Interpreter {
         public DynamicEnvironment extendVariable(String varname, Expression value) {
             DynamicEnvironment newEnv = new DynamicEnvironment(this);  // create a copy
             newEnv.putVariable(varname, value);  // mutate the copy
+            newEnv.recordExtension();
             return newEnv;  // return the mutated copy (this remains unchanged!)
         }
 
@@ -318,6 +774,7 @@ public class Interpreter {
             for (int i = 0; i < varnames.size(); i++) {
                 newEnv.putVariable(varnames.get(i), values.get(i));
             }
+            newEnv.recordExtension();
             return newEnv;
         }
 
@@ -350,15 +807,85 @@ public class Interpreter {
                     }
                 }
             }
-            map.put(funname, Entry.function(functionBinding, this));
+            map.put(funname, capture(funname, functionBinding));
+        }
+
+        /**
+         * Returns a function entry for functionBinding whose defining environment holds only what
+         * the body can look up: the entries of this for its free names, and the function itself,
+         * so that it can call itself. See FreeVariables.
+         */
+        private Entry.FunctionEntry capture(String funname, Binding.FunctionBinding functionBinding) {
+            Set<String> names = functionBinding.getFreeNames();
+            DynamicEnvironment closure = new DynamicEnvironment(new HashMap<>(names.size() * 2 + 2));
+            for (String name : names) {
+                Entry entry = map.get(name);
+                if (entry != null) {
+                    closure.map.put(name, entry);
+                }
+            }
+            Entry.FunctionEntry function = new Entry.FunctionEntry(functionBinding, closure);
+            closure.map.put(funname, function);
+            return function;
         }
 
         public DynamicEnvironment extendFunction(String funname, Binding.FunctionBinding functionBinding) {
             DynamicEnvironment newEnv = new DynamicEnvironment(this);  // create a copy of this
             newEnv.putFunction(funname, functionBinding);  // mutate the copy
+            newEnv.recordExtension();
             return newEnv;  // return the copy
         }
 
+        /**
+         * Returns a *new* DynamicEnvironment extended by the struct, its predicate function name? and
+         * one accessor function name-field per field, like in Trefoil v3.
+         *
+         * Does not change this! Creates a copy.
+         */
+        public DynamicEnvironment extendStruct(StructType type) {
+            DynamicEnvironment newEnv = new DynamicEnvironment(this);
+            newEnv.map.put(type.getName(), Entry.struct(type));
+            List<String> x = Collections.singletonList("x");
+            Expression.VariableReference argument = new Expression.VariableReference("x");
+            newEnv.putFunction(type.getName() + "?", new Binding.FunctionBinding(type.getName() + "?", x,
+                    new Expression.StructPredicate(type, argument)));
+            for (int i = 0; i < type.getArity(); i++) {
+                String accessor = type.getName() + "-" + type.getFieldNames().get(i);
+                newEnv.putFunction(accessor, new Binding.FunctionBinding(accessor, x,
+                        new Expression.StructAccess(type, i, argument)));
+            }
+            newEnv.recordExtension();
+            return newEnv;
+        }
+
+        /**
+         * Returns a *new* DynamicEnvironment extended by everything module exports.
+         *
+         * Does not change this! Creates a copy.
+         */
+        public DynamicEnvironment extendModule(ModuleCache.Module module) {
+            return extendEntries(module.getExports());
+        }
+
+        /**
+         * Returns a *new* DynamicEnvironment extended by entries, which were bound before, for
+         * example by a module or by an earlier run of a WatchSession.
+         *
+         * Does not change this! Creates a copy.
+         */
+        DynamicEnvironment extendEntries(Map<String, Entry> entries) {
+            DynamicEnvironment newEnv = new DynamicEnvironment(this);
+            newEnv.map.putAll(entries);
+            newEnv.recordExtension();
+            return newEnv;
+        }
+
+        private void recordExtension() {
+            if (Metrics.isEnabled()) {
+                Metrics.environmentExtended(map.size());
+            }
+        }
+
         // Convenience factory methods
 
         public static DynamicEnvironment empty() {
@@ -0,0 +1,241 @@
+package trefoil2;
+
+import lombok.Data;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters and gauges describing what the interpreter has been doing in this JVM.
+ *
+ * Everything is recorded with striped LongAdders (looked up through ClassValues, not maps) so
+ * collection never takes a lock on the evaluation path and is cheap enough to leave on.
+ * Read the numbers with snapshot(), or over JMX under the name "trefoil2:type=Metrics",
+ * which is registered the first time this class is used.
+ */
+public class Metrics {
+    public static final String OBJECT_NAME = "trefoil2:type=Metrics";
+
+    // Number of latency buckets. Bucket i counts latencies in [2^i, 2^(i+1)) nanoseconds.
+    public static final int LATENCY_BUCKETS = 40;
+
+    private static volatile boolean enabled = true;
+
+    private static final ConcurrentHashMap<String, LongAdder> expressions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> bindings = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder[]> bindingLatencies = new ConcurrentHashMap<>();
+
+    private static final ClassValue<LongAdder> expressionCounter = counterFor(expressions);
+    private static final ClassValue<LongAdder> bindingCounter = counterFor(bindings);
+    private static final ClassValue<LongAdder> errorCounter = counterFor(errors);
+    private static final ClassValue<LongAdder[]> bindingLatency = new ClassValue<LongAdder[]>() {
+        @Override
+        protected LongAdder[] computeValue(Class<?> type) {
+            return bindingLatencies.computeIfAbsent(type.getSimpleName(), k -> {
+                LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+                return buckets;
+            });
+        }
+    };
+
+    private static final LongAdder functionCalls = new LongAdder();
+    private static final LongAccumulator maxRecursionDepth = new LongAccumulator(Math::max, 0);
+    private static final LongAdder environmentExtensions = new LongAdder();
+    private static final LongAdder inlineCacheHits = new LongAdder();
+    private static final LongAdder inlineCacheMisses = new LongAdder();
+    private static final LongAdder functionsCompiled = new LongAdder();
+    private static final LongAdder compileNanos = new LongAdder();
+    // Written on every environment extension, so not volatile: a reader on another thread may see
+    // a slightly older size, which is good enough for a gauge. An int, so writes are never torn.
+    private static int environmentSize = 0;
+
+    static {
+        registerMBean();
+    }
+
+    private static ClassValue<LongAdder> counterFor(ConcurrentHashMap<String, LongAdder> byName) {
+        return new ClassValue<LongAdder>() {
+            @Override
+            protected LongAdder computeValue(Class<?> type) {
+                return byName.computeIfAbsent(type.getSimpleName(), k -> new LongAdder());
+            }
+        };
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    // Recording methods, called by the interpreter. Callers check isEnabled() first.
+
+    static void expressionEvaluated(Expression e) {
+        expressionCounter.get(e.getClass()).increment();
+    }
+
+    static void functionCalled(int depth) {
+        functionCalls.increment();
+        maxRecursionDepth.accumulate(depth);
+    }
+
+    static void inlineCacheHit() {
+        inlineCacheHits.increment();
+    }
+
+    static void inlineCacheMissed() {
+        inlineCacheMisses.increment();
+    }
+
+    static void functionCompiled(long nanos) {
+        functionsCompiled.increment();
+        compileNanos.add(nanos);
+    }
+
+    static void environmentExtended(int size) {
+        environmentExtensions.increment();
+        environmentSize = size;
+    }
+
+    static void bindingProcessed(Binding b, long nanos) {
+        bindingCounter.get(b.getClass()).increment();
+        int bucket = Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+        bindingLatency.get(b.getClass())[bucket].increment();
+    }
+
+    static void errorRaised(Class<?> errorClass) {
+        errorCounter.get(errorClass).increment();
+    }
+
+    /**
+     * Sets every counter back to zero.
+     */
+    public static void reset() {
+        expressions.values().forEach(LongAdder::reset);
+        bindings.values().forEach(LongAdder::reset);
+        errors.values().forEach(LongAdder::reset);
+        for (LongAdder[] buckets : bindingLatencies.values()) {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+        functionCalls.reset();
+        maxRecursionDepth.reset();
+        environmentExtensions.reset();
+        environmentSize = 0;
+        inlineCacheHits.reset();
+        inlineCacheMisses.reset();
+        functionsCompiled.reset();
+        compileNanos.reset();
+    }
+
+    /**
+     * Returns a point-in-time copy of all metrics.
+     *
+     * Counters are read one after another without stopping the interpreter, so a snapshot taken
+     * during evaluation is only approximately consistent.
+     */
+    public static Snapshot snapshot() {
+        Map<String, long[]> latencies = new TreeMap<>();
+        for (Map.Entry<String, LongAdder[]> entry : bindingLatencies.entrySet()) {
+            long[] counts = new long[LATENCY_BUCKETS];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = entry.getValue()[i].sum();
+            }
+            latencies.put(entry.getKey(), counts);
+        }
+        return new Snapshot(sums(expressions), functionCalls.sum(), maxRecursionDepth.get(),
+                environmentExtensions.sum(), environmentSize, inlineCacheHits.sum(), inlineCacheMisses.sum(),
+                functionsCompiled.sum(), compileNanos.sum(), sums(bindings), sums(errors), latencies);
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        return result;
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server. Does nothing if it is already registered.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+            }
+        } catch (Exception e) {
+            // JMX is optional; the programmatic snapshot() keeps working without it.
+        }
+    }
+
+    @Data
+    public static class Snapshot {
+        private final Map<String, Long> expressionsEvaluated;
+        private final long functionCalls;
+        private final long maxRecursionDepth;
+        private final long environmentExtensions;
+        private final long environmentSize;
+        // Calls of defined functions whose call site found its inline cache valid, and those that had to
+        // look the function up. Calls of struct constructors and built-ins are not counted.
+        private final long inlineCacheHits;
+        private final long inlineCacheMisses;
+        // Functions promoted to compiled code by Tiering, and the total time spent compiling them.
+        private final long functionsCompiled;
+        private final long compileNanos;
+        private final Map<String, Long> bindingsProcessed;
+        private final Map<String, Long> errors;
+        // Binding class name -> LATENCY_BUCKETS counts, see LATENCY_BUCKETS for the bucket bounds.
+        private final Map<String, long[]> bindingLatencyHistograms;
+    }
+
+    /**
+     * The JMX view of Metrics. Every attribute is read from a fresh snapshot.
+     */
+    public interface MetricsMXBean {
+        Map<String, Long> getExpressionsEvaluated();
+        long getFunctionCalls();
+        long getMaxRecursionDepth();
+        long getEnvironmentExtensions();
+        long getEnvironmentSize();
+        long getInlineCacheHits();
+        long getInlineCacheMisses();
+        long getFunctionsCompiled();
+        long getCompileNanos();
+        Map<String, Long> getBindingsProcessed();
+        Map<String, Long> getErrors();
+        Map<String, long[]> getBindingLatencyHistograms();
+        boolean isEnabled();
+        void setEnabled(boolean enabled);
+        void reset();
+    }
+
+    private static class MBean implements MetricsMXBean {
+        public Map<String, Long> getExpressionsEvaluated() { return snapshot().getExpressionsEvaluated(); }
+        public long getFunctionCalls() { return functionCalls.sum(); }
+        public long getMaxRecursionDepth() { return maxRecursionDepth.get(); }
+        public long getEnvironmentExtensions() { return environmentExtensions.sum(); }
+        public long getEnvironmentSize() { return environmentSize; }
+        public long getInlineCacheHits() { return inlineCacheHits.sum(); }
+        public long getInlineCacheMisses() { return inlineCacheMisses.sum(); }
+        public long getFunctionsCompiled() { return functionsCompiled.sum(); }
+        public long getCompileNanos() { return compileNanos.sum(); }
+        public Map<String, Long> getBindingsProcessed() { return snapshot().getBindingsProcessed(); }
+        public Map<String, Long> getErrors() { return snapshot().getErrors(); }
+        public Map<String, long[]> getBindingLatencyHistograms() { return snapshot().getBindingLatencyHistograms(); }
+        public boolean isEnabled() { return Metrics.isEnabled(); }
+        public void setEnabled(boolean enabled) { Metrics.setEnabled(enabled); }
+        public void reset() { Metrics.reset(); }
+    }
+}
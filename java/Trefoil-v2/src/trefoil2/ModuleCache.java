@@ -0,0 +1,222 @@
+package trefoil2;
+
+import lombok.Data;
+import parser.PSTParser;
+import parser.SourceSpan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the modules named by (import "path") bindings, once per process.
+ *
+ * A module is an ordinary Trefoil file. Loading it parses and evaluates its bindings, in an
+ * environment of their own that starts out empty, with their output discarded; its exports are
+ * every name in the resulting environment, including the ones it imported itself, just as if the
+ * file had been pasted into the importing program. Exports are immutable (values are, and
+ * functions carry their own defining environments), so one loaded module is shared by every
+ * program and thread that imports it.
+ *
+ * Modules are cached by absolute path and SHA-256 of their content. A module is loaded when the
+ * first import of it runs, and never again while its file is unchanged, so a module imported by
+ * two others (a diamond) is evaluated once. Threads importing a module that another thread is
+ * loading wait for it. A module that fails to load is not cached, so that it can be fixed and
+ * imported again.
+ *
+ * Importing a module that is being loaded by the same chain of imports is an error. So is a cycle
+ * that two threads start loading at the same time, say one thread importing a, which imports b,
+ * while another imports b, which imports a: each in-flight load records the thread loading it,
+ * and a thread that would wait for a module whose loading (through the loads that thread waits
+ * for in turn) is waiting for the first thread gets the same error instead of blocking.
+ */
+public class ModuleCache {
+    /**
+     * A loaded module: what an import of path binds.
+     */
+    @Data
+    public static class Module {
+        private final Path path;
+        private final String hash;
+        private final Map<String, Interpreter.DynamicEnvironment.Entry> exports;
+    }
+
+    @Data
+    private static class Key {
+        private final Path path;
+        private final String hash;
+    }
+
+    // A module being loaded, by owner.
+    private static class Loading extends FutureTask<Module> {
+        private final Thread owner;
+        private final Path file;
+
+        Loading(Callable<Module> load, Thread owner, Path file) {
+            super(load);
+            this.owner = owner;
+            this.file = file;
+        }
+    }
+
+    private static final ConcurrentHashMap<Key, Loading> modules = new ConcurrentHashMap<>();
+    // The modules each thread is loading, innermost first, to detect import cycles.
+    private static final ThreadLocal<Deque<Path>> loading = ThreadLocal.withInitial(ArrayDeque::new);
+    // The load each thread is waiting for, to detect cycles between threads. Guarded by itself.
+    private static final Map<Thread, Loading> waiting = new HashMap<>();
+    private static final AtomicLong evaluations = new AtomicLong();
+
+    /**
+     * Returns the module in file path, relative to the directory of the importing program, loading
+     * it if it is not cached yet.
+     */
+    static Module load(String path, ExecutionContext context) {
+        Path base = context.getSourceDirectory();
+        Path file = (base == null ? Path.of(path) : base.resolve(path)).toAbsolutePath().normalize();
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Could not find module " + path + " (looked for " + file + ")");
+        } catch (IOException e) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Could not read module " + path + ": " + e.getMessage());
+        }
+        if (loading.get().contains(file)) {
+            throw importsItself(path, file, Collections.emptyList());
+        }
+        Key key = new Key(file, sha256(content));
+        Loading task = new Loading(() -> evaluate(file, key.getHash(), content, context), Thread.currentThread(), file);
+        Loading existing = modules.putIfAbsent(key, task);
+        if (existing == null) {
+            // Older versions of the file will not be imported again.
+            modules.keySet().removeIf(k -> k.getPath().equals(file) && !k.equals(key));
+            task.run();
+        } else {
+            task = existing;
+            startWaiting(path, task);
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            modules.remove(key, task);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new Trefoil2.InternalInterpreterError(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Trefoil2.TrefoilError.RuntimeError("Interrupted while importing " + path);
+        } finally {
+            synchronized (waiting) {
+                waiting.remove(Thread.currentThread());
+            }
+        }
+    }
+
+    // Records that the current thread is about to wait for task, unless that would close a cycle of
+    // threads waiting for each other's modules. Checking and recording under one lock means that of
+    // two threads closing a cycle at the same time, the second one sees it.
+    private static void startWaiting(String path, Loading task) {
+        synchronized (waiting) {
+            if (task.isDone()) {
+                return;
+            }
+            List<Path> others = new ArrayList<>();
+            for (Loading l = task; l != null; l = waiting.get(l.owner)) {
+                if (l.owner == Thread.currentThread()) {
+                    throw importsItself(path, l.file, others);
+                }
+                others.add(l.file);
+            }
+            waiting.put(Thread.currentThread(), task);
+        }
+    }
+
+    // The cycle from file, which the current thread is loading: its import chain from there, then the
+    // modules of other threads it waits for, then file again.
+    private static Trefoil2.TrefoilError.RuntimeError importsItself(String path, Path file, List<Path> others) {
+        List<Path> chain = new ArrayList<>(loading.get());
+        Collections.reverse(chain);
+        chain.addAll(others);
+        chain.add(file);
+        StringBuilder sb = new StringBuilder();
+        for (Path p : chain.subList(chain.indexOf(file), chain.size())) {
+            sb.append(sb.length() == 0 ? "" : " -> ").append(p.getFileName());
+        }
+        return new Trefoil2.TrefoilError.RuntimeError("Module " + path + " imports itself (" + sb + ")");
+    }
+
+    private static Module evaluate(Path file, String hash, byte[] content, ExecutionContext context) {
+        evaluations.incrementAndGet();
+        PrintStream savedOut = context.getOut();
+        Path savedDirectory = context.getSourceDirectory();
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        context.setSourceDirectory(file.getParent());
+        loading.get().push(file);
+        try {
+            PSTParser parser = PSTParser.ofReader(new StringReader(new String(content, StandardCharsets.UTF_8)));
+            Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+            try {
+                ParenthesizedSymbolTree pst;
+                while ((pst = parser.parse()) != null) {
+                    env = Interpreter.interpretBinding(Binding.parsePST(pst), env);
+                }
+            } catch (Trefoil2.TrefoilError.LimitExceededError e) {
+                throw e;
+            } catch (Trefoil2.TrefoilError e) {
+                throw new Trefoil2.TrefoilError.RuntimeError("In module " + file.getFileName() + " at "
+                        + SourceSpan.toString(e.getSpan()) + ": " + e.getMessage());
+            }
+            return new Module(file, hash, Collections.unmodifiableMap(new HashMap<>(env.getMap())));
+        } finally {
+            loading.get().pop();
+            context.setSourceDirectory(savedDirectory);
+            context.setOut(savedOut);
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+    }
+
+    /**
+     * Returns how many times a module has been evaluated in this process.
+     */
+    public static long evaluationCount() {
+        return evaluations.get();
+    }
+
+    /**
+     * Forgets every loaded module. Programs that imported them keep what they imported.
+     */
+    public static void clear() {
+        modules.clear();
+    }
+}
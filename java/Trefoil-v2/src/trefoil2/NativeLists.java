@@ -0,0 +1,300 @@
+package trefoil2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Built-in list functions: length, append, reverse, map, filter, fold and pfold.
+ *
+ * Written in Trefoil, these functions cost a full function call per element: an argument list,
+ * a copy of the environment and a Java stack frame, and they run out of Java stack on long lists.
+ * Here each one is a loop over the cons cells that builds its result in one pass.
+ *
+ * They are called like ordinary functions, and a program that defines a function with one of
+ * these names uses its own definition instead. The higher-order functions take the name of a
+ * function (a defined function, a struct constructor, or one of length, append and reverse) as
+ * their first argument, e.g. (map f l).
+ *
+ * Like cdr, all of them force lazy tails, so they work on streams, although length, reverse and
+ * the folds never finish on an infinite one (the step limit still applies).
+ */
+public class NativeLists {
+    private static final Set<String> NAMES = new HashSet<>(Arrays.asList(
+            "length", "append", "reverse", "map", "filter", "fold", "pfold"));
+
+    // Lists shorter than this are folded sequentially by pfold: splitting would cost more than it saves.
+    static final int PARALLEL_THRESHOLD = 4096;
+    private static final int MIN_CHUNK = 1024;
+
+    public static boolean isNative(String name) {
+        return NAMES.contains(name);
+    }
+
+    /**
+     * Evaluates a call to one of the built-in functions. The function name argument of the
+     * higher-order functions is not evaluated; all other arguments are.
+     */
+    static Expression call(Expression.Function call, Interpreter.DynamicEnvironment environment, ExecutionContext context) {
+        String name = call.getString();
+        List<Expression> args = call.getExpressions();
+        switch (name) {
+            case "map":
+            case "filter":
+                checkArity(name, args, 2);
+                return name.equals("map")
+                        ? map(functionName(name, args.get(0)), eval(args.get(1), environment, context), environment, context)
+                        : filter(functionName(name, args.get(0)), eval(args.get(1), environment, context), environment, context);
+            case "fold":
+            case "pfold":
+                checkArity(name, args, 3);
+                String f = functionName(name, args.get(0));
+                Expression init = eval(args.get(1), environment, context);
+                Expression[] xs = toArray(name, eval(args.get(2), environment, context), context);
+                return name.equals("fold")
+                        ? fold(f, init, xs, 0, xs.length, environment, context)
+                        : parallelFold(f, init, xs, environment, context);
+            default:
+                List<Expression> values = new ArrayList<>(args.size());
+                for (Expression arg : args) {
+                    values.add(eval(arg, environment, context));
+                }
+                return apply(name, values, context);
+        }
+    }
+
+    /**
+     * Applies one of the first-order built-in functions to evaluated arguments.
+     */
+    static Expression apply(String name, List<Expression> args, ExecutionContext context) {
+        switch (name) {
+            case "length":
+                checkArity(name, args, 1);
+                return Expression.ofInt(length(args.get(0), context));
+            case "append":
+                checkArity(name, args, 2);
+                return append(args.get(0), args.get(1), context);
+            case "reverse":
+                checkArity(name, args, 1);
+                return reverse(args.get(0), context);
+            default:
+                throw new Trefoil2.TrefoilError.RuntimeError(name + " takes a function name and cannot be passed as one");
+        }
+    }
+
+    private static Expression eval(Expression e, Interpreter.DynamicEnvironment environment, ExecutionContext context) {
+        return Interpreter.interpretExpression(e, environment, context);
+    }
+
+    private static void checkArity(String name, List<Expression> args, int arity) {
+        if (args.size() != arity) {
+            throw new Trefoil2.TrefoilError.RuntimeError(name + " expects " + arity + " arguments but got " + args.size());
+        }
+    }
+
+    private static String functionName(String operator, Expression e) {
+        if (!(e instanceof Expression.VariableReference)) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + " expects a function name but got " + e);
+        }
+        return ((Expression.VariableReference) e).getVarname();
+    }
+
+    // The cons cell or nil at the front of l, forcing it if it is a lazy tail.
+    private static Expression next(String operator, Expression l, ExecutionContext context) {
+        Expression v = Interpreter.force(l, context);
+        if (!(v instanceof Expression.Cons || v instanceof Expression.Nil)) {
+            throw new Trefoil2.TrefoilError.RuntimeError(operator + " applied to " + v + ", which is not a list");
+        }
+        return v;
+    }
+
+    static int length(Expression l, ExecutionContext context) {
+        int n = 0;
+        for (Expression v = next("length", l, context); v instanceof Expression.Cons;
+             v = next("length", ((Expression.Cons) v).getRight(), context)) {
+            context.step();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * The elements of l, in order.
+     */
+    static Expression[] toArray(String operator, Expression l, ExecutionContext context) {
+        Expression[] xs = new Expression[16];
+        int n = 0;
+        for (Expression v = next(operator, l, context); v instanceof Expression.Cons;
+             v = next(operator, ((Expression.Cons) v).getRight(), context)) {
+            context.step();
+            if (n == xs.length) {
+                xs = Arrays.copyOf(xs, n * 2);
+            }
+            xs[n++] = ((Expression.Cons) v).getLeft();
+        }
+        return Arrays.copyOf(xs, n);
+    }
+
+    // The list of xs[0..n), in front of tail.
+    private static Expression toList(Expression[] xs, int n, Expression tail, ExecutionContext context) {
+        Expression l = tail;
+        for (int i = n - 1; i >= 0; i--) {
+            l = Expression.cons(xs[i], l);
+        }
+        context.allocate(n);
+        return l;
+    }
+
+    static Expression append(Expression l1, Expression l2, ExecutionContext context) {
+        Expression[] xs = toArray("append", l1, context);
+        // The second list is shared, not copied, so it does not need to be checked either.
+        return toList(xs, xs.length, l2, context);
+    }
+
+    static Expression reverse(Expression l, ExecutionContext context) {
+        Expression result = Expression.nil();
+        int n = 0;
+        for (Expression v = next("reverse", l, context); v instanceof Expression.Cons;
+             v = next("reverse", ((Expression.Cons) v).getRight(), context)) {
+            context.step();
+            result = Expression.cons(((Expression.Cons) v).getLeft(), result);
+            n++;
+        }
+        context.allocate(n);
+        return result;
+    }
+
+    static Expression map(String f, Expression l, Interpreter.DynamicEnvironment environment, ExecutionContext context) {
+        Expression[] xs = toArray("map", l, context);
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = Interpreter.apply(f, Arrays.asList(xs[i]), environment, context);
+        }
+        return toList(xs, xs.length, Expression.nil(), context);
+    }
+
+    static Expression filter(String f, Expression l, Interpreter.DynamicEnvironment environment, ExecutionContext context) {
+        Expression[] xs = toArray("filter", l, context);
+        int kept = 0;
+        for (Expression x : xs) {
+            Expression keep = Interpreter.apply(f, Arrays.asList(x), environment, context);
+            if (!(keep instanceof Expression.BooleanLiteral)) {
+                throw new Trefoil2.TrefoilError.RuntimeError("filter: " + f + " returned " + keep + " instead of a boolean");
+            }
+            if (((Expression.BooleanLiteral) keep).isData()) {
+                xs[kept++] = x;
+            }
+        }
+        return toList(xs, kept, Expression.nil(), context);
+    }
+
+    /**
+     * Left fold of xs[from..to): (f (f (f init x0) x1) ...).
+     */
+    static Expression fold(String f, Expression init, Expression[] xs, int from, int to,
+                           Interpreter.DynamicEnvironment environment, ExecutionContext context) {
+        Expression acc = init;
+        for (int i = from; i < to; i++) {
+            acc = Interpreter.apply(f, Arrays.asList(acc, xs[i]), environment, context);
+        }
+        return acc;
+    }
+
+    /**
+     * Same result as fold, provided that f is associative and init is an identity for it
+     * (like + and 0), but long lists are cut into chunks that are folded on all cores.
+     *
+     * Each chunk is folded from init, and the chunk results are then combined left to right, so
+     * the order of the elements is respected and f need not be commutative. The chunks run in the
+     * common ForkJoinPool, and their steps and allocations count against the caller's budget,
+     * with the caller's deadline (see ExecutionContext.SharedBudget). What the chunks print is buffered, and written to the caller's output in chunk
+     * order, so the output is the same on every run: one call of f per element, in the order of
+     * the elements, as with fold. The calls combining the chunk results print nothing.
+     *
+     * If a chunk fails, the chunks that have not started are cancelled, the running ones stop at
+     * their next element, and the first error in chunk order is rethrown.
+     */
+    static Expression parallelFold(String f, Expression init, Expression[] xs,
+                                   Interpreter.DynamicEnvironment environment, ExecutionContext context) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (xs.length < PARALLEL_THRESHOLD || parallelism < 2) {
+            return fold(f, init, xs, 0, xs.length, environment, context);
+        }
+        int chunks = Math.min(parallelism * 4, xs.length / MIN_CHUNK);
+        ExecutionContext.SharedBudget budget = context.shareBudget();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        List<ByteArrayOutputStream> outputs = new ArrayList<>(chunks - 1);
+        List<CompletableFuture<Expression>> rest = new ArrayList<>(chunks - 1);
+        for (int c = 1; c < chunks; c++) {
+            int from = (int) ((long) xs.length * c / chunks);
+            int to = (int) ((long) xs.length * (c + 1) / chunks);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            outputs.add(output);
+            rest.add(CompletableFuture.supplyAsync(
+                    () -> foldChunk(f, init, xs, from, to, environment, new PrintStream(output, true), budget, abandoned)));
+        }
+        List<Expression> results = new ArrayList<>(chunks);
+        try {
+            // The caller folds the first chunk itself instead of waiting, straight to its output,
+            // which is where that chunk's lines go first anyway.
+            results.add(fold(f, init, xs, 0, xs.length / chunks, environment, context));
+            for (CompletableFuture<Expression> chunk : rest) {
+                results.add(chunk.join());
+            }
+        } catch (RuntimeException e) {
+            abandoned.set(true);
+            for (CompletableFuture<Expression> chunk : rest) {
+                chunk.cancel(false);
+            }
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new Trefoil2.InternalInterpreterError(cause);
+        } finally {
+            context.stopSharing(budget);
+        }
+        PrintStream out = context.getOut();
+        for (ByteArrayOutputStream output : outputs) {
+            out.write(output.toByteArray(), 0, output.size());
+        }
+        out.flush();
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Expression acc = results.get(0);
+            for (int i = 1; i < results.size(); i++) {
+                acc = Interpreter.apply(f, Arrays.asList(acc, results.get(i)), environment, context);
+            }
+            return acc;
+        } finally {
+            context.setOut(out);
+        }
+    }
+
+    private static Expression foldChunk(String f, Expression init, Expression[] xs, int from, int to,
+                                        Interpreter.DynamicEnvironment environment, PrintStream out,
+                                        ExecutionContext.SharedBudget budget, AtomicBoolean abandoned) {
+        // A context of its own, in place of the thread's: pool threads are shared, and a thread
+        // waiting for chunks may run one of them itself.
+        ExecutionContext context = new ExecutionContext(budget, out);
+        ExecutionContext saved = ExecutionContext.install(context);
+        try {
+            Expression acc = init;
+            for (int i = from; i < to && !abandoned.get(); i++) {
+                acc = Interpreter.apply(f, Arrays.asList(acc, xs[i]), environment, context);
+            }
+            return acc;
+        } finally {
+            context.leaveBudget();
+            ExecutionContext.install(saved);
+        }
+    }
+}
@@ -2,7 +2,13 @@ package trefoil2;
 
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import parser.Keyword;
 import parser.PSTParser;
+import parser.SourceSpan;
+import parser.Tokenizer;
 
 import java.util.List;
 
@@ -13,6 +19,11 @@ import java.util.List;
  * Nodes have a (possibly empty!) list of children PSTs.
  */
 public abstract class ParenthesizedSymbolTree {
+    // Where the PST was in the source, see SourceSpan. Not part of equality.
+    @Getter
+    @Setter
+    private long span = SourceSpan.UNKNOWN;
+
     public static ParenthesizedSymbolTree parseString(String s) {
         return PSTParser.parseString(s).parse();
     }
@@ -21,6 +32,28 @@ public abstract class ParenthesizedSymbolTree {
     @Data
     public static class Symbol extends ParenthesizedSymbolTree {
         private final String symbol;
+
+        // How the tokenizer classified the symbol: integer literal, keyword or identifier.
+        // It is determined by the symbol, so it takes no part in equality.
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final Tokenizer.Token.SymbolToken token;
+
+        public Symbol(String symbol) {
+            this(Tokenizer.symbolToken(symbol, 1, 0));
+        }
+
+        public Symbol(Tokenizer.Token.SymbolToken token) {
+            this.symbol = token.getSymbol();
+            this.token = token;
+        }
+
+        /**
+         * Returns the keyword the symbol is, or null if it is not one.
+         */
+        public Keyword getKeyword() {
+            return token instanceof Tokenizer.Token.KeywordToken ? ((Tokenizer.Token.KeywordToken) token).getKeyword() : null;
+        }
     }
 
     @EqualsAndHashCode(callSuper = false)
@@ -0,0 +1,162 @@
+package trefoil2;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import parser.Tokenizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A pattern AST, as used in the clauses of a match expression. See LANGUAGE.md for a list of possibilities.
+ */
+@Data
+public abstract class Pattern {
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Wildcard extends Pattern {}
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Variable extends Pattern {
+        private final String varname;
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class IntegerLiteral extends Pattern {
+        private final int data;
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class BooleanLiteral extends Pattern {
+        private final boolean data;
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Nil extends Pattern {}
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Symbol extends Pattern {
+        private final String name;
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Cons extends Pattern {
+        private final Pattern left, right;
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class Struct extends Pattern {
+        private final String name;
+        private final List<Pattern> fields;
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final StructType.Tag tag;
+
+        public Struct(String name, List<Pattern> fields) {
+            this.name = name;
+            this.fields = fields;
+            this.tag = StructType.tagFor(name);
+        }
+
+        public int getTag() {
+            return tag.getValue();
+        }
+    }
+
+    /**
+     * Returns true for the patterns that match any value (wildcards and variables).
+     */
+    public boolean isIrrefutable() {
+        return this instanceof Wildcard || this instanceof Variable;
+    }
+
+    /**
+     * Tries to convert a PST to a Pattern.
+     *
+     * If conversion fails, throws TrefoilError.AbstractSyntaxError with a nice message.
+     */
+    public static Pattern parsePST(ParenthesizedSymbolTree pst) {
+        Pattern p = parsePSTWithoutChecks(pst);
+        Set<String> seen = new HashSet<>();
+        checkDistinctVariables(p, seen);
+        return p;
+    }
+
+    private static Pattern parsePSTWithoutChecks(ParenthesizedSymbolTree pst) {
+        if (pst instanceof ParenthesizedSymbolTree.Symbol) {
+            ParenthesizedSymbolTree.Symbol symbol = (ParenthesizedSymbolTree.Symbol) pst;
+            Tokenizer.Token.SymbolToken token = symbol.getToken();
+            if (token instanceof Tokenizer.Token.IntegerToken) {
+                return new IntegerLiteral(((Tokenizer.Token.IntegerToken) token).getValue());
+            } else if (token instanceof Tokenizer.Token.KeywordToken) {
+                switch (((Tokenizer.Token.KeywordToken) token).getKeyword()) {
+                    case TRUE:
+                        return new BooleanLiteral(true);
+                    case FALSE:
+                        return new BooleanLiteral(false);
+                    case NIL:
+                        return new Nil();
+                    default:
+                        break;
+                }
+            }
+            String s = symbol.getSymbol();
+            if (s.equals("_")) {
+                return new Wildcard();
+            } else if (s.length() > 1 && s.startsWith("'")) {
+                return new Symbol(s.substring(1));
+            }
+            return new Variable(s);
+        }
+        List<ParenthesizedSymbolTree> children = ((ParenthesizedSymbolTree.Node) pst).getChildren();
+        if (children.size() == 0) {
+            throw new Trefoil2.TrefoilError.AbstractSyntaxError("Expected pattern but got '()'");
+        }
+        if (!(children.get(0) instanceof ParenthesizedSymbolTree.Symbol)) {
+            throw new Trefoil2.TrefoilError.AbstractSyntaxError("Expected pattern, but got " + pst);
+        }
+        String head = ((ParenthesizedSymbolTree.Symbol) children.get(0)).getSymbol();
+        if (head.equals("cons")) {
+            if (children.size() - 1 != 2) {
+                throw new Trefoil2.TrefoilError.AbstractSyntaxError("Pattern cons expects 2 arguments");
+            }
+            return new Cons(parsePSTWithoutChecks(children.get(1)), parsePSTWithoutChecks(children.get(2)));
+        }
+        List<Pattern> fields = new ArrayList<>();
+        for (int i = 1; i < children.size(); i++) {
+            fields.add(parsePSTWithoutChecks(children.get(i)));
+        }
+        return new Struct(head, fields);
+    }
+
+    private static void checkDistinctVariables(Pattern p, Set<String> seen) {
+        if (p instanceof Variable) {
+            if (!seen.add(((Variable) p).getVarname())) {
+                throw new Trefoil2.TrefoilError.AbstractSyntaxError(
+                        "Variable " + ((Variable) p).getVarname() + " is bound more than once in the same pattern");
+            }
+        } else if (p instanceof Cons) {
+            checkDistinctVariables(((Cons) p).getLeft(), seen);
+            checkDistinctVariables(((Cons) p).getRight(), seen);
+        } else if (p instanceof Struct) {
+            for (Pattern field : ((Struct) p).getFields()) {
+                checkDistinctVariables(field, seen);
+            }
+        }
+    }
+
+    // Convenience factory method for unit tests.
+    public static Pattern parseString(String s) {
+        return parsePST(ParenthesizedSymbolTree.parseString(s));
+    }
+}
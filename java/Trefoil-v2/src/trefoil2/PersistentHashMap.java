@@ -0,0 +1,397 @@
+package trefoil2;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash map with effectively constant time get, put and remove: a hash array
+ * mapped trie (HAMT).
+ *
+ * Each level of the trie uses 5 bits of a key's hash to pick one of 32 children, but a node only
+ * stores the children that exist, packed in an array, with a 32-bit bitmap saying which ones they
+ * are. put() and remove() copy just the nodes on the path to the key and share everything else
+ * with the original map. Keys whose hashes are entirely equal end up together in a collision node.
+ *
+ * Maps are built one put at a time, or in bulk with a Builder, which updates the nodes it has
+ * created itself in place instead of copying them.
+ *
+ * Keys must have consistent equals and hashCode; null keys and values are not allowed.
+ */
+public final class PersistentHashMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    // Returned by Node.get when the key is absent, since null is not a value.
+    private static final Object NOT_FOUND = new Object();
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(0, null);
+
+    private final int size;
+    private final Node root;
+
+    private PersistentHashMap(int size, Node root) {
+        this.size = size;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value of key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        if (root == null) {
+            return null;
+        }
+        Object v = root.get(key.hashCode(), 0, key);
+        return v == NOT_FOUND ? null : (V) v;
+    }
+
+    public boolean containsKey(K key) {
+        return root != null && root.get(key.hashCode(), 0, key) != NOT_FOUND;
+    }
+
+    /**
+     * Returns a map equal to this one, except that key maps to value.
+     */
+    public PersistentHashMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node r = root == null ? BitmapNode.EMPTY : root;
+        Node newRoot = r.put(null, key.hashCode(), 0, key, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(added[0] ? size + 1 : size, newRoot);
+    }
+
+    /**
+     * Returns a map equal to this one, except that key is absent.
+     */
+    public PersistentHashMap<K, V> remove(K key) {
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.remove(key.hashCode(), 0, key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? empty() : new PersistentHashMap<>(size - 1, newRoot);
+    }
+
+    /**
+     * Calls action on every entry, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Builds a map with a series of puts, without copying the nodes created along the way.
+     * A builder can only be used once: build() ends it.
+     */
+    public static final class Builder<K, V> {
+        // Identifies the nodes created by this builder, which it may change in place.
+        private Object edit = new Object();
+        private Node root = BitmapNode.EMPTY;
+        private int size = 0;
+
+        private Builder() {
+        }
+
+        public Builder<K, V> put(K key, V value) {
+            if (edit == null) {
+                throw new IllegalStateException("build() has already been called");
+            }
+            boolean[] added = new boolean[1];
+            root = root.put(edit, key.hashCode(), 0, key, value, added);
+            if (added[0]) {
+                size++;
+            }
+            return this;
+        }
+
+        public PersistentHashMap<K, V> build() {
+            // From now on nobody holds the token, so the nodes can never change again.
+            edit = null;
+            return size == 0 ? empty() : new PersistentHashMap<>(size, root);
+        }
+    }
+
+    private abstract static class Node {
+        abstract Object get(int hash, int shift, Object key);
+
+        // Sets added[0] if key was not in the map. Returns this if nothing changed.
+        abstract Node put(Object edit, int hash, int shift, Object key, Object value, boolean[] added);
+
+        // Returns this if key is absent, and null if the node becomes empty.
+        abstract Node remove(int hash, int shift, Object key);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * The children present among the 32 possible ones. array holds a (key, value) pair for each:
+     * an entry, or (null, child node) for a subtree.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        private final Object edit;
+        private int bitmap;
+        private Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(int hash, int shift, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                return ((Node) v).get(hash, shift + BITS, key);
+            }
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        // Returns a node with slot j of the array set to x: this one if it may be edited in place.
+        private BitmapNode with(Object edit, int j, Object x) {
+            if (edit != null && this.edit == edit) {
+                array[j] = x;
+                return this;
+            }
+            Object[] copy = array.clone();
+            copy[j] = x;
+            return new BitmapNode(edit, bitmap, copy);
+        }
+
+        @Override
+        Node put(Object edit, int hash, int shift, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[2 * i];
+                Object v = array[2 * i + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(edit, hash, shift + BITS, key, value, added);
+                    return child == v ? this : with(edit, 2 * i + 1, child);
+                }
+                if (key.equals(k)) {
+                    return v == value ? this : with(edit, 2 * i + 1, value);
+                }
+                // Another key in the same slot: push both down into a new subtree.
+                added[0] = true;
+                Node child = pair(edit, shift + BITS, k, v, hash, key, value);
+                Object[] target = edit != null && this.edit == edit ? array : array.clone();
+                target[2 * i] = null;
+                target[2 * i + 1] = child;
+                return target == array ? this : new BitmapNode(edit, bitmap, target);
+            }
+            added[0] = true;
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, 2 * i);
+            grown[2 * i] = key;
+            grown[2 * i + 1] = value;
+            System.arraycopy(array, 2 * i, grown, 2 * i + 2, array.length - 2 * i);
+            if (edit != null && this.edit == edit) {
+                array = grown;
+                bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, grown);
+        }
+
+        private static Node pair(Object edit, int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+            int hash1 = k1.hashCode();
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[]{k1, v1, k2, v2});
+            }
+            // The hashes differ in some bit, so at the latest at shift 30 they go to different children.
+            boolean[] ignored = new boolean[1];
+            return new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, hash1, shift, k1, v1, ignored)
+                    .put(edit, hash2, shift, k2, v2, ignored);
+        }
+
+        @Override
+        Node remove(int hash, int shift, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(hash, shift + BITS, key);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    return with(null, 2 * i + 1, child);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, 2 * i);
+            System.arraycopy(array, 2 * i + 2, shrunk, 2 * i, array.length - 2 * i - 2);
+            return new BitmapNode(null, bitmap & ~bit, shrunk);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int j = 0; j < array.length; j += 2) {
+                if (array[j] == null) {
+                    ((Node) array[j + 1]).forEach(action);
+                } else {
+                    action.accept(array[j], array[j + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries whose keys all have the same hash, as (key, value) pairs.
+     */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(Object key) {
+            for (int j = 0; j < array.length; j += 2) {
+                if (key.equals(array[j])) {
+                    return j;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(int hash, int shift, Object key) {
+            int j = hash == this.hash ? find(key) : -1;
+            return j < 0 ? NOT_FOUND : array[j + 1];
+        }
+
+        @Override
+        Node put(Object edit, int hash, int shift, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // Keep this node as a child of a new bitmap node that also holds the new key.
+                return new BitmapNode(edit, BitmapNode.bit(this.hash, shift), new Object[]{null, this})
+                        .put(edit, hash, shift, key, value, added);
+            }
+            int j = find(key);
+            if (j >= 0) {
+                if (array[j + 1] == value) {
+                    return this;
+                }
+                Object[] copy = array.clone();
+                copy[j + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            added[0] = true;
+            Object[] grown = Arrays.copyOf(array, array.length + 2);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            return new CollisionNode(hash, grown);
+        }
+
+        @Override
+        Node remove(int hash, int shift, Object key) {
+            int j = hash == this.hash ? find(key) : -1;
+            if (j < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, j);
+            System.arraycopy(array, j + 2, shrunk, j, array.length - j - 2);
+            return new CollisionNode(hash, shrunk);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int j = 0; j < array.length; j += 2) {
+                action.accept(array[j], array[j + 1]);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PersistentHashMap) || ((PersistentHashMap<?, ?>) o).size != size) {
+            return false;
+        }
+        PersistentHashMap<?, ?> other = (PersistentHashMap<?, ?>) o;
+        boolean[] equal = {true};
+        forEach((k, v) -> {
+            if (equal[0] && (other.root == null || !v.equals(other.root.get(k.hashCode(), 0, k)))) {
+                equal[0] = false;
+            }
+        });
+        return equal[0];
+    }
+
+    @Override
+    public int hashCode() {
+        // Independent of the order of the entries, like java.util.Map.
+        int[] h = {0};
+        forEach((k, v) -> h[0] += k.hashCode() ^ v.hashCode());
+        return h[0];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+}
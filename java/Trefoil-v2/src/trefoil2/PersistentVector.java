@@ -0,0 +1,222 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable vector with effectively constant time get, set and append.
+ *
+ * The elements are stored in a 32-way trie: element i is found by using each 5-bit group of i,
+ * most significant first, to pick a child at each level, so a vector of a million elements is
+ * only four levels deep. set() copies just the path from the root to the changed element and
+ * shares everything else with the original vector.
+ *
+ * The last (up to) 32 elements are kept outside the trie in a tail array, so that appending
+ * usually only copies the tail, and a full tail is pushed into the trie in one step.
+ */
+public final class PersistentVector<T> implements Iterable<T> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH], new Object[0]);
+
+    private final int size;
+    // Number of bits of an index used below the root: BITS for a root whose children are leaves.
+    private final int shift;
+    // Interior nodes and leaves are both Object[WIDTH]; a leaf holds elements.
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    public static <T> PersistentVector<T> of(Iterable<? extends T> elements) {
+        PersistentVector<T> v = empty();
+        for (T x : elements) {
+            v = v.append(x);
+        }
+        return v;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Index of the first element in the tail.
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    // The leaf (or tail) holding element i.
+    private Object[] leafFor(int i) {
+        if (i >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(i >>> level) & MASK];
+        }
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+        checkIndex(i);
+        return (T) leafFor(i)[i & MASK];
+    }
+
+    /**
+     * Returns a vector equal to this one, except that element i is x.
+     */
+    public PersistentVector<T> set(int i, T x) {
+        checkIndex(i);
+        if (i >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[i & MASK] = x;
+            return new PersistentVector<>(size, shift, root, newTail);
+        }
+        return new PersistentVector<>(size, shift, set(shift, root, i, x), tail);
+    }
+
+    private static Object[] set(int level, Object[] node, int i, Object x) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[i & MASK] = x;
+        } else {
+            int child = (i >>> level) & MASK;
+            copy[child] = set(level - BITS, (Object[]) node[child], i, x);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a vector equal to this one with x added at the end.
+     */
+    public PersistentVector<T> append(T x) {
+        if (size - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = x;
+            return new PersistentVector<>(size + 1, shift, root, newTail);
+        }
+        // The tail is full: move it into the trie and start a new one.
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > (1 << shift)) {
+            // The trie is full too: add a level.
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector<>(size + 1, newShift, newRoot, new Object[]{x});
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+        int child = ((size - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        if (level == BITS) {
+            copy[child] = leaf;
+        } else {
+            Object[] existing = (Object[]) parent[child];
+            copy[child] = existing != null ? pushTail(level - BITS, existing, leaf) : newPath(level - BITS, leaf);
+        }
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+        }
+    }
+
+    public List<T> toList() {
+        List<T> list = new ArrayList<>(size);
+        for (T x : this) {
+            list.add(x);
+        }
+        return list;
+    }
+
+    /**
+     * Iterates leaf by leaf, so each element costs a single array access.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int i = 0;
+            private Object[] leaf = size > 0 ? leafFor(0) : null;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                if (i > 0 && (i & MASK) == 0) {
+                    leaf = leafFor(i);
+                }
+                return (T) leaf[i++ & MASK];
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PersistentVector) || ((PersistentVector<?>) o).size != size) {
+            return false;
+        }
+        Iterator<?> other = ((PersistentVector<?>) o).iterator();
+        for (T x : this) {
+            if (!x.equals(other.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (T x : this) {
+            h = 31 * h + x.hashCode();
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
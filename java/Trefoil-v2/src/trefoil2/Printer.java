@@ -0,0 +1,285 @@
+package trefoil2;
+
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prints values and environments to a Writer, without recursion.
+ *
+ * The Lombok-generated toString of a list calls itself once per cell, so printing a list of a few
+ * thousand elements overflows the Java stack, and the whole string is built before any of it is
+ * written. The printer keeps its own stack of pending work instead and writes as it goes. Walking
+ * down a list does not grow that stack (the closing parentheses of its cells are counted, not
+ * pushed one by one); only nesting does, which Options.maxDepth bounds.
+ *
+ * With the default options values print exactly as their toString always has, which is why Cons,
+ * VectorValue and MapValue delegate to toString(Expression) here. In compact mode values print as
+ * they would be written in Trefoil, for example (1 2 3) instead of nested Expression.Cons(...), and
+ * environments print one binding per line.
+ */
+public class Printer {
+    @Data
+    public static class Options {
+        public static final Options DEFAULT = new Options(Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+
+        /**
+         * Lists, vectors, maps and structs nested deeper than this print as "...". The value being
+         * printed is at depth 0, so 1 prints its elements but not the elements of its elements.
+         */
+        private final int maxDepth;
+
+        /**
+         * Elements of a list, vector, map or struct after the first maxLength print as "...".
+         */
+        private final int maxLength;
+
+        /**
+         * Print values as Trefoil source, and environments one binding per line.
+         */
+        private final boolean compact;
+    }
+
+    private static final String ELLIPSIS = "...";
+
+    private enum Kind {
+        VECTOR, MAP, STRUCT
+    }
+
+    // The printer's stack holds three kinds of pending work.
+
+    // Print value. index > 0 means that value is the rest of a list, after its index'th element.
+    @Data
+    private static class Pending {
+        private final Expression value;
+        private final int depth;
+        private final int index;
+    }
+
+    // Write text, count times.
+    private static class Text {
+        private final String text;
+        private int count = 1;
+
+        Text(String text) {
+            this.text = text;
+        }
+    }
+
+    // Print the remaining elements of a vector, map (keys and values alternating) or struct.
+    private static class Elements {
+        private final Kind kind;
+        private final Iterator<Expression> elements;
+        private final int depth;
+        private int index;
+
+        Elements(Kind kind, Iterator<Expression> elements, int depth) {
+            this.kind = kind;
+            this.elements = elements;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Returns value printed with the default options.
+     */
+    public static String toString(Expression value) {
+        StringWriter out = new StringWriter();
+        try {
+            print(value, out, Options.DEFAULT);
+        } catch (IOException e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes value to out. Does not flush out.
+     */
+    public static void print(Expression value, Writer out, Options options) throws IOException {
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(new Pending(value, 0, 0));
+        while (!stack.isEmpty()) {
+            Object work = stack.pop();
+            if (work instanceof Text) {
+                Text text = (Text) work;
+                for (int i = 0; i < text.count; i++) {
+                    out.write(text.text);
+                }
+            } else if (work instanceof Elements) {
+                printNextElement((Elements) work, stack, out, options);
+            } else {
+                printValue((Pending) work, stack, out, options);
+            }
+        }
+    }
+
+    private static void printValue(Pending pending, Deque<Object> stack, Writer out, Options options) throws IOException {
+        Expression v = pending.getValue();
+        while (v instanceof Expression.Thunk && ((Expression.Thunk) v).isForced()) {
+            v = ((Expression.Thunk) v).getValue();
+        }
+        int depth = pending.getDepth();
+        int index = pending.getIndex();
+        if (index > 0) {
+            if (v instanceof Expression.Cons && index >= options.getMaxLength()) {
+                out.write(options.isCompact() ? " " + ELLIPSIS : ELLIPSIS);
+                return;
+            }
+            if (options.isCompact()) {
+                if (v instanceof Expression.Nil) {
+                    return;
+                } else if (v instanceof Expression.Cons) {
+                    // The next element of a list that is already open.
+                    Expression.Cons c = (Expression.Cons) v;
+                    out.write(' ');
+                    stack.push(new Pending(c.getRight(), depth, index + 1));
+                    stack.push(new Pending(c.getLeft(), depth + 1, 0));
+                    return;
+                }
+                out.write(" . ");
+            }
+        }
+
+        boolean compound = v instanceof Expression.Cons || v instanceof Expression.VectorValue
+                || v instanceof Expression.MapValue || v instanceof Expression.StructValue;
+        if (compound && depth >= options.getMaxDepth()) {
+            out.write(ELLIPSIS);
+        } else if (v instanceof Expression.Cons) {
+            Expression.Cons c = (Expression.Cons) v;
+            if (options.isCompact()) {
+                out.write('(');
+                pushText(stack, ")");
+                stack.push(new Pending(c.getRight(), depth, 1));
+            } else {
+                out.write("Expression.Cons(left=");
+                pushText(stack, ")");
+                stack.push(new Pending(c.getRight(), depth, index + 1));
+                pushText(stack, ", right=");
+            }
+            stack.push(new Pending(c.getLeft(), depth + 1, 0));
+        } else if (v instanceof Expression.Nil) {
+            out.write(options.isCompact() ? "nil" : "Expression.Nil()");
+        } else if (v instanceof Expression.VectorValue) {
+            out.write(options.isCompact() ? "[" : "Expression.VectorValue(elements=[");
+            pushText(stack, options.isCompact() ? "]" : "])");
+            stack.push(new Elements(Kind.VECTOR, ((Expression.VectorValue) v).getElements().iterator(), depth));
+        } else if (v instanceof Expression.MapValue) {
+            // PersistentHashMap can only be walked with forEach, so copy the entries that will be printed.
+            List<Expression> entries = new ArrayList<>();
+            ((Expression.MapValue) v).getEntries().forEach((key, value) -> {
+                if (entries.size() / 2 <= options.getMaxLength()) {
+                    entries.add(key);
+                    entries.add(value);
+                }
+            });
+            out.write(options.isCompact() ? "{" : "Expression.MapValue(entries={");
+            pushText(stack, options.isCompact() ? "}" : "})");
+            stack.push(new Elements(Kind.MAP, entries.iterator(), depth));
+        } else if (v instanceof Expression.StructValue) {
+            Expression.StructValue s = (Expression.StructValue) v;
+            out.write('(');
+            out.write(s.getType().getName());
+            pushText(stack, ")");
+            stack.push(new Elements(Kind.STRUCT, Arrays.asList(s.getSlots()).iterator(), depth));
+        } else {
+            // Literals, symbols, unforced thunks, and anything else that is not made of other values.
+            out.write(String.valueOf(v));
+        }
+    }
+
+    private static void printNextElement(Elements e, Deque<Object> stack, Writer out, Options options) throws IOException {
+        if (!e.elements.hasNext()) {
+            return;
+        }
+        int i = e.index++;
+        boolean compact = options.isCompact();
+        int position;
+        if (e.kind == Kind.MAP) {
+            position = i / 2;
+            out.write(i == 0 ? "" : i % 2 == 1 ? (compact ? " " : "=") : ", ");
+        } else {
+            position = i;
+            out.write(e.kind == Kind.STRUCT ? " " : i == 0 ? "" : compact ? " " : ", ");
+        }
+        if (position >= options.getMaxLength()) {
+            out.write(ELLIPSIS);
+            return;
+        }
+        Expression next = e.elements.next();
+        stack.push(e);
+        stack.push(new Pending(next, e.depth + 1, 0));
+    }
+
+    // The closing parentheses of a long list end up on top of each other, so count them instead.
+    private static void pushText(Deque<Object> stack, String text) {
+        Object top = stack.peek();
+        if (top instanceof Text && ((Text) top).text.equals(text)) {
+            ((Text) top).count++;
+        } else {
+            stack.push(new Text(text));
+        }
+    }
+
+    /**
+     * Writes env to out. With the default options this is what the Lombok toString of env would
+     * return; in compact mode it is one "name = value" line per binding, sorted by name, where
+     * functions and structs are summarized. Does not write a newline at the end, nor flush out.
+     */
+    public static void printEnvironment(Interpreter.DynamicEnvironment env, Writer out, Options options) throws IOException {
+        if (options.isCompact()) {
+            boolean first = true;
+            for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> binding : new TreeMap<>(env.getMap()).entrySet()) {
+                if (!first) {
+                    out.write(System.lineSeparator());
+                }
+                first = false;
+                out.write(binding.getKey());
+                out.write(" = ");
+                Interpreter.DynamicEnvironment.Entry entry = binding.getValue();
+                if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                    print(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue(), out, options);
+                } else if (entry instanceof Interpreter.DynamicEnvironment.Entry.FunctionEntry) {
+                    Binding.FunctionBinding fb = ((Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry).getFunctionBinding();
+                    out.write("<function " + fb.getFunname() + " (" + String.join(" ", fb.getArgnames()) + ")>");
+                } else if (entry instanceof Interpreter.DynamicEnvironment.Entry.StructEntry) {
+                    StructType type = ((Interpreter.DynamicEnvironment.Entry.StructEntry) entry).getType();
+                    out.write("<struct " + type.getName() + " (" + String.join(" ", type.getFieldNames()) + ")>");
+                } else {
+                    out.write(String.valueOf(entry));
+                }
+            }
+            return;
+        }
+        out.write("Interpreter.DynamicEnvironment(map={");
+        boolean first = true;
+        for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> binding : env.getMap().entrySet()) {
+            if (!first) {
+                out.write(", ");
+            }
+            first = false;
+            out.write(binding.getKey());
+            out.write('=');
+            Interpreter.DynamicEnvironment.Entry entry = binding.getValue();
+            if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                out.write("Interpreter.DynamicEnvironment.Entry.VariableEntry(value=");
+                print(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue(), out, options);
+                out.write(')');
+            } else {
+                // Function bodies are code, which is as deep as the source it was parsed from.
+                out.write(String.valueOf(entry));
+            }
+        }
+        out.write("})");
+    }
+}
@@ -0,0 +1,176 @@
+package trefoil2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler for Trefoil programs.
+ *
+ * While running, a background thread periodically copies the Trefoil-level call stack of every
+ * ExecutionContext and counts how often each stack was seen. The evaluator itself only pushes and
+ * pops function names, so the overhead on the program being profiled is small.
+ *
+ * Results are available as collapsed stacks ("outer;inner;innermost count" per line, the input
+ * format of flamegraph.pl and similar tools) and as a table of self/total time per function.
+ *
+ * At most one profiler is active at a time. Trefoil2 starts one when given --profile=FILE.
+ */
+public class Profiler {
+    private static volatile Profiler active = null;
+
+    // Every live context, whether or not a profiler is running, so that a profiler also samples the
+    // threads that started evaluating before it. Held weakly so that finished threads do not stay
+    // alive just because they once evaluated Trefoil code. Guarded by itself.
+    private static final Set<ExecutionContext> contexts = Collections.newSetFromMap(new WeakHashMap<>());
+    // Only touched by the sampler thread until it has been joined in stop().
+    private final Map<String, Long> samples = new HashMap<>();
+    private final long intervalNanos;
+    private final Thread sampler;
+    private volatile boolean running = true;
+    private long totalSamples = 0;
+
+    private Profiler(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+        this.sampler = new Thread(this::sampleLoop, "trefoil-profiler");
+        this.sampler.setDaemon(true);
+    }
+
+    /**
+     * Starts profiling every thread that evaluates Trefoil code, including the calling thread and
+     * threads (Engine workers, pool threads) that had already started before.
+     *
+     * @param intervalMillis time between two samples
+     */
+    public static synchronized Profiler start(long intervalMillis) {
+        if (active != null) {
+            throw new IllegalStateException("A profiler is already running");
+        }
+        Profiler profiler = new Profiler(TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis)));
+        active = profiler;
+        profiler.sampler.start();
+        return profiler;
+    }
+
+    /**
+     * Called by every new ExecutionContext, so that any profiler, running or started later, samples it.
+     */
+    static void register(ExecutionContext context) {
+        synchronized (contexts) {
+            contexts.add(context);
+        }
+    }
+
+    /**
+     * Stops sampling and waits for the sampler thread to finish. Results can be read afterwards.
+     */
+    public void stop() {
+        synchronized (Profiler.class) {
+            if (active == this) {
+                active = null;
+            }
+        }
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sampleLoop() {
+        StringBuilder key = new StringBuilder();
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            List<ExecutionContext> snapshot;
+            synchronized (contexts) {
+                snapshot = new ArrayList<>(contexts);
+            }
+            for (ExecutionContext context : snapshot) {
+                String[] stack = context.snapshotStack();
+                if (stack.length == 0) {
+                    // The thread is not evaluating anything right now.
+                    continue;
+                }
+                key.setLength(0);
+                for (int i = 0; i < stack.length; i++) {
+                    if (i > 0) {
+                        key.append(';');
+                    }
+                    key.append(stack[i]);
+                }
+                samples.merge(key.toString(), 1L, Long::sum);
+                totalSamples++;
+            }
+        }
+    }
+
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    public long getIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    /**
+     * Writes one line per distinct stack, "frame;frame;frame count", outermost frame first.
+     */
+    public void writeCollapsedStacks(Writer out) throws IOException {
+        List<String> stacks = new ArrayList<>(samples.keySet());
+        Collections.sort(stacks);
+        for (String stack : stacks) {
+            out.write(stack + " " + samples.get(stack) + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the n functions with the most self time, along with their total time.
+     *
+     * Self time counts the samples in which the function was the innermost frame; total time counts
+     * the samples in which it appeared anywhere on the stack (recursive calls are counted once).
+     */
+    public void printTopFunctions(PrintStream out, int n) {
+        Map<String, long[]> byFunction = new HashMap<>();  // name -> {self, total}
+        for (Map.Entry<String, Long> sample : samples.entrySet()) {
+            String[] frames = sample.getKey().split(";");
+            long count = sample.getValue();
+            byFunction.computeIfAbsent(frames[frames.length - 1], k -> new long[2])[0] += count;
+            Set<String> seen = new HashSet<>();
+            for (String frame : frames) {
+                if (seen.add(frame)) {
+                    byFunction.computeIfAbsent(frame, k -> new long[2])[1] += count;
+                }
+            }
+        }
+        List<Map.Entry<String, long[]>> rows = new ArrayList<>(byFunction.entrySet());
+        rows.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(b.getValue()[0], a.getValue()[0])
+                : Long.compare(b.getValue()[1], a.getValue()[1]));
+
+        long interval = getIntervalMillis();
+        out.println(String.format("%-30s %10s %7s %10s %7s", "function", "self ms", "self %", "total ms", "total %"));
+        for (int i = 0; i < Math.min(n, rows.size()); i++) {
+            String name = rows.get(i).getKey();
+            long self = rows.get(i).getValue()[0];
+            long total = rows.get(i).getValue()[1];
+            out.println(String.format("%-30s %10d %6.1f%% %10d %6.1f%%", name,
+                    self * interval, percent(self), total * interval, percent(total)));
+        }
+    }
+
+    private double percent(long count) {
+        return totalSamples == 0 ? 0.0 : 100.0 * count / totalSamples;
+    }
+}
@@ -0,0 +1,94 @@
+package trefoil2;
+
+import lombok.Data;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The definition of a struct: its name and field names, as introduced by (struct name fields...).
+ *
+ * Every struct name is assigned a small integer tag, and struct values and struct patterns carry
+ * that tag. Checking whether a value is an instance of a struct is then an integer comparison
+ * instead of a string comparison. As in Trefoil v3, two definitions with the same name are the
+ * same struct as far as predicates and patterns are concerned, as long as they have the same
+ * number of fields.
+ *
+ * A name keeps its tag while any struct type or struct pattern with that name is reachable; the
+ * registry only holds tags weakly, so a long-running process that keeps defining new structs does
+ * not keep every name it has ever seen. A name that is defined again after all of its types,
+ * values and patterns are gone gets a new tag, which nothing can tell apart from the old one.
+ */
+@Data
+public class StructType {
+    /**
+     * The tag of a struct name. Struct types and patterns hold on to it, which keeps it registered.
+     */
+    @Data
+    static final class Tag {
+        private final String name;
+        private final int value;
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    // A registered tag, weakly held, remembering its name so that it can be removed once cleared.
+    private static final class TagReference extends WeakReference<Tag> {
+        private final String name;
+
+        TagReference(Tag tag) {
+            super(tag, cleared);
+            this.name = tag.getName();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, TagReference> tags = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Tag> cleared = new ReferenceQueue<>();
+    // The next tag. tags.size() is not enough: two new names can be added at the same time.
+    private static final AtomicInteger nextTag = new AtomicInteger();
+
+    private final String name;
+    private final List<String> fieldNames;
+    private final Tag tag;
+
+    public StructType(String name, List<String> fieldNames) {
+        this.name = name;
+        this.fieldNames = fieldNames;
+        this.tag = tagFor(name);
+    }
+
+    public int getArity() {
+        return fieldNames.size();
+    }
+
+    public int getTag() {
+        return tag.getValue();
+    }
+
+    /**
+     * Returns the tag of the struct with the given name, assigning a new one if the name has none
+     * that is still reachable.
+     */
+    static Tag tagFor(String name) {
+        TagReference ref;
+        while ((ref = (TagReference) cleared.poll()) != null) {
+            tags.remove(ref.name, ref);
+        }
+        Tag[] result = new Tag[1];
+        tags.compute(name, (n, old) -> {
+            result[0] = old == null ? null : old.get();
+            if (result[0] != null) {
+                return old;
+            }
+            result[0] = new Tag(n, nextTag.getAndIncrement());
+            return new TagReference(result[0]);
+        });
+        return result[0];
+    }
+}
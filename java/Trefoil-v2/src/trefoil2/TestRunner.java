@@ -0,0 +1,200 @@
+package trefoil2;
+
+import lombok.Data;
+import parser.PSTParser;
+import parser.SourceSpan;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the (test ...) bindings of a program in parallel.
+ *
+ * All other bindings are evaluated sequentially, in order, exactly as Trefoil2 would. When a test
+ * binding is reached, it is handed to a worker pool together with the environment in effect at
+ * that point, and evaluation of the following bindings continues immediately. Since environments
+ * are never mutated once built, every test sees the same definitions it would have seen in a
+ * sequential run.
+ *
+ * Output printed while a test runs is discarded, so that concurrent tests do not interleave their
+ * output with the program's. Every test gets its own result with its source position, outcome and
+ * duration.
+ */
+public class TestRunner {
+    private final int threads;
+
+    public TestRunner(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Evaluates every binding that parser produces, starting from env, and waits for all tests to finish.
+     *
+     * Errors in non-test bindings are reported to the current ExecutionContext's output, with their
+     * backtrace, like in Trefoil2.main.
+     */
+    public Report run(PSTParser parser, Interpreter.DynamicEnvironment env, String sourceName) {
+        ExecutionContext context = ExecutionContext.current();
+        EvaluationLimits limits = context.getLimits();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "trefoil-test");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        List<Future<TestResult>> pending = new ArrayList<>();
+        try {
+            while (true) {
+                try {
+                    ParenthesizedSymbolTree pst = parser.parse();
+                    if (pst == null) {
+                        break;
+                    }
+                    Binding b = Binding.parsePST(pst);
+                    if (b instanceof Binding.TestBinding) {
+                        String location = sourceName + ":" + SourceSpan.toString(b.getSpan());
+                        Interpreter.DynamicEnvironment testEnv = env;
+                        pending.add(pool.submit(() -> runTest((Binding.TestBinding) b, testEnv, location, limits)));
+                    } else {
+                        env = Interpreter.interpretBinding(b, env);
+                    }
+                } catch (Trefoil2.TrefoilError e) {
+                    Trefoil2.reportError(e, sourceName, context.getOut());
+                }
+            }
+
+            List<TestResult> results = new ArrayList<>();
+            for (Future<TestResult> f : pending) {
+                results.add(f.get());
+            }
+            return new Report(results, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Trefoil2.InternalInterpreterError(e);
+        } catch (ExecutionException e) {
+            throw new Trefoil2.InternalInterpreterError(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static TestResult runTest(Binding.TestBinding test, Interpreter.DynamicEnvironment env,
+                                      String location, EvaluationLimits limits) {
+        ExecutionContext context = ExecutionContext.current();
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        context.setLimits(limits);
+        long start = System.nanoTime();
+        try {
+            Interpreter.interpretBinding(test, env);
+            return new TestResult(location, true, null, System.nanoTime() - start);
+        } catch (Trefoil2.TrefoilError e) {
+            return new TestResult(location, false, e.getMessage(), System.nanoTime() - start);
+        } catch (StackOverflowError e) {
+            return new TestResult(location, false, "Stack overflow", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Prints one line per test, a summary, and the slowest tests.
+     */
+    public static void printReport(Report report, PrintStream out, int slowest) {
+        for (TestResult r : report.getResults()) {
+            if (r.isPassed()) {
+                out.println(String.format("PASS %s (%.3f ms)", r.getLocation(), r.getDurationNanos() / 1e6));
+            } else {
+                out.println(String.format("FAIL %s (%.3f ms): %s", r.getLocation(), r.getDurationNanos() / 1e6, r.getMessage()));
+            }
+        }
+        out.println(String.format("%d tests, %d passed, %d failed in %.3f ms",
+                report.getResults().size(), report.getPassed(), report.getFailed(), report.getWallNanos() / 1e6));
+
+        List<TestResult> bySpeed = new ArrayList<>(report.getResults());
+        bySpeed.sort(Comparator.comparingLong(TestResult::getDurationNanos).reversed());
+        if (!bySpeed.isEmpty() && slowest > 0) {
+            out.println("slowest tests:");
+            for (TestResult r : bySpeed.subList(0, Math.min(slowest, bySpeed.size()))) {
+                out.println(String.format("  %10.3f ms  %s", r.getDurationNanos() / 1e6, r.getLocation()));
+            }
+        }
+    }
+
+    /**
+     * Writes the report as a JSON object, for consumption by other tools.
+     */
+    public static void writeJson(Report report, Writer out) throws IOException {
+        out.write("{\"tests\":" + report.getResults().size()
+                + ",\"passed\":" + report.getPassed()
+                + ",\"failed\":" + report.getFailed()
+                + ",\"wallNanos\":" + report.getWallNanos()
+                + ",\"results\":[");
+        for (int i = 0; i < report.getResults().size(); i++) {
+            TestResult r = report.getResults().get(i);
+            out.write((i > 0 ? "," : "") + "\n  {\"location\":" + jsonString(r.getLocation())
+                    + ",\"passed\":" + r.isPassed()
+                    + ",\"durationNanos\":" + r.getDurationNanos()
+                    + (r.getMessage() == null ? "" : ",\"message\":" + jsonString(r.getMessage()))
+                    + "}");
+        }
+        out.write("\n]}\n");
+        out.flush();
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    @Data
+    public static class TestResult {
+        // "file:line:column" of the test binding.
+        private final String location;
+        private final boolean passed;
+        // The error message for failed tests, null for passed ones.
+        private final String message;
+        private final long durationNanos;
+    }
+
+    @Data
+    public static class Report {
+        // In source order.
+        private final List<TestResult> results;
+        private final long wallNanos;
+
+        public int getPassed() {
+            return (int) results.stream().filter(TestResult::isPassed).count();
+        }
+
+        public int getFailed() {
+            return results.size() - getPassed();
+        }
+
+        public List<TestResult> getFailures() {
+            List<TestResult> failures = new ArrayList<>();
+            for (TestResult r : results) {
+                if (!r.isPassed()) {
+                    failures.add(r);
+                }
+            }
+            return Collections.unmodifiableList(failures);
+        }
+    }
+}
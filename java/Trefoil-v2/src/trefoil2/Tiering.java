@@ -0,0 +1,274 @@
+package trefoil2;
+
+import lombok.Data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Decides which functions are worth compiling, and compiles them in the background.
+ *
+ * Every function starts out interpreted (tier INTERPRETED), with two counters: how often it has
+ * been called, and how many of those calls came from the function itself. Recursion is how
+ * Trefoil loops, so the second one plays the role of a loop back-edge counter, and has a lower
+ * threshold: a function that loops is worth compiling before one that is merely called often.
+ *
+ * Once a function crosses either threshold it is queued for compilation, on a single background
+ * thread, while the program keeps running it in the interpreter. It is compiled to Bytecode for
+ * the VirtualMachine, or to a CompiledFunction (a tree of closures) if the target is CLOSURES, see
+ * setTarget(). The compiled code is published with a single volatile write to the function's
+ * Profile, which every call reads, so all call sites switch to it at once (tier COMPILED). If the
+ * function cannot be compiled it stays interpreted for good (tier FAILED).
+ *
+ * Every tier transition is recorded, with the time its compilation took, see recentTransitions()
+ * and addListener(). Totals are in Metrics.
+ *
+ * Tiering is off unless it is asked for, with setEnabled(), --tiering on the command line or the
+ * system property trefoil.tier=true. Compiled code gives the same values and errors as the
+ * interpreter, but it takes fewer steps (see CompiledFunction) and does not record the per-node
+ * Metrics or the inline cache counts. With tiering on, whether --max-steps trips and what Metrics
+ * reports depend on when the compiler thread gets to each function.
+ *
+ * The initial settings can be given as system properties: trefoil.tier, trefoil.tier.callThreshold,
+ * trefoil.tier.loopThreshold, trefoil.tier.target (bytecode or closures), and trefoil.tier.sync,
+ * which compiles a function on the thread that made it hot, before its next call, instead of in
+ * the background. Together they run a whole program, or the test suite, on compiled code:
+ *
+ *   java -Dtrefoil.tier=true -Dtrefoil.tier.sync=true -Dtrefoil.tier.callThreshold=1 -Dtrefoil.tier.loopThreshold=1 \
+ *       -cp ... org.junit.runner.JUnitCore Trefoil2Test
+ *
+ * runs every function of Trefoil2Test in the VirtualMachine from its second call on (the first
+ * call is interpreted: it is the one that makes the function hot). Tests of what only the
+ * interpreter counts, like inline cache hits, turn tiering off for themselves.
+ */
+public class Tiering {
+    public enum Tier {
+        INTERPRETED, QUEUED, COMPILED, FAILED
+    }
+
+    /**
+     * What hot functions are compiled to.
+     */
+    public enum Target {
+        BYTECODE, CLOSURES
+    }
+
+    /**
+     * A function moving from one tier to another. compileNanos is 0 unless it was just compiled.
+     */
+    @Data
+    public static class Transition {
+        private final String function;
+        private final Tier from;
+        private final Tier to;
+        private final long compileNanos;
+        private final long timestampMillis;
+    }
+
+    public static final int DEFAULT_CALL_THRESHOLD = 1000;
+    public static final int DEFAULT_LOOP_THRESHOLD = 500;
+    private static final int MAX_RECENT_TRANSITIONS = 256;
+
+    private static volatile boolean enabled = Boolean.getBoolean("trefoil.tier");
+    private static volatile int callThreshold = Math.max(1, Integer.getInteger("trefoil.tier.callThreshold", DEFAULT_CALL_THRESHOLD));
+    private static volatile int loopThreshold = Math.max(1, Integer.getInteger("trefoil.tier.loopThreshold", DEFAULT_LOOP_THRESHOLD));
+    private static volatile Target target =
+            System.getProperty("trefoil.tier.target", "bytecode").equalsIgnoreCase("closures") ? Target.CLOSURES : Target.BYTECODE;
+    private static final boolean synchronous = Boolean.getBoolean("trefoil.tier.sync");
+
+    private static final Deque<Transition> recent = new ArrayDeque<>();
+    private static final List<Consumer<Transition>> listeners = new CopyOnWriteArrayList<>();
+
+    // One thread is enough: compiling a function takes a fraction of the time it took to get hot.
+    private static final ExecutorService compiler = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "trefoil-compiler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The tiering state of one function, kept in its FunctionEntry.
+     *
+     * The counters are updated without synchronization. When several threads call the function
+     * at once some increments may be lost, which only delays its compilation a little.
+     */
+    static class Profile {
+        private int calls;
+        private int selfCalls;
+        private volatile Tier tier = Tier.INTERPRETED;
+        // At most one of these is set.
+        private volatile CompiledFunction code;
+        private volatile Bytecode bytecode;
+
+        CompiledFunction getCode() {
+            return code;
+        }
+
+        Bytecode getBytecode() {
+            return bytecode;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns compilation on or off. Functions compiled already stay compiled.
+     */
+    public static void setEnabled(boolean enabled) {
+        Tiering.enabled = enabled;
+    }
+
+    public static Target getTarget() {
+        return target;
+    }
+
+    /**
+     * Sets what functions compiled from now on are compiled to. Functions compiled already keep their code.
+     */
+    public static void setTarget(Target target) {
+        Tiering.target = target;
+    }
+
+    public static int getCallThreshold() {
+        return callThreshold;
+    }
+
+    public static int getLoopThreshold() {
+        return loopThreshold;
+    }
+
+    /**
+     * Sets how many calls, or calls of a function from itself, make it worth compiling.
+     */
+    public static void setThresholds(int callThreshold, int loopThreshold) {
+        if (callThreshold < 1 || loopThreshold < 1) {
+            throw new IllegalArgumentException("Thresholds must be positive");
+        }
+        Tiering.callThreshold = callThreshold;
+        Tiering.loopThreshold = loopThreshold;
+    }
+
+    /**
+     * Counts a call to function, which is still interpreted, and queues it for compilation once
+     * it is hot. caller is the name of the innermost function being executed, if any.
+     */
+    static void called(Interpreter.DynamicEnvironment.Entry.FunctionEntry function, String caller) {
+        Profile profile = function.getProfile();
+        if (profile.tier != Tier.INTERPRETED || !enabled) {
+            return;
+        }
+        int calls = ++profile.calls;
+        int selfCalls = function.getFunctionBinding().getFunname().equals(caller) ? ++profile.selfCalls : profile.selfCalls;
+        if (calls >= callThreshold || selfCalls >= loopThreshold) {
+            synchronized (profile) {
+                if (profile.tier != Tier.INTERPRETED) {
+                    return;
+                }
+                profile.tier = Tier.QUEUED;
+            }
+            record(function, Tier.INTERPRETED, Tier.QUEUED, 0);
+            if (synchronous) {
+                compile(function);
+            } else {
+                compiler.execute(() -> compile(function));
+            }
+        }
+    }
+
+    private static void compile(Interpreter.DynamicEnvironment.Entry.FunctionEntry function) {
+        Profile profile = function.getProfile();
+        long start = System.nanoTime();
+        CompiledFunction code = null;
+        Bytecode bytecode = null;
+        try {
+            if (target == Target.BYTECODE) {
+                bytecode = Bytecode.compile(function);
+            } else {
+                code = CompiledFunction.compile(function);
+            }
+        } catch (RuntimeException | StackOverflowError e) {
+            profile.tier = Tier.FAILED;
+            record(function, Tier.QUEUED, Tier.FAILED, System.nanoTime() - start);
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        // From here on every call runs the compiled code.
+        profile.code = code;
+        profile.bytecode = bytecode;
+        profile.tier = Tier.COMPILED;
+        if (Metrics.isEnabled()) {
+            Metrics.functionCompiled(nanos);
+        }
+        record(function, Tier.QUEUED, Tier.COMPILED, nanos);
+    }
+
+    private static void record(Interpreter.DynamicEnvironment.Entry.FunctionEntry function, Tier from, Tier to, long nanos) {
+        Transition transition = new Transition(function.getFunctionBinding().getFunname(), from, to, nanos,
+                System.currentTimeMillis());
+        synchronized (recent) {
+            if (recent.size() == MAX_RECENT_TRANSITIONS) {
+                recent.removeFirst();
+            }
+            recent.addLast(transition);
+        }
+        for (Consumer<Transition> listener : listeners) {
+            listener.accept(transition);
+        }
+    }
+
+    /**
+     * Returns the current tier of function.
+     */
+    public static Tier tierOf(Interpreter.DynamicEnvironment.Entry.FunctionEntry function) {
+        return function.getProfile().tier;
+    }
+
+    /**
+     * Returns the last transitions, oldest first.
+     */
+    public static List<Transition> recentTransitions() {
+        synchronized (recent) {
+            return new ArrayList<>(recent);
+        }
+    }
+
+    /**
+     * Calls listener on every tier transition from now on. The listener runs on the thread making
+     * the transition: the interpreter's when a function is queued, the compiler's afterwards.
+     */
+    public static void addListener(Consumer<Transition> listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Consumer<Transition> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Waits until every function queued so far has been compiled. Returns false on timeout.
+     */
+    public static boolean awaitCompilations(long timeout, TimeUnit unit) throws InterruptedException {
+        // The compiler runs one task at a time, in order, so an empty task finishes after all earlier ones.
+        Future<?> marker = compiler.submit(() -> { });
+        try {
+            marker.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new Trefoil2.InternalInterpreterError(e.getCause());
+        }
+    }
+}
@@ -1,42 +1,200 @@
 package trefoil2;
 
 import parser.PSTParser;
+import parser.SourceSpan;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Interpreter for the Trefoil v2 language.
  */
 public class Trefoil2 {
+    // How often --watch checks whether the file has changed.
+    private static final long WATCH_INTERVAL_MILLIS = 200;
+
     /**
      * Main command-line entry point.
      *
-     * Takes either 0 or 1 argument on command line.
+     * Takes either 0 or 1 argument on command line, plus any number of options.
      * - If 0 args passed, reads from standard input (keyboard)
      * - If 1 arg passed, opens that arg as a file and reads from it.
      *
+     * Options:
+     * - --profile=FILE samples the Trefoil call stack while the program runs, writes collapsed
+     *   stacks (for flamegraph tools) to FILE and prints the hottest functions to stderr.
+     * - --profile-interval=MS sets the sampling interval (default 1ms).
+     * - --max-steps=N, --timeout-ms=N, --max-depth=N and --max-allocations=N bound each binding,
+     *   see EvaluationLimits. A binding that exceeds a limit is reported and skipped.
+     * - --load-image=FILE starts from an environment saved with --save-image instead of the empty one.
+     * - --save-image=FILE saves the final environment to FILE, see EnvironmentImage.
+     * - --test runs the program's test bindings in parallel and prints a test report instead of
+     *   the final environment, see TestRunner. --test-threads=N sets the number of workers
+     *   (default: one per core) and --test-report=FILE also writes the report as JSON.
+     * - --tiering compiles functions called more than --tier-call-threshold=N times (default
+     *   1000), or calling themselves more than --tier-loop-threshold=N times (default 500), in the
+     *   background, see Tiering. It is off by default, and --no-tiering turns it off again.
+     *   Compiled functions take fewer steps than interpreted ones, so --max-steps is only exact
+     *   without it. --trace-tiering prints every tier transition to stderr. --tier-target=closures compiles
+     *   to CompiledFunctions instead of Bytecode for the VirtualMachine.
+     * - --disassemble prints the Bytecode of every function to stderr when it is defined.
+     * - --debug makes errors capture Java stack traces, see TrefoilError.
+     * - --print-depth=N and --print-length=N truncate printed values to N levels of nesting and
+     *   N elements per list, vector, map or struct, see Printer. --compact-env prints the final
+     *   environment one binding per line, with values written as Trefoil source.
+     * - --watch runs the program, then runs it again whenever its file changes, re-evaluating
+     *   only the bindings affected by the change, see WatchSession. It never exits.
+     * - --typecheck runs TypeInference on each binding before it is executed: definite type
+     *   errors are reported on stderr, and proven nodes skip their run-time type checks.
+     *
      * Implements the semantics of Trefoil v2 programs: reads bindings
      * one by one off the input and executes them on the dynamic environment.
      */
     public static void main(String[] args) {
+        String profileFile = null;
+        long profileInterval = 1;
+        long maxSteps = Long.MAX_VALUE;
+        long timeoutMillis = Long.MAX_VALUE;
+        long maxDepth = Integer.MAX_VALUE;
+        long maxAllocations = Long.MAX_VALUE;
+        String loadImage = null;
+        String saveImage = null;
+        boolean testMode = false;
+        long testThreads = Runtime.getRuntime().availableProcessors();
+        String testReport = null;
+        boolean typecheck = false;
+        long printDepth = Integer.MAX_VALUE;
+        long printLength = Integer.MAX_VALUE;
+        boolean compactEnv = false;
+        boolean watch = false;
+        boolean disassemble = false;
+        boolean traceTiering = false;
+        long tierCallThreshold = Tiering.getCallThreshold();
+        long tierLoopThreshold = Tiering.getLoopThreshold();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--profile=")) {
+                profileFile = arg.substring("--profile=".length());
+            } else if (arg.startsWith("--profile-interval=")) {
+                profileInterval = parseNumericOption(arg);
+            } else if (arg.startsWith("--max-steps=")) {
+                maxSteps = parseNumericOption(arg);
+            } else if (arg.startsWith("--timeout-ms=")) {
+                timeoutMillis = parseNumericOption(arg);
+            } else if (arg.startsWith("--max-depth=")) {
+                maxDepth = Math.min(Integer.MAX_VALUE, parseNumericOption(arg));
+            } else if (arg.startsWith("--max-allocations=")) {
+                maxAllocations = parseNumericOption(arg);
+            } else if (arg.startsWith("--load-image=")) {
+                loadImage = arg.substring("--load-image=".length());
+            } else if (arg.startsWith("--save-image=")) {
+                saveImage = arg.substring("--save-image=".length());
+            } else if (arg.equals("--test")) {
+                testMode = true;
+            } else if (arg.startsWith("--test-threads=")) {
+                testThreads = parseNumericOption(arg);
+            } else if (arg.startsWith("--test-report=")) {
+                testReport = arg.substring("--test-report=".length());
+            } else if (arg.equals("--tiering")) {
+                Tiering.setEnabled(true);
+            } else if (arg.equals("--no-tiering")) {
+                Tiering.setEnabled(false);
+            } else if (arg.startsWith("--tier-call-threshold=")) {
+                tierCallThreshold = Math.max(1, Math.min(Integer.MAX_VALUE, parseNumericOption(arg)));
+            } else if (arg.startsWith("--tier-loop-threshold=")) {
+                tierLoopThreshold = Math.max(1, Math.min(Integer.MAX_VALUE, parseNumericOption(arg)));
+            } else if (arg.startsWith("--tier-target=")) {
+                String target = arg.substring("--tier-target=".length());
+                if (target.equals("bytecode")) {
+                    Tiering.setTarget(Tiering.Target.BYTECODE);
+                } else if (target.equals("closures")) {
+                    Tiering.setTarget(Tiering.Target.CLOSURES);
+                } else {
+                    System.err.println("Unknown tier target " + target + ", expected bytecode or closures");
+                    System.exit(1);
+                }
+            } else if (arg.equals("--disassemble")) {
+                disassemble = true;
+            } else if (arg.equals("--trace-tiering")) {
+                traceTiering = true;
+            } else if (arg.equals("--debug")) {
+                TrefoilError.setJavaStackTraces(true);
+            } else if (arg.startsWith("--print-depth=")) {
+                printDepth = Math.min(Integer.MAX_VALUE, parseNumericOption(arg));
+            } else if (arg.startsWith("--print-length=")) {
+                printLength = Math.min(Integer.MAX_VALUE, parseNumericOption(arg));
+            } else if (arg.equals("--compact-env")) {
+                compactEnv = true;
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--typecheck")) {
+                typecheck = true;
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            } else {
+                positional.add(arg);
+            }
+        }
+
         Reader inputReader = null;
-        if (args.length == 0) {
+        if (positional.size() == 0) {
             inputReader = new InputStreamReader(System.in);
-        } else if (args.length == 1) {
+        } else if (positional.size() == 1) {
             try {
-                inputReader = new FileReader(args[0]);
+                inputReader = new FileReader(positional.get(0));
             } catch (FileNotFoundException e) {
-                System.err.println("Could not find file " + args[0]);
+                System.err.println("Could not find file " + positional.get(0));
                 System.exit(1);
             }
         } else {
-            System.err.println("Expected 0 or 1 arguments but got " + args.length);
+            System.err.println("Expected 0 or 1 arguments but got " + positional.size());
             System.exit(1);
         }
 
+        ExecutionContext.current().setLimits(
+                new EvaluationLimits(maxSteps, timeoutMillis, (int) maxDepth, maxAllocations));
+        ExecutionContext.current().setPrintOptions(new Printer.Options((int) printDepth, (int) printLength, false));
+        Profiler profiler = profileFile == null ? null : Profiler.start(profileInterval);
+        Tiering.setThresholds((int) tierCallThreshold, (int) tierLoopThreshold);
+        if (traceTiering) {
+            Tiering.addListener(t -> System.err.println("tiering: " + t.getFunction() + " " + t.getFrom() + " -> "
+                    + t.getTo() + (t.getCompileNanos() > 0 ? " (" + t.getCompileNanos() / 1000 + "us)" : "")));
+        }
+
         PSTParser parser = PSTParser.ofReader(inputReader);
 
         Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment();
+        if (loadImage != null) {
+            try {
+                env = EnvironmentImage.load(Paths.get(loadImage));
+            } catch (IOException e) {
+                System.err.println("Could not load image " + loadImage + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        String sourceName = positional.isEmpty() ? "<stdin>" : positional.get(0);
+        if (!positional.isEmpty()) {
+            // Imports are relative to the program's own directory.
+            ExecutionContext.current().setSourceDirectory(Paths.get(sourceName).toAbsolutePath().getParent());
+        }
+        Printer.Options envOptions = new Printer.Options((int) printDepth, (int) printLength, compactEnv);
+        if (watch) {
+            if (positional.isEmpty() || testMode || profiler != null || saveImage != null) {
+                System.err.println("--watch needs a file, and cannot be combined with --test, --profile or --save-image");
+                System.exit(1);
+            }
+            watch(Paths.get(sourceName), env, sourceName, typecheck, envOptions);
+        }
+        if (testMode) {
+            System.exit(runTests(parser, env, sourceName, (int) testThreads, testReport));
+        }
         while (true) {
             // Note that a TrefoilError will not cause this loop to exit!
             // This is good for interactive use so that users can try again.
@@ -48,23 +206,231 @@ public class Trefoil2 {
                 // System.out.println(pstree);  // uncomment to see the PST
                 Binding b = Binding.parsePST(pstree);
                 //System.out.println(b);  // uncomment to see the parsed binding
+                if (typecheck) {
+                    reportTypeErrors(b, env, sourceName, System.err);
+                }
                 env = Interpreter.interpretBinding(b, env);
+                if (disassemble && b instanceof Binding.FunctionBinding) {
+                    System.err.print(Bytecode.compile((Interpreter.DynamicEnvironment.Entry.FunctionEntry)
+                            env.getMap().get(((Binding.FunctionBinding) b).getFunname())).disassemble());
+                }
             } catch (TrefoilError e) {
-                System.out.println(e.getMessage());
+                reportError(e, sourceName, System.out);
             }
         }
 
-        // print the environment
+        if (profiler != null) {
+            profiler.stop();
+            try (Writer out = new BufferedWriter(new FileWriter(profileFile))) {
+                profiler.writeCollapsedStacks(out);
+            } catch (IOException e) {
+                System.err.println("Could not write profile to " + profileFile + ": " + e.getMessage());
+            }
+            System.err.println("profile: " + profiler.getTotalSamples() + " samples, written to " + profileFile);
+            profiler.printTopFunctions(System.err, 20);
+        }
+
+        if (saveImage != null) {
+            try {
+                EnvironmentImage.save(env, Paths.get(saveImage));
+            } catch (IOException e) {
+                System.err.println("Could not save image " + saveImage + ": " + e.getMessage());
+            }
+        }
+
+        printFinalEnvironment(env, envOptions);
+    }
+
+    private static void printFinalEnvironment(Interpreter.DynamicEnvironment env, Printer.Options options) {
         System.out.println("final environment:");
-        System.out.println(env);  // Uses the default Lombok toString. It's fine to leave as is, even though it is verbose.
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            Printer.printEnvironment(env, out, options);
+            out.write(System.lineSeparator());
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Could not print the final environment: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Implements --watch: runs file, and again every time it changes, starting from env. Never returns.
+     */
+    private static void watch(Path file, Interpreter.DynamicEnvironment env, String sourceName, boolean typecheck,
+                              Printer.Options envOptions) {
+        WatchSession session = new WatchSession(env, sourceName, typecheck);
+        String last = null;
+        FileTime lastModified = null;
+        long lastSize = -1;
+        while (true) {
+            try {
+                FileTime modified = Files.getLastModifiedTime(file);
+                long size = Files.size(file);
+                if (!modified.equals(lastModified) || size != lastSize) {
+                    lastModified = modified;
+                    lastSize = size;
+                    // Decoded like the FileReader of a normal run.
+                    String source = new String(Files.readAllBytes(file), Charset.defaultCharset());
+                    if (!source.equals(last)) {
+                        last = source;
+                        long start = System.nanoTime();
+                        Interpreter.DynamicEnvironment result = session.run(source, System.out, System.err);
+                        printFinalEnvironment(result, envOptions);
+                        System.err.println(String.format("watch: evaluated %d and reused %d bindings in %.1f ms",
+                                session.getEvaluated(), session.getReused(), (System.nanoTime() - start) / 1e6));
+                    }
+                }
+            } catch (IOException e) {
+                // The file may be in the middle of being replaced by an editor: try again later.
+            }
+            try {
+                Thread.sleep(WATCH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs TypeInference on b, which is about to be evaluated in env, and prints the type errors
+     * it finds to err. Returns how many it found.
+     */
+    static int reportTypeErrors(Binding b, Interpreter.DynamicEnvironment env, String sourceName, PrintStream err) {
+        List<TypeInference.TypeError> errors = TypeInference.check(b, env);
+        for (TypeInference.TypeError error : errors) {
+            long span = error.getSpan() != SourceSpan.UNKNOWN ? error.getSpan() : b.getSpan();
+            err.println(sourceName + ":" + SourceSpan.toString(span) + ": type error: " + error.getMessage());
+        }
+        return errors.size();
+    }
+
+    /**
+     * Prints an error that made a binding fail, with its Trefoil backtrace.
+     */
+    static void reportError(TrefoilError e, String sourceName, PrintStream out) {
+        out.println(e.getMessage());
+        out.print(e.formatBacktrace(sourceName));
+    }
+
+    /**
+     * Implements --test. Returns the process exit status: 0 if every test passed, 1 otherwise.
+     */
+    private static int runTests(PSTParser parser, Interpreter.DynamicEnvironment env, String sourceName,
+                                int threads, String reportFile) {
+        TestRunner.Report report = new TestRunner(threads).run(parser, env, sourceName);
+        TestRunner.printReport(report, System.out, 10);
+        if (reportFile != null) {
+            try (Writer out = new BufferedWriter(new FileWriter(reportFile))) {
+                TestRunner.writeJson(report, out);
+            } catch (IOException e) {
+                System.err.println("Could not write test report to " + reportFile + ": " + e.getMessage());
+            }
+        }
+        return report.getFailed() == 0 ? 0 : 1;
+    }
+
+    private static long parseNumericOption(String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Expected a number in option " + arg);
+            System.exit(1);
+            return 0;  // unreachable
+        }
     }
 
     /**
      * Throw a subclass of this error whenever your interpreter detects a problem that is the user's fault.
+     *
+     * Instead of the Java stack trace, which is expensive to capture and says nothing about the
+     * Trefoil program, an error records the Trefoil call stack at the point it was raised: the
+     * name of each frame, and the call site (or binding) that created it. Java stack traces are
+     * only captured when enabled with setJavaStackTraces, or the trefoil.debug system property.
      */
     public abstract static class TrefoilError extends RuntimeException {
+        private static volatile boolean javaStackTraces = Boolean.getBoolean("trefoil.debug");
+
+        // The Trefoil call stack, outermost first, with the SourceSpan of the call site of each frame.
+        private final String[] frames;
+        private final long[] callSites;
+        private long span;
+        // Whether span was set by locate, from the node at fault.
+        private boolean located;
+
         public TrefoilError(String message) {
-            super(message);
+            super(message, null, false, javaStackTraces);
+            ExecutionContext context = ExecutionContext.current();
+            frames = context.snapshotStack();
+            callSites = context.snapshotCallSites(frames.length);
+            span = SourceSpan.UNKNOWN;
+            for (int i = callSites.length - 1; i >= 0 && span == SourceSpan.UNKNOWN; i--) {
+                span = callSites[i];
+            }
+            if (Metrics.isEnabled()) {
+                Metrics.errorRaised(getClass());
+            }
+        }
+
+        public static boolean isJavaStackTraces() {
+            return javaStackTraces;
+        }
+
+        /**
+         * Makes errors raised from now on capture the Java stack trace too, for debugging the interpreter.
+         */
+        public static void setJavaStackTraces(boolean enabled) {
+            javaStackTraces = enabled;
+        }
+
+        /**
+         * Returns where the error happened, as a SourceSpan: the innermost node known to be at
+         * fault, which for run-time errors is the call site of the innermost function.
+         */
+        public long getSpan() {
+            return span;
+        }
+
+        // Records span as the location of the error. The first call wins: errors are located from the
+        // innermost node outwards.
+        void locate(long span) {
+            if (!located && span != SourceSpan.UNKNOWN) {
+                this.span = span;
+                located = true;
+            }
+        }
+
+        /**
+         * Returns the Trefoil call stack when the error was raised, innermost frame first.
+         */
+        public List<String> getBacktrace() {
+            List<String> backtrace = new ArrayList<>(frames.length);
+            for (int i = frames.length - 1; i >= 0; i--) {
+                backtrace.add(frames[i]);
+            }
+            return backtrace;
+        }
+
+        /**
+         * Formats the location and backtrace of the error, one "  at ..." line each, with
+         * positions in sourceName.
+         */
+        public String formatBacktrace(String sourceName) {
+            StringBuilder sb = new StringBuilder();
+            if (frames.length == 0) {
+                if (span != SourceSpan.UNKNOWN) {
+                    sb.append("  at ").append(sourceName).append(':').append(SourceSpan.toString(span)).append('\n');
+                }
+                return sb.toString();
+            }
+            for (int i = frames.length - 1; i >= 0; i--) {
+                sb.append("  at ").append(frames[i]);
+                if (callSites[i] != SourceSpan.UNKNOWN) {
+                    sb.append(" (").append(sourceName).append(':').append(SourceSpan.toString(callSites[i])).append(')');
+                }
+                sb.append('\n');
+            }
+            return sb.toString();
         }
 
         public static class LexicalError extends TrefoilError {
@@ -82,6 +448,13 @@ public class Trefoil2 {
         public static class RuntimeError extends TrefoilError {
             public RuntimeError(String message) { super(message); }
         }
+
+        /**
+         * Thrown when a binding exceeds one of the EvaluationLimits installed on its thread.
+         */
+        public static class LimitExceededError extends TrefoilError {
+            public LimitExceededError(String message) { super(message); }
+        }
     }
 
     /**
@@ -95,6 +468,7 @@ public class Trefoil2 {
     public static class InternalInterpreterError extends RuntimeException {
         public InternalInterpreterError(String message) { super(message); }
         public InternalInterpreterError(Throwable cause) { super(cause); }
+        public InternalInterpreterError(String message, Throwable cause) { super(message, cause); }
     }
 
 }
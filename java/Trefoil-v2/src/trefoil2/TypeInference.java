@@ -0,0 +1,299 @@
+package trefoil2;
+
+import lombok.Data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An optional static pass that infers the types of expressions before they are evaluated.
+ *
+ * The analysis is flow-based rather than full Hindley-Milner: Trefoil functions can be called
+ * with anything, so function parameters are of unknown type, but everything built from literals,
+ * arithmetic, comparisons, top-level variables (whose values are known) and calls to functions
+ * (whose return types are inferred from their bodies, recursion included) gets a type. Since
+ * function bodies are always evaluated in their defining environment, the functions they call are
+ * known statically.
+ *
+ * The results are used in two ways:
+ * - nodes whose operands are proven to have the right types are marked, and the interpreter
+ *   skips its run-time type checks for them (arithmetic and = on proven integers, if on a proven
+ *   boolean condition),
+ * - operands that can only have the wrong type are reported as definite type errors. They are
+ *   only warnings: the binding still runs, and the error is raised if and when the node is
+ *   evaluated, as usual.
+ *
+ * A mark is only set when it holds in every evaluation of the node, and every node the pass
+ * visits has its mark set or cleared again, so running the pass never changes what a program does.
+ */
+public class TypeInference {
+    /**
+     * What is known about the value of an expression, if its evaluation finishes. NONE means
+     * that it never does (it is only used while inferring recursive functions).
+     */
+    public enum Type {
+        NONE, INT, BOOL, LIST, ANY;
+
+        Type join(Type other) {
+            if (this == other || other == NONE) {
+                return this;
+            }
+            return this == NONE ? other : ANY;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * A definite type error: the node at span can only fail.
+     */
+    @Data
+    public static class TypeError {
+        private final String message;
+        private final long span;
+    }
+
+    // Return types of functions, by identity of their entry. Entries being inferred hold their current assumption.
+    private final Map<Interpreter.DynamicEnvironment.Entry.FunctionEntry, Type> returnTypes = new IdentityHashMap<>();
+    private final Deque<Interpreter.DynamicEnvironment.Entry.FunctionEntry> inProgress = new ArrayDeque<>();
+    private final List<TypeError> errors = new ArrayList<>();
+    // Errors are only reported for the binding being checked, not for the bodies of the functions it calls.
+    private boolean reporting;
+
+    private TypeInference() {
+    }
+
+    /**
+     * Analyzes b, which is about to be evaluated in env, marks the nodes whose type checks can be
+     * skipped and returns the definite type errors found, in source order.
+     */
+    public static List<TypeError> check(Binding b, Interpreter.DynamicEnvironment env) {
+        TypeInference inference = new TypeInference();
+        inference.reporting = true;
+        Map<String, Type> locals = new HashMap<>();
+        if (b instanceof Binding.VariableBinding) {
+            inference.infer(((Binding.VariableBinding) b).getVardef(), locals, env);
+        } else if (b instanceof Binding.TopLevelExpression) {
+            inference.infer(((Binding.TopLevelExpression) b).getExpression(), locals, env);
+        } else if (b instanceof Binding.TestBinding) {
+            inference.infer(((Binding.TestBinding) b).getExpression(), locals, env);
+        } else if (b instanceof Binding.FunctionBinding) {
+            Binding.FunctionBinding fb = (Binding.FunctionBinding) b;
+            Interpreter.DynamicEnvironment defenv;
+            try {
+                defenv = env.extendFunction(fb.getFunname(), fb);
+            } catch (Trefoil2.TrefoilError e) {
+                // The definition itself is wrong; the interpreter reports that.
+                return inference.errors;
+            }
+            inference.returnType((Interpreter.DynamicEnvironment.Entry.FunctionEntry) defenv.getMap().get(fb.getFunname()));
+        }
+        return inference.errors;
+    }
+
+    /**
+     * Returns the type of the value of e in env, as far as it can be inferred.
+     */
+    public static Type typeOf(Expression e, Interpreter.DynamicEnvironment env) {
+        return new TypeInference().infer(e, new HashMap<>(), env);
+    }
+
+    private static Type typeOfValue(Expression v) {
+        if (v instanceof Expression.IntegerLiteral) {
+            return Type.INT;
+        } else if (v instanceof Expression.BooleanLiteral) {
+            return Type.BOOL;
+        } else if (v instanceof Expression.Nil || v instanceof Expression.Cons) {
+            return Type.LIST;
+        }
+        return Type.ANY;
+    }
+
+    private Type returnType(Interpreter.DynamicEnvironment.Entry.FunctionEntry function) {
+        Type known = returnTypes.get(function);
+        if (known != null) {
+            if (inProgress.contains(function) && inProgress.peek() != function) {
+                // Mutual recursion: the assumption for the outer function may still grow, so do not rely on it.
+                return Type.ANY;
+            }
+            return known;
+        }
+        Binding.FunctionBinding fb = function.getFunctionBinding();
+        Map<String, Type> params = new HashMap<>();
+        for (String arg : fb.getArgnames()) {
+            params.put(arg, Type.ANY);
+        }
+        // Start from "never returns" and infer the body until the assumption for recursive calls holds.
+        returnTypes.put(function, Type.NONE);
+        inProgress.push(function);
+        try {
+            while (true) {
+                Type assumed = returnTypes.get(function);
+                int reported = errors.size();
+                Type t = infer(fb.getBody(), params, function.getDefiningEnvironment());
+                returnTypes.put(function, t);
+                if (t == assumed) {
+                    return t;
+                }
+                // Another round sees the same errors again.
+                errors.subList(reported, errors.size()).clear();
+            }
+        } finally {
+            inProgress.pop();
+        }
+    }
+
+    private Type infer(Expression e, Map<String, Type> locals, Interpreter.DynamicEnvironment env) {
+        if (e instanceof Expression.IntegerLiteral) {
+            return Type.INT;
+        } else if (e instanceof Expression.BooleanLiteral) {
+            return Type.BOOL;
+        } else if (e instanceof Expression.Nil) {
+            return Type.LIST;
+        } else if (e instanceof Expression.VariableReference) {
+            String name = ((Expression.VariableReference) e).getVarname();
+            if (locals.containsKey(name)) {
+                return locals.get(name);
+            }
+            Interpreter.DynamicEnvironment.Entry entry = env.getMap().get(name);
+            if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry) {
+                return typeOfValue(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue());
+            }
+            return Type.ANY;
+        } else if (e instanceof Expression.Plus) {
+            return arithmetic(e, "+", ((Expression.Plus) e).getLeft(), ((Expression.Plus) e).getRight(), locals, env);
+        } else if (e instanceof Expression.Minus) {
+            return arithmetic(e, "-", ((Expression.Minus) e).getLeft(), ((Expression.Minus) e).getRight(), locals, env);
+        } else if (e instanceof Expression.Times) {
+            return arithmetic(e, "*", ((Expression.Times) e).getLeft(), ((Expression.Times) e).getRight(), locals, env);
+        } else if (e instanceof Expression.Remainder) {
+            return arithmetic(e, "rem", ((Expression.Remainder) e).getLeft(), ((Expression.Remainder) e).getRight(), locals, env);
+        } else if (e instanceof Expression.Equals) {
+            arithmetic(e, "=", ((Expression.Equals) e).getLeft(), ((Expression.Equals) e).getRight(), locals, env);
+            return Type.BOOL;
+        } else if (e instanceof Expression.If) {
+            Expression.If i = (Expression.If) e;
+            e.setTypeChecked(infer(i.getLeft(), locals, env) == Type.BOOL);
+            return infer(i.getMiddle(), locals, env).join(infer(i.getRight(), locals, env));
+        } else if (e instanceof Expression.Cons) {
+            infer(((Expression.Cons) e).getLeft(), locals, env);
+            infer(((Expression.Cons) e).getRight(), locals, env);
+            return Type.LIST;
+        } else if (e instanceof Expression.isNil) {
+            infer(((Expression.isNil) e).getLeft(), locals, env);
+            return Type.BOOL;
+        } else if (e instanceof Expression.isCons) {
+            infer(((Expression.isCons) e).getLeft(), locals, env);
+            return Type.BOOL;
+        } else if (e instanceof Expression.Car) {
+            infer(((Expression.Car) e).getLeft(), locals, env);
+            return Type.ANY;
+        } else if (e instanceof Expression.Cdr) {
+            infer(((Expression.Cdr) e).getLeft(), locals, env);
+            return Type.ANY;
+        } else if (e instanceof Expression.Let) {
+            // Only the bound expression: the result does not depend on the body in a way worth tracking.
+            infer(((Expression.Let) e).getLeft(), locals, env);
+            return Type.ANY;
+        } else if (e instanceof Expression.Function) {
+            return call((Expression.Function) e, locals, env);
+        } else if (e instanceof Expression.Match) {
+            Expression.Match m = (Expression.Match) e;
+            infer(m.getScrutinee(), locals, env);
+            Type result = Type.NONE;
+            for (int i = 0; i < m.getBodies().size(); i++) {
+                Map<String, Type> clauseLocals = new HashMap<>(locals);
+                for (String name : patternVariables(m.getPatterns().get(i), new ArrayList<>())) {
+                    clauseLocals.put(name, Type.ANY);
+                }
+                result = result.join(infer(m.getBodies().get(i), clauseLocals, env));
+            }
+            // No clause matching is an error, so NONE is right when there are no clauses.
+            return result;
+        } else if (e instanceof Expression.LazyCons) {
+            infer(((Expression.LazyCons) e).getLeft(), locals, env);
+            return Type.LIST;
+        } else if (e instanceof Expression.VectorLength || e instanceof Expression.MapSize) {
+            return Type.INT;
+        } else if (e instanceof Expression.MapContains) {
+            return Type.BOOL;
+        } else if (e instanceof Expression.ListToVector || e instanceof Expression.VectorToList) {
+            return e instanceof Expression.VectorToList ? Type.LIST : Type.ANY;
+        }
+        // Everything else (symbols, structs, thunks, vectors, maps) is not tracked. Their
+        // subexpressions are left unmarked, which is always safe.
+        return Type.ANY;
+    }
+
+    private Type arithmetic(Expression e, String operator, Expression left, Expression right,
+                            Map<String, Type> locals, Interpreter.DynamicEnvironment env) {
+        Type t1 = infer(left, locals, env);
+        Type t2 = infer(right, locals, env);
+        e.setTypeChecked(t1 == Type.INT && t2 == Type.INT);
+        if (reporting && (isNeverInt(t1) || isNeverInt(t2))) {
+            errors.add(new TypeError(operator + " expects integers but got " + (isNeverInt(t1) ? t1 : t2), e.getSpan()));
+        }
+        return Type.INT;
+    }
+
+    private static boolean isNeverInt(Type t) {
+        return t == Type.BOOL || t == Type.LIST;
+    }
+
+    private Type call(Expression.Function call, Map<String, Type> locals, Interpreter.DynamicEnvironment env) {
+        List<Type> argTypes = new ArrayList<>();
+        for (Expression arg : call.getExpressions()) {
+            argTypes.add(infer(arg, locals, env));
+        }
+        String name = call.getString();
+        if (locals.containsKey(name)) {
+            // A parameter or local variable shadows the function: calling it is an error.
+            return Type.ANY;
+        }
+        Interpreter.DynamicEnvironment.Entry entry = env.getMap().get(name);
+        if (entry instanceof Interpreter.DynamicEnvironment.Entry.FunctionEntry) {
+            Interpreter.DynamicEnvironment.Entry.FunctionEntry function = (Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry;
+            if (function.getFunctionBinding().getArgnames().size() != call.getExpressions().size()) {
+                return Type.ANY;
+            }
+            // Errors inside the callee belong to its own definition.
+            boolean saved = reporting;
+            reporting = false;
+            try {
+                return returnType(function);
+            } finally {
+                reporting = saved;
+            }
+        } else if (entry == null && name.equals("length")) {
+            return Type.INT;
+        } else if (entry == null && argTypes.size() == 2 && name.equals("append")) {
+            // When the first list is nil, append returns the second argument as it is, list or not.
+            return Type.LIST.join(argTypes.get(1));
+        } else if (entry == null && (name.equals("reverse") || name.equals("map") || name.equals("filter"))) {
+            return Type.LIST;
+        }
+        return Type.ANY;
+    }
+
+    private static List<String> patternVariables(Pattern p, List<String> names) {
+        if (p instanceof Pattern.Variable) {
+            names.add(((Pattern.Variable) p).getVarname());
+        } else if (p instanceof Pattern.Cons) {
+            patternVariables(((Pattern.Cons) p).getLeft(), names);
+            patternVariables(((Pattern.Cons) p).getRight(), names);
+        } else if (p instanceof Pattern.Struct) {
+            for (Pattern field : ((Pattern.Struct) p).getFields()) {
+                patternVariables(field, names);
+            }
+        }
+        return names;
+    }
+}
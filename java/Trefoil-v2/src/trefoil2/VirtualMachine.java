@@ -0,0 +1,296 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs Bytecode.
+ *
+ * One switch over the opcode per instruction, on an explicit operand stack: an Expression[]
+ * shared by all the frames of one run, where each frame has its parameters at the bottom of its
+ * part, followed by its temporaries. A call to a function that has bytecode too does not go
+ * through Java: its arguments, already on top of the caller's operands, become its parameters
+ * where they are, and a frame (code, pc, base) is pushed on the VM's own frame stack. So a deep
+ * recursion between compiled functions does not use the Java stack. Calls to functions without
+ * bytecode go through Interpreter.callFunction, which may come back here with a run of its own.
+ *
+ * A TAILCALL reuses the frame of the caller for the callee. The Trefoil call stack of the
+ * ExecutionContext still gets a frame for each call, as in the interpreter, so that backtraces,
+ * the Profiler and the depth limit see the same calls; those frames are popped when the frame
+ * that reused them returns.
+ */
+final class VirtualMachine {
+    private static final int INITIAL_FRAMES = 16;
+
+    private Expression[] stack;
+    private Bytecode[] codes = new Bytecode[INITIAL_FRAMES];
+    private int[] pcs = new int[INITIAL_FRAMES];
+    private int[] bases = new int[INITIAL_FRAMES];
+    // How many frames of the Trefoil call stack each VM frame has to pop when it returns.
+    private int[] contextFrames = new int[INITIAL_FRAMES];
+    private int frameCount;
+
+    private VirtualMachine(int stackSize) {
+        stack = new Expression[Math.max(stackSize, 16)];
+    }
+
+    /**
+     * Runs code on already evaluated arguments. The caller has pushed the call frame.
+     */
+    static Expression run(Bytecode code, List<Expression> args, ExecutionContext context) {
+        VirtualMachine vm = new VirtualMachine(code.getMaxStack() * 4);
+        args.toArray(vm.stack);
+        vm.printParameters(code, 0, context);
+        vm.pushFrame(code, 0, 1);
+        try {
+            return vm.execute(args.size(), context);
+        } finally {
+            // The frames of the calls that were running when an error was thrown. The frame of the
+            // outermost call belongs to the caller.
+            for (int f = vm.frameCount - 1; f >= 0; f--) {
+                for (int i = f == 0 ? 1 : 0; i < vm.contextFrames[f]; i++) {
+                    context.popFrame();
+                }
+            }
+        }
+    }
+
+    private Expression execute(int sp, ExecutionContext context) {
+        Bytecode bytecode = codes[frameCount - 1];
+        int[] code = bytecode.getCode();
+        Object[] constants = bytecode.getConstants();
+        int base = bases[frameCount - 1];
+        int pc = 0;
+        Expression[] stack = this.stack;
+        while (true) {
+            switch (code[pc]) {
+                case Bytecode.CONST:
+                    context.step(code[pc + 2]);
+                    stack[sp++] = (Expression) constants[code[pc + 1]];
+                    pc += 3;
+                    break;
+                case Bytecode.LOAD:
+                    context.step(code[pc + 2]);
+                    stack[sp++] = stack[base + code[pc + 1]];
+                    pc += 3;
+                    break;
+                case Bytecode.NIL:
+                    context.step(code[pc + 1]);
+                    stack[sp++] = new Expression.Nil();
+                    pc += 2;
+                    break;
+                case Bytecode.STEP:
+                    context.step(code[pc + 1]);
+                    pc += 2;
+                    break;
+                case Bytecode.ADD:
+                case Bytecode.SUB:
+                case Bytecode.MUL:
+                case Bytecode.REM:
+                case Bytecode.EQ: {
+                    Expression v1 = stack[sp - 2];
+                    Expression v2 = stack[sp - 1];
+                    stack[--sp] = null;
+                    stack[sp - 1] = arithmetic(code[pc], code[pc + 1] != 0, v1, v2, context);
+                    pc += 2;
+                    break;
+                }
+                case Bytecode.CONS: {
+                    Expression v2 = stack[--sp];
+                    stack[sp] = null;
+                    context.allocate(1);
+                    stack[sp - 1] = Expression.cons(stack[sp - 1], v2);
+                    pc++;
+                    break;
+                }
+                case Bytecode.CAR:
+                    stack[sp - 1] = ((Expression.Cons) Interpreter.force(stack[sp - 1], context)).getLeft();
+                    pc++;
+                    break;
+                case Bytecode.CDR: {
+                    Expression.Cons c = (Expression.Cons) Interpreter.force(stack[sp - 1], context);
+                    stack[sp - 1] = Interpreter.force(c.getRight(), context);
+                    pc++;
+                    break;
+                }
+                case Bytecode.IS_NIL:
+                    stack[sp - 1] = Expression.ofBoolean(Interpreter.force(stack[sp - 1], context) instanceof Expression.Nil);
+                    pc++;
+                    break;
+                case Bytecode.IS_CONS:
+                    stack[sp - 1] = Expression.ofBoolean(Interpreter.force(stack[sp - 1], context) instanceof Expression.Cons);
+                    pc++;
+                    break;
+                case Bytecode.FORCE:
+                    stack[sp - 1] = Interpreter.force(stack[sp - 1], context);
+                    pc++;
+                    break;
+                case Bytecode.JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case Bytecode.JUMP_IF_FALSE: {
+                    Expression v = stack[--sp];
+                    stack[sp] = null;
+                    // Like the interpreter, anything but false counts as true.
+                    boolean isFalse = v instanceof Expression.BooleanLiteral && !((Expression.BooleanLiteral) v).isData();
+                    pc = isFalse ? code[pc + 1] : pc + 2;
+                    break;
+                }
+                case Bytecode.CALL:
+                case Bytecode.TAILCALL: {
+                    Interpreter.DynamicEnvironment.Entry.FunctionEntry target =
+                            (Interpreter.DynamicEnvironment.Entry.FunctionEntry) constants[code[pc + 1]];
+                    int argc = code[pc + 2];
+                    long site = (Long) constants[code[pc + 3]];
+                    Bytecode callee = target.getProfile().getBytecode();
+                    if (callee == null) {
+                        // Interpreted, or compiled to closures: a call through Java.
+                        List<Expression> args = new ArrayList<>(Arrays.asList(stack).subList(sp - argc, sp));
+                        Arrays.fill(stack, sp - argc, sp, null);
+                        sp -= argc;
+                        stack[sp++] = Interpreter.callFunction(target, args, site, context);
+                        pc += 4;
+                        break;
+                    }
+                    context.allocate(argc);
+                    context.pushFrame(callee.getName(), site);
+                    if (Metrics.isEnabled()) {
+                        Metrics.functionCalled(context.getDepth());
+                    }
+                    if (code[pc] == Bytecode.TAILCALL) {
+                        // The arguments replace the parameters and temporaries of this frame.
+                        System.arraycopy(stack, sp - argc, stack, base, argc);
+                        Arrays.fill(stack, base + argc, sp, null);
+                        sp = base + argc;
+                        contextFrames[frameCount - 1]++;
+                        codes[frameCount - 1] = callee;
+                    } else {
+                        pcs[frameCount - 1] = pc + 4;
+                        base = sp - argc;
+                        pushFrame(callee, base, 1);
+                    }
+                    printParameters(callee, base, context);
+                    stack = ensureStack(base + callee.getMaxStack());
+                    bytecode = callee;
+                    code = bytecode.getCode();
+                    constants = bytecode.getConstants();
+                    pc = 0;
+                    break;
+                }
+                case Bytecode.STRUCT: {
+                    int argc = code[pc + 2];
+                    Expression[] slots = Arrays.copyOfRange(stack, sp - argc, sp);
+                    Arrays.fill(stack, sp - argc, sp, null);
+                    sp -= argc;
+                    context.allocate(1);
+                    stack[sp++] = new Expression.StructValue((StructType) constants[code[pc + 1]], slots);
+                    pc += 3;
+                    break;
+                }
+                case Bytecode.NATIVE: {
+                    int argc = code[pc + 2];
+                    List<Expression> args = new ArrayList<>(Arrays.asList(stack).subList(sp - argc, sp));
+                    Arrays.fill(stack, sp - argc, sp, null);
+                    sp -= argc;
+                    stack[sp++] = NativeLists.apply((String) constants[code[pc + 1]], args, context);
+                    pc += 3;
+                    break;
+                }
+                case Bytecode.PRINT_LET:
+                    context.getOut().println(constants[code[pc + 1]] + " = " + stack[sp - 1]);
+                    pc += 2;
+                    break;
+                case Bytecode.INTERPRET:
+                    stack[sp] = Interpreter.interpretExpression((Expression) constants[code[pc + 1]],
+                            bytecode.environment(stack, base), context);
+                    sp++;
+                    pc += 2;
+                    break;
+                case Bytecode.ERROR:
+                    throw new Trefoil2.TrefoilError.RuntimeError((String) constants[code[pc + 1]]);
+                case Bytecode.RETURN: {
+                    Expression result = stack[--sp];
+                    Arrays.fill(stack, base, sp, null);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        // The outermost call's own frame is popped by whoever pushed it.
+                        for (int i = 1; i < contextFrames[0]; i++) {
+                            context.popFrame();
+                        }
+                        return result;
+                    }
+                    for (int i = 0; i < contextFrames[frameCount]; i++) {
+                        context.popFrame();
+                    }
+                    sp = base;
+                    stack[sp++] = result;
+                    bytecode = codes[frameCount - 1];
+                    code = bytecode.getCode();
+                    constants = bytecode.getConstants();
+                    base = bases[frameCount - 1];
+                    pc = pcs[frameCount - 1];
+                    break;
+                }
+                default:
+                    throw new Trefoil2.InternalInterpreterError("\"impossible\" opcode " + code[pc]);
+            }
+        }
+    }
+
+    private static Expression arithmetic(int op, boolean checked, Expression v1, Expression v2, ExecutionContext context) {
+        if (!checked && !(v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral)) {
+            throw new Trefoil2.TrefoilError.RuntimeError("Both of expression should be type of integer literals");
+        }
+        int a = ((Expression.IntegerLiteral) v1).getData();
+        int b = ((Expression.IntegerLiteral) v2).getData();
+        switch (op) {
+            case Bytecode.ADD:
+                context.allocate(1);
+                return Expression.ofInt(a + b);
+            case Bytecode.SUB:
+                context.allocate(1);
+                return Expression.ofInt(a - b);
+            case Bytecode.MUL:
+                context.allocate(1);
+                return Expression.ofInt(a * b);
+            case Bytecode.REM:
+                if (b == 0) {
+                    throw new Trefoil2.TrefoilError.RuntimeError(v1 + " can't be divided by 0");
+                }
+                context.allocate(1);
+                return Expression.ofInt(a % b);
+            default:
+                return Expression.ofBoolean(a == b);
+        }
+    }
+
+    private void printParameters(Bytecode code, int base, ExecutionContext context) {
+        String[] parameters = code.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            context.getOut().println(parameters[i] + " = " + stack[base + i]);
+        }
+    }
+
+    private void pushFrame(Bytecode code, int base, int contextFrameCount) {
+        if (frameCount == codes.length) {
+            int n = frameCount * 2;
+            codes = Arrays.copyOf(codes, n);
+            pcs = Arrays.copyOf(pcs, n);
+            bases = Arrays.copyOf(bases, n);
+            contextFrames = Arrays.copyOf(contextFrames, n);
+        }
+        codes[frameCount] = code;
+        bases[frameCount] = base;
+        contextFrames[frameCount] = contextFrameCount;
+        frameCount++;
+        ensureStack(base + code.getMaxStack());
+    }
+
+    private Expression[] ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+        return stack;
+    }
+}
@@ -0,0 +1,301 @@
+package trefoil2;
+
+import lombok.Data;
+import parser.PSTParser;
+import parser.SourceSpan;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs successive versions of a program, re-evaluating only the bindings that changed or that
+ * depend on something that changed, for --watch.
+ *
+ * Each run parses the whole program again. A binding is reused from the previous run when it is
+ * structurally equal to a binding of that run, and every name it reads (its dependency edges)
+ * is still bound to the very entry it was bound to then. Reusing a binding replays its output
+ * and binds the entries it defined last time. Every other binding is evaluated as usual, so its
+ * new entries invalidate the bindings that read them in turn. A variable binding, edited or not,
+ * whose new value equals the value the same definition (the n'th of that name) had last time
+ * keeps the old entry, so that its dependents can still be reused.
+ *
+ * The output of a run is the output of a cold run of the same version. That is why some
+ * bindings are never reused:
+ * - bindings that failed, or reported type errors, since their output mentions source positions,
+ * - imports, which are cheap to repeat and whose module may have changed,
+ * - bindings whose values contain thunks, since forcing one may print, but only the first time,
+ * - function bindings that moved or whose text changed: their bodies run later, and report the
+ *   positions of their calls in backtraces.
+ */
+public class WatchSession {
+    // What evaluating one binding did.
+    @Data
+    private static class Result {
+        private final Binding binding;
+        // The source text of the binding, for function bindings.
+        private final String text;
+        // The entries of the names the binding read, as they were when it ran (null if unbound).
+        private final Map<String, Interpreter.DynamicEnvironment.Entry> reads;
+        // The entries it bound, in the order it bound them.
+        private final LinkedHashMap<String, Interpreter.DynamicEnvironment.Entry> writes;
+        private final byte[] output;
+        private final byte[] errorOutput;
+        private final boolean reusable;
+    }
+
+    private final Interpreter.DynamicEnvironment initial;
+    private final String sourceName;
+    private final boolean typecheck;
+    private List<Result> previous = Collections.emptyList();
+    private int evaluated;
+    private int reused;
+
+    /**
+     * Creates a session whose runs start from initial. sourceName is used in error messages.
+     */
+    public WatchSession(Interpreter.DynamicEnvironment initial, String sourceName, boolean typecheck) {
+        this.initial = initial;
+        this.sourceName = sourceName;
+        this.typecheck = typecheck;
+    }
+
+    /**
+     * Returns how many bindings the last run evaluated.
+     */
+    public int getEvaluated() {
+        return evaluated;
+    }
+
+    /**
+     * Returns how many bindings the last run reused from the run before.
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * Runs source, the new version of the program, printing what a cold run would print to out
+     * and err, and returns the final environment.
+     */
+    public Interpreter.DynamicEnvironment run(String source, PrintStream out, PrintStream err) {
+        Map<Binding, Deque<Result>> candidates = new HashMap<>();
+        for (Result r : previous) {
+            candidates.computeIfAbsent(r.getBinding(), k -> new ArrayDeque<>()).add(r);
+        }
+        // What each definition of each name bound last time, in order.
+        Map<String, List<Interpreter.DynamicEnvironment.Entry>> previousWrites = new HashMap<>();
+        for (Result r : previous) {
+            r.getWrites().forEach((name, entry) -> previousWrites.computeIfAbsent(name, k -> new ArrayList<>()).add(entry));
+        }
+        Map<String, Integer> writeCounts = new HashMap<>();
+        int[] lineStarts = lineStarts(source);
+        List<Result> results = new ArrayList<>();
+        evaluated = 0;
+        reused = 0;
+        ExecutionContext context = ExecutionContext.current();
+        Interpreter.DynamicEnvironment env = initial;
+        PSTParser parser = PSTParser.ofReader(new StringReader(source));
+        while (true) {
+            Binding b;
+            try {
+                ParenthesizedSymbolTree pst = parser.parse();
+                if (pst == null) {
+                    break;
+                }
+                b = Binding.parsePST(pst);
+            } catch (Trefoil2.TrefoilError e) {
+                Trefoil2.reportError(e, sourceName, out);
+                continue;
+            }
+            String text = b instanceof Binding.FunctionBinding ? text(source, lineStarts, b.getSpan()) : null;
+            Deque<Result> sameBinding = candidates.get(b);
+            Result old = sameBinding == null ? null : sameBinding.poll();
+            if (old != null && canReuse(old, b, text, env)) {
+                out.write(old.getOutput(), 0, old.getOutput().length);
+                err.write(old.getErrorOutput(), 0, old.getErrorOutput().length);
+                env = env.extendEntries(old.getWrites());
+                old.getWrites().keySet().forEach(name -> writeCounts.merge(name, 1, Integer::sum));
+                results.add(old);
+                reused++;
+                continue;
+            }
+            Map<String, Interpreter.DynamicEnvironment.Entry> reads = new HashMap<>();
+            for (String name : reads(b)) {
+                reads.put(name, env.getMap().get(name));
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+            PrintStream bindingOut = new PrintStream(output, true);
+            PrintStream bindingErr = new PrintStream(errorOutput, true);
+            PrintStream savedOut = context.getOut();
+            context.setOut(bindingOut);
+            boolean reusable = !(b instanceof Binding.ImportBinding);
+            Interpreter.DynamicEnvironment before = env;
+            try {
+                if (typecheck) {
+                    reusable &= Trefoil2.reportTypeErrors(b, env, sourceName, bindingErr) == 0;
+                }
+                env = Interpreter.interpretBinding(b, env);
+            } catch (Trefoil2.TrefoilError e) {
+                Trefoil2.reportError(e, sourceName, bindingOut);
+                reusable = false;
+            } finally {
+                context.setOut(savedOut);
+            }
+            evaluated++;
+            LinkedHashMap<String, Interpreter.DynamicEnvironment.Entry> writes = new LinkedHashMap<>();
+            for (String name : writes(b)) {
+                Interpreter.DynamicEnvironment.Entry entry = env.getMap().get(name);
+                if (entry != before.getMap().get(name)) {
+                    writes.put(name, entry);
+                }
+            }
+            for (Interpreter.DynamicEnvironment.Entry entry : writes.values()) {
+                if (entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry
+                        && containsThunk(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue())) {
+                    reusable = false;
+                }
+            }
+            LinkedHashMap<String, Interpreter.DynamicEnvironment.Entry> same = new LinkedHashMap<>();
+            for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> write : writes.entrySet()) {
+                int n = writeCounts.merge(write.getKey(), 1, Integer::sum) - 1;
+                List<Interpreter.DynamicEnvironment.Entry> last = previousWrites.get(write.getKey());
+                Interpreter.DynamicEnvironment.Entry lastEntry = last == null || n >= last.size() ? null : last.get(n);
+                // Only variable entries are compared: comparing function entries would compare their environments.
+                if (write.getValue() instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry
+                        && lastEntry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry
+                        && write.getValue().equals(lastEntry)) {
+                    same.put(write.getKey(), lastEntry);
+                }
+            }
+            if (reusable && !same.isEmpty() && same.size() == writes.size()) {
+                // Same values as last time: keep the old entries, so that what depends on them can be reused.
+                writes = same;
+                env = before.extendEntries(writes);
+            }
+            byte[] bytes = output.toByteArray();
+            byte[] errorBytes = errorOutput.toByteArray();
+            out.write(bytes, 0, bytes.length);
+            err.write(errorBytes, 0, errorBytes.length);
+            results.add(new Result(b, text, reads, writes, bytes, errorBytes, reusable));
+        }
+        out.flush();
+        err.flush();
+        previous = results;
+        return env;
+    }
+
+    private static boolean canReuse(Result old, Binding b, String text, Interpreter.DynamicEnvironment env) {
+        if (!old.isReusable() || (b instanceof Binding.FunctionBinding && (text == null || !text.equals(old.getText())))) {
+            return false;
+        }
+        for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> read : old.getReads().entrySet()) {
+            if (env.getMap().get(read.getKey()) != read.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The names whose entries b can observe. A function reads what its closure captures.
+    private static Set<String> reads(Binding b) {
+        if (b instanceof Binding.VariableBinding) {
+            return FreeVariables.of(((Binding.VariableBinding) b).getVardef());
+        } else if (b instanceof Binding.TopLevelExpression) {
+            return FreeVariables.of(((Binding.TopLevelExpression) b).getExpression());
+        } else if (b instanceof Binding.TestBinding) {
+            return FreeVariables.of(((Binding.TestBinding) b).getExpression());
+        } else if (b instanceof Binding.FunctionBinding) {
+            Binding.FunctionBinding fb = (Binding.FunctionBinding) b;
+            Set<String> names = new HashSet<>(fb.getFreeNames());
+            names.remove(fb.getFunname());
+            return names;
+        }
+        return Collections.emptySet();
+    }
+
+    // The names b binds, in the order it binds them.
+    private static List<String> writes(Binding b) {
+        List<String> names = new ArrayList<>();
+        if (b instanceof Binding.VariableBinding) {
+            names.add(((Binding.VariableBinding) b).getVarname());
+        } else if (b instanceof Binding.FunctionBinding) {
+            names.add(((Binding.FunctionBinding) b).getFunname());
+        } else if (b instanceof Binding.StructBinding) {
+            Binding.StructBinding sb = (Binding.StructBinding) b;
+            names.add(sb.getName());
+            names.add(sb.getName() + "?");
+            for (String field : sb.getFieldNames()) {
+                names.add(sb.getName() + "-" + field);
+            }
+        }
+        // Imports bind whatever their module exports, but they are never reused.
+        return names;
+    }
+
+    // Whether a thunk can be reached from v. Walks with its own stack, since lists can be long.
+    private static boolean containsThunk(Expression v) {
+        Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(v);
+        while (!stack.isEmpty()) {
+            Expression e = stack.pop();
+            if (e instanceof Expression.Thunk) {
+                return true;
+            } else if (e instanceof Expression.Cons) {
+                stack.push(((Expression.Cons) e).getRight());
+                stack.push(((Expression.Cons) e).getLeft());
+            } else if (e instanceof Expression.StructValue) {
+                for (Expression slot : ((Expression.StructValue) e).getSlots()) {
+                    stack.push(slot);
+                }
+            } else if (e instanceof Expression.VectorValue) {
+                for (Expression element : ((Expression.VectorValue) e).getElements()) {
+                    stack.push(element);
+                }
+            } else if (e instanceof Expression.MapValue) {
+                ((Expression.MapValue) e).getEntries().forEach((key, value) -> {
+                    stack.push(key);
+                    stack.push(value);
+                });
+            }
+        }
+        return false;
+    }
+
+    private static int[] lineStarts(String source) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                starts.add(i + 1);
+            }
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // The source text covered by span, with its position, or null if span cannot be trusted.
+    private static String text(String source, int[] lineStarts, long span) {
+        int startLine = SourceSpan.startLine(span);
+        int endLine = SourceSpan.endLine(span);
+        if (span == SourceSpan.UNKNOWN || endLine > lineStarts.length) {
+            return null;
+        }
+        int start = lineStarts[startLine - 1] + SourceSpan.startColumn(span);
+        int end = lineStarts[endLine - 1] + SourceSpan.endColumn(span);
+        if (start > end || end > source.length()) {
+            return null;
+        }
+        return SourceSpan.toString(span) + " " + source.substring(start, end);
+    }
+}
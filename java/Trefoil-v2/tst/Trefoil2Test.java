@@ -1,10 +1,32 @@
 import org.junit.Test;
 import trefoil2.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 public class Trefoil2Test {
     // ---------------------------------------------------------------------------------------------
@@ -766,4 +788,1190 @@ public class Trefoil2Test {
     public void Divide5() {
         Interpreter.interpretExpression(Expression.parseString("(rem 4 0)"));
     }
+
+    @Test
+    public void hashConsingSharesEqualLists() {
+        HashConsing.setEnabled(true);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(countdownBinding));
+            Expression l1 = Interpreter.interpretExpression(Expression.parseString("(countdown 5)"), env);
+            Expression l2 = Interpreter.interpretExpression(Expression.parseString("(countdown 5)"), env);
+            assertTrue(l1 == l2);
+            assertTrue(Expression.ofInt(7) == Expression.ofInt(7));
+            assertFalse(l1.equals(Interpreter.interpretExpression(Expression.parseString("(countdown 4)"), env)));
+        } finally {
+            HashConsing.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void hashConsingMixesWithPlainValues() {
+        Expression plain = Expression.cons(Expression.ofInt(1), Expression.cons(Expression.ofInt(2), Expression.nil()));
+        HashConsing.setEnabled(true);
+        try {
+            Expression interned = Expression.cons(Expression.ofInt(1), Expression.cons(Expression.ofInt(2), Expression.nil()));
+            assertEquals(plain, interned);
+            assertEquals(plain.hashCode(), interned.hashCode());
+        } finally {
+            HashConsing.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void callStackUnwindsOnError() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (f x) (car x))"));
+        try {
+            Interpreter.interpretBinding(Binding.parseString("(define y (f z))"), env);
+        } catch (Trefoil2.TrefoilError e) {
+            // expected: z is unbound
+        }
+        assertEquals(0, ExecutionContext.current().getDepth());
+    }
+
+    @Test
+    public void metricsCountCallsAndErrors() {
+        // per-node counts are only kept by the interpreter
+        boolean tiering = Tiering.isEnabled();
+        Tiering.setEnabled(false);
+        try {
+            Metrics.reset();
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(countdownBinding));
+            Interpreter.interpretBinding(Binding.parseString("(define x (countdown 3))"), env);
+            try {
+                Interpreter.interpretExpression(Expression.parseString("(+ 1 true)"));
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+            Metrics.Snapshot snapshot = Metrics.snapshot();
+            assertEquals(4, snapshot.getFunctionCalls());
+            assertEquals(5, snapshot.getMaxRecursionDepth());  // the binding frame plus four nested calls
+            assertEquals(Long.valueOf(1), snapshot.getBindingsProcessed().get("VariableBinding"));
+            assertEquals(Long.valueOf(1), snapshot.getErrors().get("RuntimeError"));
+            assertTrue(snapshot.getExpressionsEvaluated().get("Function") >= 4);
+        } finally {
+            Tiering.setEnabled(tiering);
+        }
+    }
+
+    @Test
+    public void inlineCachesFollowRedefinitions() {
+        // inline caches belong to the interpreter: compiled code resolves its calls once
+        boolean tiering = Tiering.isEnabled();
+        Tiering.setEnabled(false);
+        try {
+            Metrics.reset();
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(countdownBinding));
+            Expression call = Expression.parseString("(countdown 3)");
+            Interpreter.interpretExpression(call, env);
+            // the call above misses once, and so does the recursive call site in the body, the first time only
+            Metrics.Snapshot snapshot = Metrics.snapshot();
+            assertEquals(2, snapshot.getInlineCacheMisses());
+            assertEquals(2, snapshot.getInlineCacheHits());
+
+            Interpreter.interpretExpression(call, env);
+            assertEquals(2, Metrics.snapshot().getInlineCacheMisses());
+
+            // struct constructors and built-ins have no cache to fill, and are not counted
+            long hits = Metrics.snapshot().getInlineCacheHits();
+            Interpreter.DynamicEnvironment structs = Interpreter.interpretBinding(Binding.parseString("(struct point x y)"), env);
+            Interpreter.interpretExpression(Expression.parseString("(point 1 (length (cons 1 nil)))"), structs);
+            assertEquals(2, Metrics.snapshot().getInlineCacheMisses());
+            assertEquals(hits, Metrics.snapshot().getInlineCacheHits());
+
+            // the same call site, in an environment where the name means something else
+            Interpreter.DynamicEnvironment redefined = Interpreter.interpretBinding(Binding.parseString("(define (countdown n) 42)"), env);
+            assertEquals(Expression.ofInt(42), Interpreter.interpretExpression(call, redefined));
+            assertEquals(Interpreter.interpretExpression(Expression.parseString("(countdown 3)"), env),
+                    Interpreter.interpretExpression(call, env));
+            Interpreter.DynamicEnvironment variable = Interpreter.interpretBinding(Binding.parseString("(define countdown 1)"));
+            try {
+                Interpreter.interpretExpression(call, variable);
+                fail("expected an error when calling a variable");
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+            Interpreter.DynamicEnvironment wrongArity = Interpreter.interpretBinding(Binding.parseString("(define (countdown) nil)"));
+            try {
+                Interpreter.interpretExpression(call, wrongArity);
+                fail("expected an arity error");
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+        } finally {
+            Tiering.setEnabled(tiering);
+        }
+    }
+
+    @Test
+    public void limitsStopRunawayRecursion() {
+        String loop = "(define (loop n) (loop (+ n 1)))";
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(loop));
+        ExecutionContext context = ExecutionContext.current();
+        try {
+            context.setLimits(new EvaluationLimits(Long.MAX_VALUE, Long.MAX_VALUE, 50, Long.MAX_VALUE));
+            try {
+                Interpreter.interpretBinding(Binding.parseString("(define x (loop 0))"), env);
+                fail("expected the depth limit to stop the loop");
+            } catch (Trefoil2.TrefoilError.LimitExceededError e) {
+                assertEquals(0, context.getDepth());
+            }
+
+            context.setLimits(new EvaluationLimits(2000, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE));
+            Interpreter.interpretBinding(Binding.parseString("(define y (countdown 3))"),
+                    Interpreter.interpretBinding(Binding.parseString(countdownBinding), env));
+            try {
+                Interpreter.interpretBinding(Binding.parseString("(define x (loop 0))"), env);
+                fail("expected the step limit to stop the loop");
+            } catch (Trefoil2.TrefoilError.LimitExceededError e) {
+                assertEquals(2001, context.getSteps());
+            }
+        } finally {
+            context.setLimits(EvaluationLimits.UNLIMITED);
+        }
+    }
+
+    @Test
+    public void engineRunsIsolatedSessionsConcurrently() throws Exception {
+        String sumBinding = "(define (sum l) (if (nil? l) 0 (+ (car l) (sum (cdr l)))))";
+        try (Engine engine = Engine.create(countdownBinding + sumBinding)) {
+            List<CompletableFuture<Engine.Result>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                results.add(engine.submit("(define x (sum (countdown " + (i % 20) + ")))\n(test (= x " + (i % 20) * (i % 20 + 1) / 2 + "))"));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                Engine.Result result = results.get(i).get();
+                assertTrue(result.getErrors().isEmpty());
+                assertEquals(Expression.ofInt((i % 20) * (i % 20 + 1) / 2), result.getEnvironment().getVariable("x"));
+                assertTrue(result.getOutput().endsWith("x = " + (i % 20) * (i % 20 + 1) / 2 + System.lineSeparator()));
+            }
+            try {
+                engine.getPrelude().getVariable("x");
+                fail("sessions must not leak definitions into the prelude");
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void environmentImageRoundTrip() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(countdownBinding));
+        env = Interpreter.interpretBinding(Binding.parseString("(define l (countdown 3))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define m (cons l l))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define b (= 1 2))"), env);
+
+        Interpreter.DynamicEnvironment loaded = roundTrip(env);
+
+        assertEquals(env.getVariable("l"), loaded.getVariable("l"));
+        assertEquals(env.getVariable("b"), loaded.getVariable("b"));
+        Expression.Cons m = (Expression.Cons) loaded.getVariable("m");
+        assertTrue(m.getLeft() == m.getRight());
+        assertEquals(env.getFunction("countdown").getFunctionBinding(),
+                loaded.getFunction("countdown").getFunctionBinding());
+        assertEquals(Expression.cons(Expression.ofInt(2), Expression.cons(Expression.ofInt(1), Expression.nil())),
+                Interpreter.interpretExpression(Expression.parseString("(countdown 2)"), loaded));
+    }
+
+    // Saves env to an image and loads it back.
+    private static Interpreter.DynamicEnvironment roundTrip(Interpreter.DynamicEnvironment env) throws IOException {
+        Path file = Files.createTempFile("trefoil", ".img");
+        try {
+            EnvironmentImage.save(env, file);
+            return EnvironmentImage.load(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void environmentImageRejectsTruncatedFiles() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(countdownBinding));
+        env = Interpreter.interpretBinding(Binding.parseString("(define l (countdown 3))"), env);
+        Path file = Files.createTempFile("trefoil", ".img");
+        try {
+            EnvironmentImage.save(env, file);
+            byte[] image = Files.readAllBytes(file);
+            for (int length = 0; length < image.length; length++) {
+                Files.write(file, Arrays.copyOf(image, length));
+                try {
+                    EnvironmentImage.load(file);
+                    fail("loaded an image cut at " + length + " of " + image.length + " bytes");
+                } catch (Trefoil2.InternalInterpreterError e) {
+                    // expected
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRunnerUsesEnvironmentAtEachTest() {
+        String program = "(define x 1)\n" +
+                "(test (= x 1))\n" +
+                "(define x 2)\n" +
+                "(test (= x 1))\n" +
+                "(test (= x 2))\n";
+        TestRunner.Report report = new TestRunner(4).run(
+                parser.PSTParser.parseString(program), Interpreter.DynamicEnvironment.empty(), "t.trefoil");
+        assertEquals(3, report.getResults().size());
+        assertEquals(2, report.getPassed());
+        assertEquals("t.trefoil:4:1", report.getFailures().get(0).getLocation());
+    }
+
+    @Test
+    public void testRunnerReportsBindingErrorsWithTheirLocation() {
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        context.setOut(new PrintStream(out, true));
+        try {
+            new TestRunner(1).run(parser.PSTParser.parseString("(define x 1)\n(define y (+ x true))\n(test (= x 1))\n"),
+                    Interpreter.DynamicEnvironment.empty(), "t.trefoil");
+        } finally {
+            context.setOut(savedOut);
+        }
+        assertTrue(out.toString(), out.toString().contains("Both of expression should be type of integer literals\n  at define:y (t.trefoil:2:1)"));
+    }
+
+    @Test
+    public void matchPicksFirstMatchingClause() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(
+                "(define (classify v) (match v " +
+                        "(0 'zero) (true 'yes) (false 'no) (nil 'empty) ('red 'color) " +
+                        "((cons 1 _) 'starts-with-one) ((cons x nil) x) ((cons _ (cons y _)) y) (_ 'other)))"));
+        String[][] cases = {
+                {"0", "'zero"}, {"true", "'yes"}, {"false", "'no"}, {"nil", "'empty"}, {"'red", "'color"},
+                {"(cons 1 nil)", "'starts-with-one"}, {"(cons 5 nil)", "5"}, {"(cons 5 (cons 6 nil))", "6"},
+                {"7", "'other"}, {"'blue", "'other"},
+        };
+        for (String[] c : cases) {
+            assertEquals(c[0], Expression.parseString(c[1]),
+                    Interpreter.interpretExpression(Expression.parseString("(classify " + c[0] + ")"), env));
+        }
+    }
+
+    @Test
+    public void matchTestsEachPositionOnce() {
+        Expression.Match m = (Expression.Match) Expression.parseString(
+                "(match v ((cons 1 (cons 2 nil)) 1) ((cons 1 (cons 3 nil)) 2) ((cons 1 _) 3) (_ 4))");
+        DecisionTree tree = m.getDecisionTree();
+        // One register per position: v, its car and cdr, and the car and cdr of the cdr.
+        assertEquals(5, tree.getRegisterCount());
+        // v, car, cdr and cadr are each tested by a single switch. cddr is tested once under each
+        // outcome of cadr, so no path through the tree looks at a position twice.
+        assertEquals(6, tree.getSwitchCount());
+
+        Expression[] registers = new Expression[tree.getRegisterCount()];
+        assertEquals(0, tree.match(Expression.parseString("(cons 1 (cons 2 nil))"), registers).getClause());
+        assertEquals(1, tree.match(Expression.parseString("(cons 1 (cons 3 nil))"), registers).getClause());
+        assertEquals(2, tree.match(Expression.parseString("(cons 1 (cons 3 4))"), registers).getClause());
+        assertEquals(3, tree.match(Expression.parseString("(cons 2 nil)"), registers).getClause());
+    }
+
+    @Test(expected = Trefoil2.TrefoilError.RuntimeError.class)
+    public void matchWithNoMatchingClauseFails() {
+        Interpreter.interpretExpression(Expression.parseString("(match 3 (1 1) (nil 2))"));
+    }
+
+    @Test(expected = Trefoil2.TrefoilError.AbstractSyntaxError.class)
+    public void matchPatternBindsVariableOnce() {
+        Expression.parseString("(match 3 ((cons x x) 1))");
+    }
+
+    @Test
+    public void structsHaveConstructorsPredicatesAndAccessors() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(struct point x y)"));
+        env = Interpreter.interpretBinding(Binding.parseString("(struct box v)"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define p (point 3 4))"), env);
+
+        assertEquals("(point 3 4)", env.getVariable("p").toString());
+        assertEquals(Expression.ofBoolean(true), Interpreter.interpretExpression(Expression.parseString("(point? p)"), env));
+        assertEquals(Expression.ofBoolean(false), Interpreter.interpretExpression(Expression.parseString("(box? p)"), env));
+        assertEquals(Expression.ofBoolean(false), Interpreter.interpretExpression(Expression.parseString("(point? 3)"), env));
+        assertEquals(Expression.ofInt(4), Interpreter.interpretExpression(Expression.parseString("(point-y p)"), env));
+        assertEquals(Expression.ofInt(7), Interpreter.interpretExpression(Expression.parseString(
+                "(match p ((box v) v) ((point a b) (+ a b)))"), env));
+        try {
+            Interpreter.interpretExpression(Expression.parseString("(box-v p)"), env);
+            fail("accessor applied to the wrong struct");
+        } catch (Trefoil2.TrefoilError.RuntimeError e) {
+            // expected
+        }
+        try {
+            Interpreter.interpretExpression(Expression.parseString("(point 1)"), env);
+            fail("constructor called with the wrong number of fields");
+        } catch (Trefoil2.TrefoilError.RuntimeError e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void environmentImageKeepsStructsAndMatches() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(struct pair a b)"));
+        env = Interpreter.interpretBinding(Binding.parseString(
+                "(define (swap p) (match p ((pair x 'keep) p) ((pair x y) (pair y x))))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define q (pair 1 'sym))"), env);
+
+        Interpreter.DynamicEnvironment loaded = roundTrip(env);
+        assertEquals(env.getVariable("q"), loaded.getVariable("q"));
+        assertEquals("(pair 'sym 1)",
+                Interpreter.interpretExpression(Expression.parseString("(swap q)"), loaded).toString());
+        assertEquals(Expression.ofInt(1), Interpreter.interpretExpression(Expression.parseString("(pair-a q)"), loaded));
+    }
+
+    public static String naturalsBinding = "(define (from n) (lcons n (from (+ n 1))))";
+
+    @Test
+    public void lazyConsBuildsInfiniteStreams() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(naturalsBinding));
+        env = Interpreter.interpretBinding(Binding.parseString(
+                "(define (nth s n) (if (= n 0) (car s) (nth (cdr s) (- n 1))))"), env);
+        assertEquals(Expression.ofInt(200),
+                Interpreter.interpretExpression(Expression.parseString("(nth (from 0) 200)"), env));
+        assertEquals(Expression.ofBoolean(true),
+                Interpreter.interpretExpression(Expression.parseString("(cons? (cdr (from 0)))"), env));
+        assertEquals(Expression.ofBoolean(false),
+                Interpreter.interpretExpression(Expression.parseString("(nil? (lcons 1 nil))"), env));
+        assertEquals(Expression.ofBoolean(true),
+                Interpreter.interpretExpression(Expression.parseString("(nil? (cdr (lcons 1 nil)))"), env));
+        assertEquals(Expression.ofInt(2), Interpreter.interpretExpression(Expression.parseString(
+                "(match (cdr (cdr (from 0))) ((cons x _) x))"), env));
+    }
+
+    @Test
+    public void delayedExpressionsAreEvaluatedOnce() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(countdownBinding));
+        Expression.Thunk thunk = (Expression.Thunk) Interpreter.interpretExpression(
+                Expression.parseString("(delay (countdown 100))"), env);
+        assertFalse(thunk.isForced());
+        assertEquals(Expression.ofInt(7), Interpreter.interpretExpression(Expression.parseString("(force 7)")));
+
+        // Every thread must see the very same list: a second evaluation would build a new one.
+        List<Future<Expression>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 32; i++) {
+                results.add(pool.submit(thunk::force));
+            }
+            Expression first = results.get(0).get();
+            for (Future<Expression> r : results) {
+                assertTrue(r.get() == first);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(thunk.isForced());
+    }
+
+    @Test(expected = Trefoil2.TrefoilError.RuntimeError.class)
+    public void thunkThatForcesItselfFails() {
+        // Trefoil programs cannot build such a thunk without mutation, so tie the knot by hand.
+        Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+        Expression.Thunk t = new Expression.Thunk(Expression.parseString("(force t)"), env);
+        env.getMap().put("t", Interpreter.DynamicEnvironment.Entry.variable(t));
+        t.force();
+    }
+
+    @Test
+    public void environmentImageKeepsThunks() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(naturalsBinding));
+        env = Interpreter.interpretBinding(Binding.parseString("(define s (from 5))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define t (cdr s))"), env);
+
+        Interpreter.DynamicEnvironment loaded = roundTrip(env);
+        assertEquals(Expression.ofInt(7),
+                Interpreter.interpretExpression(Expression.parseString("(car (cdr (cdr s)))"), loaded));
+        assertEquals(Expression.ofInt(6), Interpreter.interpretExpression(Expression.parseString("(car t)"), loaded));
+    }
+
+    @Test
+    public void persistentVectorGrowsThroughSeveralLevels() {
+        // 32 * 32 * 2 + 5 elements: a tail, two full levels of the trie, and a third level.
+        PersistentVector<Integer> v = PersistentVector.empty();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 2053; i++) {
+            v = v.append(i);
+            expected.add(i);
+        }
+        assertEquals(2053, v.size());
+        for (int i = 0; i < v.size(); i++) {
+            assertEquals(Integer.valueOf(i), v.get(i));
+        }
+        assertEquals(expected, v.toList());
+
+        PersistentVector<Integer> w = v.set(1000, -1).set(2052, -2);
+        assertEquals(Integer.valueOf(1000), v.get(1000));
+        assertEquals(Integer.valueOf(-1), w.get(1000));
+        assertEquals(Integer.valueOf(-2), w.get(2052));
+        assertFalse(v.equals(w));
+        assertEquals(v, w.set(1000, 1000).set(2052, 2052));
+        assertEquals(v.hashCode(), PersistentVector.of(expected).hashCode());
+    }
+
+    @Test
+    public void vectors() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(
+                "(define v (vector 1 (+ 1 1) 3))"));
+        assertEquals(Expression.ofInt(2), Interpreter.interpretExpression(Expression.parseString("(vector-ref v 1)"), env));
+        assertEquals(Expression.ofInt(3), Interpreter.interpretExpression(Expression.parseString("(vector-length v)"), env));
+        assertEquals(Expression.ofInt(0), Interpreter.interpretExpression(Expression.parseString("(vector-length (vector))")));
+
+        // vector-set leaves the original vector alone
+        env = Interpreter.interpretBinding(Binding.parseString("(define w (vector-set v 0 10))"), env);
+        assertEquals(Expression.ofInt(1), Interpreter.interpretExpression(Expression.parseString("(vector-ref v 0)"), env));
+        assertEquals(Expression.ofInt(10), Interpreter.interpretExpression(Expression.parseString("(vector-ref w 0)"), env));
+
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(vector 1 2 3)")),
+                Interpreter.interpretExpression(Expression.parseString("(list->vector (cons 1 (cons 2 (cons 3 nil))))")));
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(cons 10 (cons 2 (cons 3 nil)))")),
+                Interpreter.interpretExpression(Expression.parseString("(vector->list w)"), env));
+        assertEquals("Expression.VectorValue(elements=[1, 2, 3])", env.getVariable("v").toString());
+
+        String[] errors = {"(vector-ref v 3)", "(vector-ref v -1)", "(vector-ref v true)", "(vector-ref 1 0)",
+                "(vector-length nil)", "(vector-set v 5 0)", "(list->vector (cons 1 2))", "(vector->list nil)"};
+        for (String error : errors) {
+            try {
+                Interpreter.interpretExpression(Expression.parseString(error), env);
+                fail("expected an error for " + error);
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void environmentImageKeepsVectors() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define v (vector 1 'a (vector)))"));
+        env = Interpreter.interpretBinding(Binding.parseString("(define (second x) (vector-ref x 1))"), env);
+
+        Interpreter.DynamicEnvironment loaded = roundTrip(env);
+        assertEquals(env.getVariable("v"), loaded.getVariable("v"));
+        assertEquals("'a", Interpreter.interpretExpression(Expression.parseString("(second v)"), loaded).toString());
+    }
+
+    // The list (from from+1 ... to-1), built directly so that it can be long.
+    private static Expression range(int from, int to) {
+        Expression l = Expression.nil();
+        for (int i = to - 1; i >= from; i--) {
+            l = Expression.cons(Expression.ofInt(i), l);
+        }
+        return l;
+    }
+
+    @Test
+    public void nativeListFunctions() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (double x) (* 2 x))"));
+        env = Interpreter.interpretBinding(Binding.parseString("(define (odd? x) (= 1 (rem x 2)))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define (sub a b) (- a b))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(struct box v)"), env);
+        env.getMap().put("l", Interpreter.DynamicEnvironment.Entry.variable(range(0, 5)));
+
+        assertEquals(Expression.ofInt(5), Interpreter.interpretExpression(Expression.parseString("(length l)"), env));
+        assertEquals(Expression.ofInt(0), Interpreter.interpretExpression(Expression.parseString("(length nil)"), env));
+        assertEquals(range(0, 10), Interpreter.interpretExpression(Expression.parseString(
+                "(append l (cons 5 (cons 6 (cons 7 (cons 8 (cons 9 nil))))))"), env));
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(cons 2 (cons 1 (cons 0 nil)))")),
+                Interpreter.interpretExpression(Expression.parseString("(reverse (cons 0 (cons 1 (cons 2 nil))))"), env));
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(cons 0 (cons 2 (cons 4 (cons 6 (cons 8 nil)))))")),
+                Interpreter.interpretExpression(Expression.parseString("(map double l)"), env));
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(cons 1 (cons 3 nil))")),
+                Interpreter.interpretExpression(Expression.parseString("(filter odd? l)"), env));
+        // a left fold: ((((100 - 0) - 1) - 2) - 3) - 4
+        assertEquals(Expression.ofInt(90), Interpreter.interpretExpression(Expression.parseString("(fold sub 100 l)"), env));
+        assertEquals(Expression.ofInt(4), Interpreter.interpretExpression(Expression.parseString("(length (map box (filter odd? (append l l))))"), env));
+
+        // a program's own definition wins over the built-in one
+        Interpreter.DynamicEnvironment own = Interpreter.interpretBinding(Binding.parseString("(define (length l) 42)"), env);
+        assertEquals(Expression.ofInt(42), Interpreter.interpretExpression(Expression.parseString("(length l)"), own));
+
+        String[] errors = {"(length 1)", "(length (cons 1 2))", "(reverse true)", "(map 1 l)", "(map nope l)",
+                "(filter double l)", "(map sub l)", "(fold map nil l)", "(length)"};
+        for (String error : errors) {
+            try {
+                Interpreter.interpretExpression(Expression.parseString(error), env);
+                fail("expected an error for " + error);
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void parallelFoldMatchesFold() {
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        // every call of add prints its arguments
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (add a b) (+ a b))"));
+            env = Interpreter.interpretBinding(Binding.parseString("(define (single x) (cons x nil))"), env);
+            env.getMap().put("l", Interpreter.DynamicEnvironment.Entry.variable(range(0, 20000)));
+
+            assertEquals(Expression.ofInt(199990000), Interpreter.interpretExpression(Expression.parseString("(pfold add 0 l)"), env));
+            assertEquals(Expression.ofInt(199990000), Interpreter.interpretExpression(Expression.parseString("(fold add 0 l)"), env));
+            // append is associative but not commutative: the chunks must be combined in order
+            assertEquals(range(0, 20000), Interpreter.interpretExpression(Expression.parseString("(pfold append nil (map single l))"), env));
+            assertEquals(Expression.ofInt(20000), Interpreter.interpretExpression(Expression.parseString("(length (reverse l))"), env));
+        } finally {
+            context.setOut(savedOut);
+        }
+    }
+
+    private static String printedBy(String expression, Interpreter.DynamicEnvironment env) {
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        context.setOut(new PrintStream(out, true));
+        try {
+            Interpreter.interpretExpression(Expression.parseString(expression), env);
+        } finally {
+            context.setOut(savedOut);
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void parallelFoldCountsAgainstTheCallersBudget() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (add a b) (+ a b))"));
+        env.getMap().put("l", Interpreter.DynamicEnvironment.Entry.variable(range(0, 20000)));
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter.interpretBinding(Binding.parseString("(define s (fold add 0 l))"), env);
+            long steps = context.getSteps();
+            // the chunks run on other threads, but their steps are the caller's
+            context.setLimits(new EvaluationLimits(steps * 2, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE));
+            Interpreter.interpretBinding(Binding.parseString("(define s (pfold add 0 l))"), env);
+            assertTrue(context.getSteps() + " < " + steps, context.getSteps() >= steps);
+            context.setLimits(new EvaluationLimits(steps / 2, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE));
+            try {
+                Interpreter.interpretBinding(Binding.parseString("(define s (pfold add 0 l))"), env);
+                fail("expected the step limit to stop pfold");
+            } catch (Trefoil2.TrefoilError.LimitExceededError e) {
+                // expected
+            }
+        } finally {
+            context.setLimits(EvaluationLimits.UNLIMITED);
+            context.setOut(savedOut);
+        }
+    }
+
+    @Test
+    public void parallelFoldPrintsWhatFoldPrints() {
+        // left keeps its accumulator, so each chunk of pfold prints the same lines as fold does for its elements
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (left a b) a)"));
+        env = Interpreter.interpretBinding(Binding.parseString("(define (add a b) (+ a b))"), env);
+        env.getMap().put("l", Interpreter.DynamicEnvironment.Entry.variable(range(0, 20000)));
+        String sequential = printedBy("(fold left 0 l)", env);
+        assertEquals(sequential, printedBy("(pfold left 0 l)", env));
+        assertEquals(sequential, printedBy("(pfold left 0 l)", env));
+
+        Expression broken = range(0, 20000);
+        Expression.Cons cell = (Expression.Cons) broken;
+        for (int i = 0; i < 15000; i++) {
+            cell = (Expression.Cons) cell.getRight();
+        }
+        env.getMap().put("broken", Interpreter.DynamicEnvironment.Entry.variable(
+                Expression.cons(Expression.ofInt(0), Expression.cons(Expression.ofBoolean(true), cell))));
+        try {
+            printedBy("(pfold add 0 broken)", env);
+            fail("expected an error for adding true");
+        } catch (Trefoil2.TrefoilError.RuntimeError e) {
+            // expected
+        }
+    }
+
+    // A key whose hash is chosen by the test, to force collisions.
+    private static class Key {
+        final int id, hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Every key that is a multiple of 3 has the same hash as the one before it.
+    private static int collidingHash(int i) {
+        return (i % 3 == 0 ? i - 1 : i) * 0x9E3779B9;
+    }
+
+    @Test
+    public void persistentHashMapPutGetRemove() {
+        PersistentHashMap<Key, Integer> m = PersistentHashMap.empty();
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentHashMap.Builder<Key, Integer> builder = PersistentHashMap.builder();
+        for (int i = 0; i < 5000; i++) {
+            Key k = new Key(i, collidingHash(i));
+            m = m.put(k, i);
+            builder.put(k, i);
+            expected.put(k, i);
+        }
+        assertEquals(5000, m.size());
+        assertEquals(m, builder.build());
+        for (Map.Entry<Key, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), m.get(entry.getKey()));
+        }
+
+        PersistentHashMap<Key, Integer> removed = m;
+        for (int i = 0; i < 5000; i += 2) {
+            removed = removed.remove(new Key(i, collidingHash(i)));
+        }
+        assertEquals(2500, removed.size());
+        assertFalse(removed.containsKey(new Key(6, collidingHash(6))));
+        assertTrue(removed.containsKey(new Key(5, collidingHash(5))));
+        // the original is unchanged
+        assertTrue(m.containsKey(new Key(6, collidingHash(6))));
+        assertTrue(m.remove(new Key(-1, 7)) == m);
+        assertEquals(m.put(new Key(1, collidingHash(1)), 1), m);
+    }
+
+    @Test
+    public void maps() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(
+                "(define m (map-put (map-put (map-empty) 1 'one) (cons 2 (cons true nil)) 'two))"));
+        assertEquals(Expression.ofInt(2), Interpreter.interpretExpression(Expression.parseString("(map-size m)"), env));
+        assertEquals("'one", Interpreter.interpretExpression(Expression.parseString("(map-get m 1)"), env).toString());
+        // cons keys are compared by structure
+        assertEquals("'two", Interpreter.interpretExpression(Expression.parseString("(map-get m (cons 2 (cons true nil)))"), env).toString());
+        assertEquals(Expression.ofBoolean(false), Interpreter.interpretExpression(Expression.parseString("(map-contains? m 2)"), env));
+
+        env = Interpreter.interpretBinding(Binding.parseString("(define n (map-remove m 1))"), env);
+        assertEquals(Expression.ofBoolean(true), Interpreter.interpretExpression(Expression.parseString("(map-contains? m 1)"), env));
+        assertEquals(Expression.ofBoolean(false), Interpreter.interpretExpression(Expression.parseString("(map-contains? n 1)"), env));
+
+        // the first entry for a key wins, like a lookup in the association list
+        env = Interpreter.interpretBinding(Binding.parseString(
+                "(define a (alist->map (cons (cons 1 'a) (cons (cons 2 'b) (cons (cons 1 'c) nil)))))"), env);
+        assertEquals(Expression.ofInt(2), Interpreter.interpretExpression(Expression.parseString("(map-size a)"), env));
+        assertEquals("'a", Interpreter.interpretExpression(Expression.parseString("(map-get a 1)"), env).toString());
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(map-put (map-put (map-empty) 2 'b) 1 'a)")),
+                env.getVariable("a"));
+
+        String[] errors = {"(map-get m 3)", "(map-get 1 1)", "(map-put m (delay 1) 1)", "(map-put m (vector) 1)",
+                "(map-size nil)", "(alist->map (cons 1 nil))", "(alist->map 1)"};
+        for (String error : errors) {
+            try {
+                Interpreter.interpretExpression(Expression.parseString(error), env);
+                fail("expected an error for " + error);
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                // expected
+            }
+        }
+
+        assertEquals(env.getVariable("m"), roundTrip(env).getVariable("m"));
+    }
+
+    @Test
+    public void typeInferenceMarksProvenNodes() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define x 3)"));
+        Binding b = Binding.parseString("(define (f n) (if (= n 0) x (+ (f (- n 1)) (* x 2))))");
+        assertTrue(TypeInference.check(b, env).isEmpty());
+        Expression.If body = (Expression.If) ((Binding.FunctionBinding) b).getBody();
+        // = always gives a boolean, but n is a parameter, so nothing is known about it
+        assertTrue(body.isTypeChecked());
+        assertFalse(((Expression.Equals) body.getLeft()).isTypeChecked());
+        // but f always returns an integer
+        assertTrue(body.getRight().isTypeChecked());
+        assertTrue(((Expression.Plus) body.getRight()).getRight().isTypeChecked());
+        assertEquals(TypeInference.Type.INT, TypeInference.typeOf(Expression.parseString("(f 2)"),
+                env.extendFunction("f", (Binding.FunctionBinding) b)));
+
+        env = Interpreter.interpretBinding(b, env);
+        assertEquals(Expression.ofInt(15), Interpreter.interpretExpression(Expression.parseString("(f 2)"), env));
+
+        Expression e = Expression.parseString("(if (= x 3) (cons 1 nil) nil)");
+        assertEquals(TypeInference.Type.LIST, TypeInference.typeOf(e, env));
+        assertTrue(e.isTypeChecked());
+        assertEquals(Expression.parseString("(cons 1 nil)"), Interpreter.interpretExpression(e, env));
+    }
+
+    @Test
+    public void typeInferenceReportsDefiniteErrors() {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (g y) (= y 0))"));
+        assertEquals(1, TypeInference.check(Binding.parseString("(+ 1 (g 2))"), env).size());
+        assertEquals(1, TypeInference.check(Binding.parseString("(define (h) (* nil 2))"), env).size());
+        // only possibly wrong, or not wrong at all
+        assertTrue(TypeInference.check(Binding.parseString("(define (h z) (* z 2))"), env).isEmpty());
+        assertTrue(TypeInference.check(Binding.parseString("(+ 1 (car (cons 1 nil)))"), env).isEmpty());
+        // append gives back its second argument when the first list is empty
+        assertTrue(TypeInference.check(Binding.parseString("(+ (append nil 5) 1)"), env).isEmpty());
+        assertEquals(1, TypeInference.check(Binding.parseString("(+ (append nil nil) 1)"), env).size());
+        // the message names the types; where the error is comes from the span
+        assertEquals("+ expects integers but got bool",
+                TypeInference.check(Binding.parseString("(+ 1 (g 2))"), env).get(0).getMessage());
+        // errors in a callee are reported with its own definition
+        env = Interpreter.interpretBinding(Binding.parseString("(define (bad) (+ true 1))"), env);
+        assertTrue(TypeInference.check(Binding.parseString("(bad)"), env).isEmpty());
+
+        // the error is still raised when the node runs
+        Binding b = Binding.parseString("(+ 1 (g 2))");
+        TypeInference.check(b, env);
+        try {
+            Interpreter.interpretBinding(b, env);
+            fail("expected an error");
+        } catch (Trefoil2.TrefoilError.RuntimeError e) {
+            // expected
+        }
+    }
+
+    // Evaluates each call in env and returns the printed output and value, or error, of each.
+    private static List<String> runCalls(String[] calls, Interpreter.DynamicEnvironment env) {
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        List<String> results = new ArrayList<>();
+        try {
+            for (String call : calls) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                context.setOut(new PrintStream(out));
+                try {
+                    results.add(out + "-> " + Interpreter.interpretExpression(Expression.parseString(call), env));
+                } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                    results.add(out + "-> error " + e.getMessage());
+                }
+            }
+        } finally {
+            context.setOut(savedOut);
+        }
+        return results;
+    }
+
+    @Test
+    public void interpreterRecursesAsDeepAsBefore() throws Exception {
+        // Plain interpretation, on a 1 MB stack: every node kind the interpreter handles must not make the
+        // frames of the recursive interpretExpression bigger. Repeated, so that the JIT compiles it on the way.
+        boolean tiering = Tiering.isEnabled();
+        Tiering.setEnabled(false);
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(
+                Binding.parseString("(define (f n) (if (= n 0) 0 (+ 1 (f (- n 1)))))"));
+        List<Object> results = new ArrayList<>();
+        Thread thread = new Thread(null, () -> {
+            ExecutionContext.current().setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                for (int i = 0; i < 20; i++) {
+                    results.add(Interpreter.interpretExpression(Expression.parseString("(f 400)"), env));
+                }
+            } catch (StackOverflowError e) {
+                results.add(e);
+            }
+        }, "deep", 1 << 20);
+        try {
+            thread.start();
+            thread.join();
+        } finally {
+            Tiering.setEnabled(tiering);
+        }
+        assertEquals(20, results.size());
+        for (Object result : results) {
+            assertEquals(Expression.ofInt(400), result);
+        }
+    }
+
+    @Test
+    public void bytecodeRunsDeepRecursionWithoutTheJavaStack() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+        env = Interpreter.interpretBinding(Binding.parseString("(define (sum n) (if (= n 0) 0 (+ n (sum (- n 1)))))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString(
+                "(define (loop n acc) (if (= n 0) acc (loop (- n 1) (+ acc n))))"), env);
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry sum =
+                (Interpreter.DynamicEnvironment.Entry.FunctionEntry) env.getMap().get("sum");
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry loop =
+                (Interpreter.DynamicEnvironment.Entry.FunctionEntry) env.getMap().get("loop");
+
+        String disassembly = Bytecode.compile(loop).disassemble();
+        assertTrue(disassembly, disassembly.contains("TAILCALL") && disassembly.contains("JUMP_IF_FALSE"));
+        disassembly = Bytecode.compile(sum).disassemble();
+        assertTrue(disassembly, disassembly.contains("CALL") && !disassembly.contains("TAILCALL"));
+
+        ExecutionContext context = ExecutionContext.current();
+        PrintStream savedOut = context.getOut();
+        context.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        boolean tiering = Tiering.isEnabled();
+        int callThreshold = Tiering.getCallThreshold();
+        int loopThreshold = Tiering.getLoopThreshold();
+        Tiering.Target target = Tiering.getTarget();
+        try {
+            Tiering.setEnabled(true);
+            Tiering.setTarget(Tiering.Target.BYTECODE);
+            assertEquals(Expression.ofInt(55), Bytecode.compile(loop).invoke(Arrays.asList(Expression.ofInt(10), Expression.ofInt(0))));
+            Tiering.setThresholds(1, 1);
+            Interpreter.interpretExpression(Expression.parseString("(sum 3)"), env);
+            assertTrue(Tiering.awaitCompilations(10, TimeUnit.SECONDS));
+            assertEquals(Tiering.Tier.COMPILED, Tiering.tierOf(sum));
+            // Far deeper than the interpreter gets before the Java stack overflows.
+            assertEquals(Expression.ofInt(200010000), Interpreter.interpretExpression(Expression.parseString("(sum 20000)"), env));
+            assertEquals(0, context.getDepth());
+        } finally {
+            context.setOut(savedOut);
+            Tiering.setThresholds(callThreshold, loopThreshold);
+            Tiering.setTarget(target);
+            Tiering.setEnabled(tiering);
+        }
+    }
+
+    @Test
+    public void tieringCompilesHotFunctionsWithoutChangingResults() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+        String[] definitions = {
+                "(define k 10)",
+                "(struct point x y)",
+                "(define (sum n) (if (= n 0) 0 (+ n (sum (- n 1)))))",
+                "(define (scale l) (if (nil? l) nil (cons (* k (car l)) (scale (cdr l)))))",
+                "(define (first-or-zero l) (match l (nil 0) ((cons x _) x)))",
+                "(define (norm p) (+ (point-x p) (point-y p)))",
+                "(define (broken n) (if (= n 0) (+ 1 true) (broken (- n 1))))",
+                "(define (calls-undefined n) (undefined n))",
+        };
+        for (String definition : definitions) {
+            env = Interpreter.interpretBinding(Binding.parseString(definition), env);
+        }
+        String[] calls = {"(sum 5)", "(scale (cons 1 (cons 2 nil)))", "(first-or-zero (cons 3 nil))",
+                "(norm (point 1 2))", "(broken 2)", "(calls-undefined 1)", "(sum true)"};
+
+        List<Tiering.Transition> transitions = new ArrayList<>();
+        Consumer<Tiering.Transition> listener = t -> {
+            synchronized (transitions) {
+                transitions.add(t);
+            }
+        };
+        boolean tiering = Tiering.isEnabled();
+        Tiering.setEnabled(false);
+        List<String> interpreted = runCalls(calls, env);
+        int callThreshold = Tiering.getCallThreshold();
+        int loopThreshold = Tiering.getLoopThreshold();
+        try {
+            Tiering.setEnabled(true);
+            Tiering.setThresholds(5, 3);
+            Tiering.addListener(listener);
+            for (int i = 0; i < 5; i++) {
+                runCalls(calls, env);
+            }
+            assertTrue(Tiering.awaitCompilations(10, TimeUnit.SECONDS));
+        } finally {
+            Tiering.removeListener(listener);
+            Tiering.setThresholds(callThreshold, loopThreshold);
+            Tiering.setEnabled(tiering);
+        }
+        for (String name : new String[]{"sum", "scale", "first-or-zero", "norm", "broken", "calls-undefined"}) {
+            assertEquals(name, Tiering.Tier.COMPILED,
+                    Tiering.tierOf((Interpreter.DynamicEnvironment.Entry.FunctionEntry) env.getMap().get(name)));
+        }
+        assertEquals(interpreted, runCalls(calls, env));
+
+        synchronized (transitions) {
+            // sum calls itself, so it is queued before the functions that are only called from outside
+            assertEquals("sum", transitions.stream().filter(t -> t.getTo() == Tiering.Tier.QUEUED)
+                    .findFirst().get().getFunction());
+            assertTrue(transitions.stream().anyMatch(t -> t.getFunction().equals("sum")
+                    && t.getTo() == Tiering.Tier.COMPILED && t.getCompileNanos() > 0));
+        }
+    }
+
+    @Test
+    public void tokenizerClassifiesSymbols() {
+        parser.Tokenizer tokenizer = parser.Tokenizer.tokenizeString(
+                "12 -7 +3 -2147483648 2147483648 1x - nil? nil x\u2003y");
+        assertEquals(12, ((parser.Tokenizer.Token.IntegerToken) tokenizer.advance()).getValue());
+        assertEquals(-7, ((parser.Tokenizer.Token.IntegerToken) tokenizer.advance()).getValue());
+        assertEquals(3, ((parser.Tokenizer.Token.IntegerToken) tokenizer.advance()).getValue());
+        assertEquals(Integer.MIN_VALUE, ((parser.Tokenizer.Token.IntegerToken) tokenizer.advance()).getValue());
+        // too large for an int, so just a name, as before
+        assertEquals(parser.Tokenizer.Token.SymbolToken.class, tokenizer.advance().getClass());
+        assertEquals(parser.Tokenizer.Token.SymbolToken.class, tokenizer.advance().getClass());
+        assertEquals(parser.Keyword.MINUS, ((parser.Tokenizer.Token.KeywordToken) tokenizer.advance()).getKeyword());
+        assertEquals(parser.Keyword.IS_NIL, ((parser.Tokenizer.Token.KeywordToken) tokenizer.advance()).getKeyword());
+        assertEquals(parser.Keyword.NIL, ((parser.Tokenizer.Token.KeywordToken) tokenizer.advance()).getKeyword());
+        // non-ASCII whitespace still separates symbols
+        assertEquals("x", ((parser.Tokenizer.Token.SymbolToken) tokenizer.advance()).getSymbol());
+        assertEquals("y", ((parser.Tokenizer.Token.SymbolToken) tokenizer.advance()).getSymbol());
+        assertTrue(tokenizer.advance() instanceof parser.Tokenizer.Token.EOFToken);
+
+        assertEquals(new Expression.VariableReference("2147483648"), Expression.parseString("2147483648"));
+        assertEquals(Expression.ofInt(-5), Expression.parseString("-5"));
+        assertEquals(new Expression.VariableReference("-"), Expression.parseString("-"));
+    }
+
+    @Test
+    public void errorsCarrySourceSpansAndTrefoilBacktraces() {
+        Binding f = Binding.parsePST(parser.PSTParser.parseString("\n(define (f x)\n  (+ x true))").parse());
+        assertEquals("2:1", parser.SourceSpan.toString(f.getSpan()));
+        Expression body = ((Binding.FunctionBinding) f).getBody();
+        assertEquals(3, parser.SourceSpan.startLine(body.getSpan()));
+        assertEquals(2, parser.SourceSpan.startColumn(body.getSpan()));
+        assertEquals(12, parser.SourceSpan.endColumn(body.getSpan()));
+        assertEquals("3:8", parser.SourceSpan.toString(((Expression.Plus) body).getRight().getSpan()));
+
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(f);
+        Binding call = Binding.parsePST(parser.PSTParser.parseString("(define y\n  (f 1))").parse());
+        try {
+            Interpreter.interpretBinding(call, env);
+            fail("expected an error");
+        } catch (Trefoil2.TrefoilError.RuntimeError e) {
+            assertEquals(Arrays.asList("f", "define:y"), e.getBacktrace());
+            // the call site of the innermost function
+            assertEquals("2:3", parser.SourceSpan.toString(e.getSpan()));
+            assertEquals(0, e.getStackTrace().length);
+        }
+
+        try {
+            Binding.parseString("(define z (+ 1 (if true)))");
+            fail("expected an error");
+        } catch (Trefoil2.TrefoilError.AbstractSyntaxError e) {
+            assertEquals("1:16", parser.SourceSpan.toString(e.getSpan()));
+        }
+
+        Trefoil2.TrefoilError.setJavaStackTraces(true);
+        try {
+            assertTrue(new Trefoil2.TrefoilError.RuntimeError("debugging").getStackTrace().length > 0);
+        } finally {
+            Trefoil2.TrefoilError.setJavaStackTraces(false);
+        }
+    }
+
+    @Test
+    public void printerStreamsLongValuesWithoutRecursion() throws IOException {
+        Expression list = Expression.nil();
+        for (int i = 200000; i >= 1; i--) {
+            list = Expression.cons(Expression.ofInt(i), list);
+        }
+        String full = list.toString();
+        assertTrue(full.startsWith("Expression.Cons(left=1, right=Expression.Cons(left=2, right="));
+        assertTrue(full.endsWith("right=Expression.Nil()" + ")".repeat(200000)));
+
+        StringWriter out = new StringWriter();
+        Printer.print(list, out, new Printer.Options(Integer.MAX_VALUE, 3, true));
+        assertEquals("(1 2 3 ...)", out.toString());
+
+        Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment();
+        env = Interpreter.interpretBinding(Binding.parseString("(struct point x y)"), env);
+        env = Interpreter.interpretBinding(Binding.parseString(
+                "(define p (point (cons 1 (cons 2 3)) (vector 1 (vector 2 nil) 4)))"), env);
+        Expression p = env.getVariable("p");
+        assertEquals("(point Expression.Cons(left=1, right=Expression.Cons(left=2, right=3)) "
+                + "Expression.VectorValue(elements=[1, Expression.VectorValue(elements=[2, Expression.Nil()]), 4]))",
+                p.toString());
+        out = new StringWriter();
+        Printer.print(p, out, new Printer.Options(2, Integer.MAX_VALUE, true));
+        assertEquals("(point (1 2 . 3) [1 ... 4])", out.toString());
+
+        out = new StringWriter();
+        Printer.printEnvironment(env, out, new Printer.Options(Integer.MAX_VALUE, Integer.MAX_VALUE, false));
+        assertEquals(env.toString(), out.toString());
+        out = new StringWriter();
+        Printer.printEnvironment(env, out, new Printer.Options(Integer.MAX_VALUE, Integer.MAX_VALUE, true));
+        assertEquals(String.join(System.lineSeparator(),
+                "p = (point (1 2 . 3) [1 [2 nil] 4])",
+                "point = <struct point (x y)>",
+                "point-x = <function point-x (x)>",
+                "point-y = <function point-y (x)>",
+                "point? = <function point? (x)>"), out.toString());
+    }
+
+    @Test
+    public void closuresCaptureOnlyTheirFreeNames() {
+        Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment();
+        env = Interpreter.interpretBinding(Binding.parseString("(define big (cons 1 (cons 2 nil)))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define y 10)"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(define (g z) (* z 2))"), env);
+        env = Interpreter.interpretBinding(Binding.parseString("(struct point a b)"), env);
+        env = Interpreter.interpretBinding(Binding.parseString(
+                "(define (f x) (if (= x 0) (g y) (match x ((cons big _) (f big)) (_ (f (- x 1))))))"), env);
+
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry f = env.getFunction("f");
+        // big is bound by the pattern, so only y, g and f itself are captured; = and if are not names.
+        assertEquals(new HashSet<>(Arrays.asList("f", "g", "y")),
+                f.getDefiningEnvironment().getMap().keySet());
+        assertTrue(f == f.getDefiningEnvironment().getMap().get("f"));
+        assertEquals(Collections.singleton("point-a"),
+                env.getFunction("point-a").getDefiningEnvironment().getMap().keySet());
+        assertEquals(Expression.ofInt(20), Interpreter.interpretExpression(Expression.parseString("(f 3)"), env));
+
+        // Redefining a captured name later does not change the closure.
+        env = Interpreter.interpretBinding(Binding.parseString("(define y 1)"), env);
+        assertEquals(Expression.ofInt(20), Interpreter.interpretExpression(Expression.parseString("(f 3)"), env));
+    }
+
+    @Test
+    public void importsLoadEachModuleOnce() throws IOException {
+        Path dir = Files.createTempDirectory("trefoil");
+        Path d = dir.resolve("d.trefoil");
+        Files.writeString(d, "(define (double x) (* x 2))");
+        Files.writeString(dir.resolve("b.trefoil"), "(import \"d.trefoil\")\n(define b (double 1))");
+        Files.writeString(dir.resolve("c.trefoil"), "(import d.trefoil)\n(define c (double 2))");
+        Files.writeString(dir.resolve("loop.trefoil"), "(import \"loop.trefoil\")");
+        Files.writeString(dir.resolve("bad.trefoil"), "(define ok 1)\n(define oops (+ 1 true))");
+        ExecutionContext context = ExecutionContext.current();
+        context.setSourceDirectory(dir);
+        try {
+            long before = ModuleCache.evaluationCount();
+            Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment();
+            env = Interpreter.interpretBinding(Binding.parseString("(import \"b.trefoil\")"), env);
+            env = Interpreter.interpretBinding(Binding.parseString("(import \"c.trefoil\")"), env);
+            // d is imported by both b and c, but evaluated only once.
+            assertEquals(3, ModuleCache.evaluationCount() - before);
+            assertEquals(Expression.ofInt(2), env.getVariable("b"));
+            assertEquals(Expression.ofInt(4), env.getVariable("c"));
+            assertEquals(Expression.ofInt(6), Interpreter.interpretExpression(Expression.parseString("(double 3)"), env));
+
+            // Another program importing b shares the loaded module.
+            Interpreter.DynamicEnvironment other = Interpreter.interpretBinding(
+                    Binding.parseString("(import \"b.trefoil\")"), new Interpreter.DynamicEnvironment());
+            assertEquals(3, ModuleCache.evaluationCount() - before);
+            assertTrue(env.getFunction("double") == other.getFunction("double"));
+
+            // A changed module is loaded again.
+            Files.writeString(d, "(define (double x) (+ x x))");
+            Interpreter.interpretBinding(Binding.parseString("(import \"d.trefoil\")"), env);
+            assertEquals(4, ModuleCache.evaluationCount() - before);
+
+            try {
+                Interpreter.interpretBinding(Binding.parseString("(import \"loop.trefoil\")"), env);
+                fail("a module importing itself should fail");
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("imports itself"));
+            }
+            try {
+                Interpreter.interpretBinding(Binding.parseString("(import \"bad.trefoil\")"), env);
+                fail("an error in a module should fail the import");
+            } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("In module bad.trefoil at 2:"));
+            }
+        } finally {
+            context.setSourceDirectory(null);
+            ModuleCache.clear();
+            for (String name : new String[]{"b", "c", "d", "loop", "bad"}) {
+                Files.delete(dir.resolve(name + ".trefoil"));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void importCycleStartedByTwoThreadsFails() throws Exception {
+        Path dir = Files.createTempDirectory("trefoil");
+        // a takes a while before it imports b, so that the other thread can start loading b meanwhile
+        StringBuilder a = new StringBuilder("(define (spin n) (if (= n 0) 0 (+ 1 (spin (- n 1)))))\n");
+        for (int i = 0; i < 200; i++) {
+            a.append("(spin 200)\n");
+        }
+        a.append("(import \"b.trefoil\")\n");
+        Files.writeString(dir.resolve("a.trefoil"), a);
+        Files.writeString(dir.resolve("b.trefoil"), "(import \"a.trefoil\")");
+        List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        try {
+            long before = ModuleCache.evaluationCount();
+            for (String module : new String[]{"a.trefoil", "b.trefoil"}) {
+                Thread thread = new Thread(() -> {
+                    ExecutionContext.current().setSourceDirectory(dir);
+                    try {
+                        results.add(Interpreter.interpretBinding(Binding.parseString("(import \"" + module + "\")")));
+                    } catch (Trefoil2.TrefoilError.RuntimeError e) {
+                        results.add(e);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+                // b is imported once a has started loading
+                while (ModuleCache.evaluationCount() == before) {
+                    Thread.sleep(1);
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join(10000);
+                assertFalse("deadlocked", thread.isAlive());
+            }
+            assertEquals(2, results.size());
+            for (Object result : results) {
+                assertTrue(result.toString(), result instanceof Trefoil2.TrefoilError.RuntimeError
+                        && ((Trefoil2.TrefoilError.RuntimeError) result).getMessage().contains("imports itself"));
+            }
+        } finally {
+            ModuleCache.clear();
+            Files.delete(dir.resolve("a.trefoil"));
+            Files.delete(dir.resolve("b.trefoil"));
+            Files.delete(dir);
+        }
+    }
+
+    private static String watchRun(WatchSession session, String source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream(out, true);
+        Interpreter.DynamicEnvironment env = session.run(source, print, print);
+        return out + "final environment:\n" + env;
+    }
+
+    @Test
+    public void watchSessionReusesUnchangedBindings() {
+        String v1 = "(define a 1)\n(define (f x) (+ x a))\n(define b (f 2))\n"
+                + "(define c 10)\n(define d (+ c 1))\n(f b)\n";
+        // a changes, so f, b and (f b) run again; c is edited but keeps its value, so d is reused.
+        String v2 = "(define a 2)\n(define (f x) (+ x a))\n(define b (f 2))\n"
+                + "(define c (+ 5 5))\n(define d (+ c 1))\n(f b)\n";
+        WatchSession session = new WatchSession(new Interpreter.DynamicEnvironment(), "test", false);
+        watchRun(session, v1);
+        assertEquals(6, session.getEvaluated());
+        String incremental = watchRun(session, v2);
+        assertEquals(5, session.getEvaluated());
+        assertEquals(1, session.getReused());
+        String cold = watchRun(new WatchSession(new Interpreter.DynamicEnvironment(), "test", false), v2);
+        assertEquals(cold, incremental);
+        assertEquals(incremental, watchRun(session, v2));
+        assertEquals(6, session.getReused());
+
+        // A function that moves runs again, and so does what calls it; an error is never reused.
+        String v3 = "\n" + v2 + "(+ 1 true)\n";
+        String moved = watchRun(session, v3);
+        assertEquals(moved, watchRun(new WatchSession(new Interpreter.DynamicEnvironment(), "test", false), v3));
+        assertEquals(3, session.getReused());
+        assertTrue(moved, moved.contains("(test:8:1)"));
+        watchRun(session, v3);
+        assertEquals(6, session.getReused());
+        assertEquals(1, session.getEvaluated());
+    }
+
+    @Test
+    public void profilerSamplesThreadsThatStartedBeforeIt() throws Exception {
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(
+                "(define (spin n) (if (= n 0) 0 (+ 1 (spin (- n 1)))))"));
+        CompletableFuture<Void> contextCreated = new CompletableFuture<>();
+        CompletableFuture<Void> profilerStarted = new CompletableFuture<>();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread worker = new Thread(() -> {
+            ExecutionContext.current().setOut(new PrintStream(OutputStream.nullOutputStream()));
+            contextCreated.complete(null);
+            profilerStarted.join();
+            while (!done.get()) {
+                Interpreter.interpretExpression(Expression.parseString("(spin 100)"), env);
+            }
+        });
+        worker.setDaemon(true);
+        worker.start();
+        contextCreated.get(10, TimeUnit.SECONDS);
+        Profiler profiler = Profiler.start(1);
+        try {
+            profilerStarted.complete(null);
+            Thread.sleep(200);
+        } finally {
+            profiler.stop();
+            done.set(true);
+        }
+        worker.join(10000);
+        StringWriter stacks = new StringWriter();
+        profiler.writeCollapsedStacks(stacks);
+        assertTrue(stacks.toString(), stacks.toString().contains("spin"));
+    }
 }